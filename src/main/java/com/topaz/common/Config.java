@@ -88,6 +88,22 @@ public class Config {
 		return result;
 	}
 
+	/**
+	 * Get int value, return default value if the item is absent or invalid.
+	 */
+	public int getInt(String key, int def) {
+		String v = getConfig(key);
+		if (v == null || v.trim().isEmpty()) {
+			return def;
+		}
+		try {
+			return Integer.parseInt(v.trim());
+		} catch (NumberFormatException e) {
+			log.error("Config item [" + key + "] is not a number: " + v);
+		}
+		return def;
+	}
+
 	public String getString(String key) {
 		String v = getConfig(key);
 		if (v == null || v.isEmpty()) {
@@ -107,6 +123,18 @@ public class Config {
 		return re;
 	}
 
+	/**
+	 * Get boolean value, return default value if the item is absent or
+	 * invalid.
+	 */
+	public boolean getBoolean(String key, boolean def) {
+		String v = getConfig(key);
+		if (booleanValues.contains(v)) {
+			return Boolean.valueOf(v);
+		}
+		return def;
+	}
+
 	/*
 	 * Database Connection Configurations
 	 */
@@ -141,4 +169,219 @@ public class Config {
 	public int getDbPoolMaxWait() {
 		return getInt("ds.MaxWait");
 	}
+
+	/**
+	 * Max number of rows sent in one JDBC batch, default 1000.
+	 * 
+	 * @throws TopazException
+	 *             if the configured value is less than 1
+	 */
+	public int getDbBatchSize() {
+		int size = getInt("ds.BatchSize", 1000);
+		if (size < 1) {
+			throw new TopazException("ds.BatchSize must be positive: " + size);
+		}
+		return size;
+	}
+
+	/**
+	 * Let MySQL driver rewrite batched INSERTs into multi-row VALUES, default
+	 * true.
+	 */
+	public boolean isDbRewriteBatchedStatements() {
+		return getBoolean("ds.RewriteBatchedStatements", true);
+	}
+
+	/**
+	 * Rows fetched per round trip when streaming results(non MySQL drivers,
+	 * MySQL always streams row by row), default 1000.
+	 */
+	public int getDbFetchSize() {
+		return getInt("ds.FetchSize", 1000);
+	}
+
+	/**
+	 * Pool prepared statements per connection, default true.
+	 */
+	public boolean isDbPoolPreparedStatements() {
+		return getBoolean("ds.PoolPreparedStatements", true);
+	}
+
+	/**
+	 * Max pooled prepared statements per connection, default 100.
+	 */
+	public int getDbMaxOpenPreparedStatements() {
+		return getInt("ds.MaxOpenPreparedStatements", 100);
+	}
+
+	/**
+	 * Use MySQL server side prepared statements, default false.
+	 */
+	public boolean isDbUseServerPrepStmts() {
+		return getBoolean("ds.UseServerPrepStmts", false);
+	}
+
+	/**
+	 * Max number of query results kept by the query cache, default 1000.
+	 */
+	public int getDbQueryCacheSize() {
+		return getInt("ds.QueryCacheSize", 1000);
+	}
+
+	/**
+	 * Get comma separated values, return empty list if the item is absent.
+	 */
+	public List<String> getList(String key) {
+		List<String> re = new ArrayList<String>();
+		String v = getConfig(key);
+		if (v != null) {
+			for (String item : v.split(",")) {
+				if (!item.trim().isEmpty()) {
+					re.add(item.trim());
+				}
+			}
+		}
+		return re;
+	}
+
+	/**
+	 * JDBC urls of read replicas, comma separated(ds.ReplicaUrls).
+	 */
+	public List<String> getDbReplicaUrls() {
+		return getList("ds.ReplicaUrls");
+	}
+
+	/**
+	 * User of read replicas, default ds.Username.
+	 */
+	public String getDbReplicaUsername() {
+		String v = getConfig("ds.ReplicaUsername");
+		return v == null ? getDbUsername() : v;
+	}
+
+	/**
+	 * Password of read replicas, default ds.Password.
+	 */
+	public String getDbReplicaPassword() {
+		String v = getConfig("ds.ReplicaPassword");
+		return v == null ? getDbPassword() : v;
+	}
+
+	/**
+	 * How reads are spread over replicas, RoundRobin or LeastActive, default
+	 * RoundRobin.
+	 */
+	public String getDbReplicaBalance() {
+		String v = getConfig("ds.ReplicaBalance");
+		return v == null ? "RoundRobin" : v.trim();
+	}
+
+	/**
+	 * Milliseconds between replica health checks, default 30000.
+	 */
+	public int getDbReplicaCheckInterval() {
+		return getInt("ds.ReplicaCheckInterval", 30000);
+	}
+
+	/**
+	 * JDBC urls of shard databases, comma separated(ds.ShardUrls). Shard index
+	 * is the position in the list.
+	 */
+	public List<String> getDbShardUrls() {
+		return getList("ds.ShardUrls");
+	}
+
+	/**
+	 * User of shard databases, default ds.Username.
+	 */
+	public String getDbShardUsername() {
+		String v = getConfig("ds.ShardUsername");
+		return v == null ? getDbUsername() : v;
+	}
+
+	/**
+	 * Password of shard databases, default ds.Password.
+	 */
+	public String getDbShardPassword() {
+		String v = getConfig("ds.ShardPassword");
+		return v == null ? getDbPassword() : v;
+	}
+
+	/**
+	 * Threads running queries over all shards, default number of shards.
+	 */
+	public int getDbShardThreads() {
+		return getInt("ds.ShardThreads", getDbShardUrls().size());
+	}
+
+	/**
+	 * Threads running async DAO calls, default and max ds.MaxActive.
+	 */
+	public int getDbAsyncThreads() {
+		int maxActive = getDbPoolMaxActive();
+		int threads = getInt("ds.AsyncThreads", maxActive);
+		return maxActive > 0 ? Math.min(threads, maxActive) : threads;
+	}
+
+	/**
+	 * Max async DAO calls waiting for a thread, default 1000.
+	 */
+	public int getDbAsyncQueueSize() {
+		return getInt("ds.AsyncQueueSize", 1000);
+	}
+
+	/**
+	 * Connection pool implementation, "Topaz"(built-in, default) or "Dbcp".
+	 */
+	public String getDbPool() {
+		String v = getConfig("ds.Pool");
+		return v == null ? "Topaz" : v.trim();
+	}
+
+	/**
+	 * Milliseconds a pooled connection may be idle before it is validated
+	 * on borrow, default 1000.
+	 */
+	public int getDbValidationIdleTime() {
+		return getInt("ds.ValidationIdleTime", 1000);
+	}
+
+	/**
+	 * Milliseconds before a pooled connection is retired, 0 to keep it
+	 * forever, default 1800000.
+	 */
+	public int getDbMaxLifetime() {
+		return getInt("ds.MaxLifetime", 1800000);
+	}
+
+	/**
+	 * Milliseconds a connection may be held before it is reported as leaked
+	 * with the stack that took it, 0 to disable stack capture, default 0.
+	 */
+	public int getDbLeakDetectionThreshold() {
+		return getInt("ds.LeakDetectionThreshold", 0);
+	}
+
+	/**
+	 * Whether connection pools are registered as MBeans, default true.
+	 */
+	public boolean isDbJmx() {
+		return getBoolean("ds.Jmx", true);
+	}
+
+	/**
+	 * Whether statistics of executed statements are kept by SQL shape,
+	 * default true.
+	 */
+	public boolean isDbQueryStats() {
+		return getBoolean("ds.QueryStats", true);
+	}
+
+	/**
+	 * Milliseconds a statement may take before it is logged as slow query
+	 * with its parameters and caller, 0 to disable, default 1000.
+	 */
+	public int getDbSlowQueryThreshold() {
+		return getInt("ds.SlowQueryThreshold", 1000);
+	}
 }
\ No newline at end of file
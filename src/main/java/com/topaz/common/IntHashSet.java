@@ -0,0 +1,174 @@
+package com.topaz.common;
+
+import java.util.Arrays;
+
+/**
+ * Set of primitive ints by open addressing with linear probing, without
+ * boxing every value as HashSet&lt;Integer&gt; does: one int[] slot per value
+ * at most half full, instead of an Integer and a map entry.
+ *
+ * Not thread safe!
+ */
+public class IntHashSet {
+
+	// 0 marks a free slot, the value 0 itself is kept in hasZero
+	private int[] slots;
+	private int mask;
+	private int size;
+	private boolean hasZero;
+
+	public IntHashSet() {
+		this(16);
+	}
+
+	/**
+	 * @param expected
+	 *            number of values the set holds without growing
+	 */
+	public IntHashSet(int expected) {
+		int cap = Integer.highestOneBit(Math.max(4, expected) * 2 - 1) << 1;
+		slots = new int[cap];
+		mask = cap - 1;
+	}
+
+	private static int hash(int v) {
+		int h = v * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @param v
+	 * @return true if the value was not in the set
+	 */
+	public boolean add(int v) {
+		if (v == 0) {
+			if (hasZero) {
+				return false;
+			}
+			hasZero = true;
+			size++;
+			return true;
+		}
+		int i = hash(v) & mask;
+		while (slots[i] != 0) {
+			if (slots[i] == v) {
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		slots[i] = v;
+		size++;
+		if (size * 2 > slots.length) {
+			rehash(slots.length * 2);
+		}
+		return true;
+	}
+
+	public void addAll(int[] values) {
+		for (int v : values) {
+			add(v);
+		}
+	}
+
+	public boolean contains(int v) {
+		if (v == 0) {
+			return hasZero;
+		}
+		int i = hash(v) & mask;
+		while (slots[i] != 0) {
+			if (slots[i] == v) {
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	/**
+	 * @param v
+	 * @return true if the value was in the set
+	 */
+	public boolean remove(int v) {
+		if (v == 0) {
+			if (!hasZero) {
+				return false;
+			}
+			hasZero = false;
+			size--;
+			return true;
+		}
+		int i = hash(v) & mask;
+		while (slots[i] != v) {
+			if (slots[i] == 0) {
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		// Shift back following values of the probe chain into the gap
+		int gap = i;
+		i = (i + 1) & mask;
+		while (slots[i] != 0) {
+			int home = hash(slots[i]) & mask;
+			if (((i - home) & mask) >= ((i - gap) & mask)) {
+				slots[gap] = slots[i];
+				gap = i;
+			}
+			i = (i + 1) & mask;
+		}
+		slots[gap] = 0;
+		size--;
+		return true;
+	}
+
+	private void rehash(int cap) {
+		int[] old = slots;
+		slots = new int[cap];
+		mask = cap - 1;
+		for (int v : old) {
+			if (v != 0) {
+				int i = hash(v) & mask;
+				while (slots[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				slots[i] = v;
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(slots, 0);
+		hasZero = false;
+		size = 0;
+	}
+
+	/**
+	 * Values of the set in no particular order.
+	 */
+	public int[] toArray() {
+		int[] re = new int[size];
+		int n = 0;
+		if (hasZero) {
+			re[n++] = 0;
+		}
+		for (int v : slots) {
+			if (v != 0) {
+				re[n++] = v;
+			}
+		}
+		return re;
+	}
+
+	public String toString() {
+		int[] values = toArray();
+		Arrays.sort(values);
+		return Arrays.toString(values);
+	}
+}
@@ -61,6 +61,15 @@ public class Controller {
 		return new Pagination(pageSize, page);
 	}
 
+	/**
+	 * Seek pagination cursor from request parameters "cursor" and "pageSize".
+	 */
+	protected Cursor genCursor() {
+		int pageSize = validInt("pageSize", DEF_PAGESIZE);
+		pageSize = pageSize <= 0 ? DEF_PAGESIZE : pageSize;
+		return Cursor.parse(WebContext.get().param("cursor"), pageSize);
+	}
+
 	protected void renderWithoutLayout(String resName) {
 		render(null, resName);
 	}
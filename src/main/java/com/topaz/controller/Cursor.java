@@ -0,0 +1,153 @@
+package com.topaz.controller;
+
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.sql.Timestamp;
+import java.util.Base64;
+import java.util.Date;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Cursor of seek pagination, the counterpart of Pagination for
+ * ModelSelectBuilder.after/before. It carries the sort value and id of the
+ * last row of previous page, and is passed to clients as an opaque token:
+ *
+ * <pre>
+ * Cursor cursor = genCursor();
+ * List&lt;Post&gt; posts = BaseModel.find(Post.class)
+ * 		.before(&quot;createdAt&quot;, cursor.getLastValue(), cursor.getLastId())
+ * 		.limit(0, cursor.getPageSize()).fetch();
+ * Post last = posts.get(posts.size() - 1);
+ * String next = cursor.next(last.getCreatedAt(), last.getId()).getToken();
+ * </pre>
+ *
+ * Sort values of type Integer, Long, Double, BigDecimal, String and Date are
+ * supported, dates come back as Timestamp.
+ */
+public class Cursor {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final int pageSize;
+	private final Object lastValue;
+	private final Integer lastId;
+
+	/**
+	 * Cursor of the first page.
+	 */
+	public Cursor(int pageSize) {
+		this(pageSize, null, null);
+	}
+
+	public Cursor(int pageSize, Object lastValue, Integer lastId) {
+		this.pageSize = pageSize;
+		this.lastValue = lastValue;
+		this.lastId = lastId;
+	}
+
+	/**
+	 * Parse cursor token from client.
+	 *
+	 * @param token
+	 *            null or empty for the first page
+	 * @param pageSize
+	 * @return Cursor
+	 * @throws ControllerException
+	 *             if the token is invalid
+	 */
+	public static Cursor parse(String token, int pageSize) {
+		if (StringUtils.isBlank(token)) {
+			return new Cursor(pageSize);
+		}
+		try {
+			String s = new String(Base64.getUrlDecoder().decode(token), UTF8);
+			int sep = s.indexOf(':');
+			Integer id = sep > 0 ? Integer.valueOf(s.substring(0, sep)) : null;
+			String v = s.substring(sep + 2);
+			Object value;
+			switch (s.charAt(sep + 1)) {
+			case 'i':
+				value = Integer.valueOf(v);
+				break;
+			case 'l':
+				value = Long.valueOf(v);
+				break;
+			case 'd':
+				value = Double.valueOf(v);
+				break;
+			case 'b':
+				value = new BigDecimal(v);
+				break;
+			case 't':
+				value = new Timestamp(Long.parseLong(v));
+				break;
+			case 's':
+				value = v;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown value type");
+			}
+			return new Cursor(pageSize, value, id);
+		} catch (RuntimeException e) {
+			throw new ControllerException("Invalid cursor " + token, e);
+		}
+	}
+
+	/**
+	 * Cursor of the page after the row with lastValue and lastId.
+	 */
+	public Cursor next(Object lastValue, Integer lastId) {
+		return new Cursor(pageSize, lastValue, lastId);
+	}
+
+	/**
+	 * Opaque token of the cursor, null for the first page.
+	 */
+	public String getToken() {
+		if (lastValue == null) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder();
+		if (lastId != null) {
+			sb.append(lastId);
+		}
+		sb.append(':');
+		if (lastValue instanceof Integer) {
+			sb.append('i').append(lastValue);
+		} else if (lastValue instanceof Long) {
+			sb.append('l').append(lastValue);
+		} else if (lastValue instanceof Double) {
+			sb.append('d').append(lastValue);
+		} else if (lastValue instanceof BigDecimal) {
+			sb.append('b').append(((BigDecimal) lastValue).toPlainString());
+		} else if (lastValue instanceof Date) {
+			sb.append('t').append(((Date) lastValue).getTime());
+		} else {
+			sb.append('s').append(lastValue);
+		}
+		return Base64.getUrlEncoder().withoutPadding()
+				.encodeToString(sb.toString().getBytes(UTF8));
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public Object getLastValue() {
+		return lastValue;
+	}
+
+	public Integer getLastId() {
+		return lastId;
+	}
+
+	public boolean isFirst() {
+		return lastValue == null;
+	}
+
+	public String toString() {
+		return "[Cursor: pageSize=" + pageSize + ", lastValue=" + lastValue
+				+ ", lastId=" + lastId + "]";
+	}
+}
@@ -1,6 +1,8 @@
 package com.topaz.controller;
 
-public class Pagination {
+import com.topaz.dao.IPageable;
+
+public class Pagination implements IPageable {
 
 	private boolean ready;
 	private long recordSize;
@@ -1,21 +1,23 @@
 package com.topaz.dao;
 
 import java.io.Serializable;
-import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
-import org.apache.commons.dbutils.DbUtils;
 import org.apache.commons.dbutils.QueryRunner;
 import org.apache.commons.dbutils.handlers.MapListHandler;
 import org.apache.commons.lang.StringUtils;
@@ -29,61 +31,26 @@ import com.topaz.dao.Prop.Relation;
 public class BaseModel implements Serializable {
 
 	private static Log log = LogFactory.getLog(BaseModel.class);
-	static Map<Class<?>, Map<String, PropMapping>> MODEL_PROPS = new HashMap<Class<?>, Map<String, PropMapping>>();
 
 	// Primary Key for model
 	@Prop protected Integer id;
 
-	protected static void prepareModel(Class<?> clazz) {
-		boolean isReady = MODEL_PROPS.containsKey(clazz);
-		if (!isReady) {
-			MODEL_PROPS.put(clazz, extractPropMethods(clazz));
-		}
-	}
+	// Column values as loaded from or last written to the database, null if
+	// unknown(e.g. new model)
+	private transient Object[] loadedState;
 
-	/**
-	 * Extract properties read, write methods and column name
-	 * 
-	 * @return
-	 */
-	private static Map<String, PropMapping> extractPropMethods(Class<?> clazz) {
-		Map<String, PropMapping> result = new HashMap<String, PropMapping>();
-		List<Field> allFields = new ArrayList<Field>();
-		Class<?> curClazz = clazz;
-		while (curClazz != null) {
-			allFields.addAll(Arrays.asList(curClazz.getDeclaredFields()));
-			curClazz = curClazz.getSuperclass();
-		}
-		for (Field f : allFields) {
-			Prop prop = f.getAnnotation(Prop.class);
-			if (prop != null) {
-				String propName = f.getName();
-				String readMethodName = (f.getType() == boolean.class
-						|| f.getType() == Boolean.class ? "is" : "get")
-						+ StringUtils.capitalize(propName);
-				String writeMethodName = "set"
-						+ StringUtils.capitalize(propName);
-
-				Method readMethod = null;
-				Method writeMethod = null;
-				try {
-					readMethod = clazz
-							.getMethod(readMethodName, new Class[] {});
-					writeMethod = clazz.getMethod(writeMethodName, f.getType());
-				} catch (Exception e) {
-					throw new DaoException(e);
-				}
-				result.put(propName, new PropMapping(clazz, f.getType(), prop,
-						propName, readMethod, writeMethod));
-			}
-		}
-		return result;
+	// Snapshot value of a column whose database value is unknown, e.g. left
+	// to its default by insert. Never equals a column value, so always dirty.
+	private static final Object UNKNOWN = new Object();
+
+	protected static void prepareModel(Class<?> clazz) {
+		ModelMetadata.of(clazz);
 	}
 
 	// ==================================== instance methods
 
 	public Map<String, PropMapping> propsMapping() {
-		return MODEL_PROPS.get(this.getClass());
+		return ModelMetadata.of(this.getClass()).getProps();
 	}
 
 	public BaseModel() {
@@ -92,21 +59,23 @@ public class BaseModel implements Serializable {
 
 	public BaseModel(Map<String, Object> props) {
 
-		Class<?> curClazz = this.getClass();
-		prepareModel(curClazz);
-
-		Map<String, PropMapping> mapping = MODEL_PROPS.get(curClazz);
+		Map<String, PropMapping> mapping = ModelMetadata.of(this.getClass())
+				.getProps();
 		if (props != null && !props.isEmpty()) {
 			for (Map.Entry<String, Object> entry : props.entrySet()) {
 				String p = entry.getKey();
 				Object v = entry.getValue();
 
 				PropMapping pm = mapping.get(p);
+				if (pm == null) {
+					throw new DaoException("No property for " + p + " in "
+							+ this.getClass().getName());
+				}
 				try {
-					pm.getWriteMethod().invoke(this, v);
-				} catch (Exception e) {
+					pm.write(this, v);
+				} catch (DaoException e) {
 					log.error(e.getMessage(), e);
-					throw new DaoException(e);
+					throw e;
 				}
 			}
 		}
@@ -121,19 +90,102 @@ public class BaseModel implements Serializable {
 	}
 
 	final public void set(String prop, Object newValue) {
-		Map<String, PropMapping> mapping = MODEL_PROPS.get(this.getClass());
-		PropMapping pm = mapping.get(prop);
+		PropMapping pm = ModelMetadata.of(this.getClass()).getProp(prop);
 		if (null != pm) {
-			try {
-				pm.getWriteMethod().invoke(this, newValue);
-			} catch (Exception e) {
-				throw new DaoException(e);
-			}
+			pm.write(this, newValue);
 		} else {
 			throw new DaoException("No property for " + prop);
 		}
 	}
 
+	/**
+	 * Take snapshot of column values as they are in the database, called
+	 * after the model is loaded or written. Later updates only write columns
+	 * changed since.
+	 */
+	void markLoaded() {
+		markLoaded(null);
+	}
+
+	/**
+	 * Take snapshot after only some columns were written, the others are
+	 * marked unknown and written by the next update.
+	 * 
+	 * @param written
+	 *            indexes of written columns, null for all
+	 */
+	void markLoaded(BitSet written) {
+		ModelMetadata meta = ModelMetadata.of(this.getClass());
+		Object[] state = new Object[meta.getColumnCount()];
+		for (int i = 0; i < state.length; i++) {
+			state[i] = written == null || written.get(i) ? copyOf(meta
+					.getColumn(i).read(this)) : UNKNOWN;
+		}
+		loadedState = state;
+	}
+
+	/**
+	 * Copy of mutable column values, so changes in place are detected.
+	 */
+	private static Object copyOf(Object value) {
+		if (value instanceof Date) {
+			return ((Date) value).clone();
+		} else if (value instanceof byte[]) {
+			return ((byte[]) value).clone();
+		}
+		return value;
+	}
+
+	/**
+	 * Mark models as written. If the current transaction rolls back, their
+	 * snapshots are dropped and the next update writes all columns.
+	 * 
+	 * @param written
+	 *            indexes of written columns, null for all
+	 */
+	private static void markWritten(final Collection<? extends BaseModel> models,
+			BitSet written) {
+		for (BaseModel m : models) {
+			m.markLoaded(written);
+		}
+		DaoManager.getInstance().afterTransaction(new ITransListener() {
+			public void afterCompletion(boolean committed) {
+				if (!committed) {
+					for (BaseModel m : models) {
+						m.loadedState = null;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Columns except id changed since the model was loaded or written, all of
+	 * them if the model was not loaded.
+	 */
+	private BitSet dirtyColumns(ModelMetadata meta) {
+		BitSet dirty = new BitSet(meta.getColumnCount());
+		PropMapping idMapping = meta.getIdMapping();
+		for (int i = 0; i < meta.getColumnCount(); i++) {
+			PropMapping pm = meta.getColumn(i);
+			if (pm != idMapping
+					&& (loadedState == null || !Objects.deepEquals(
+							pm.read(this), loadedState[i]))) {
+				dirty.set(i);
+			}
+		}
+		return dirty;
+	}
+
+	/**
+	 * Check if any column was changed since the model was loaded or written.
+	 * 
+	 * @return true if update() would write any column
+	 */
+	public boolean isDirty() {
+		return !dirtyColumns(ModelMetadata.of(this.getClass())).isEmpty();
+	}
+
 	/**
 	 * Save model and throw exception if failed.
 	 * 
@@ -152,77 +204,130 @@ public class BaseModel implements Serializable {
 	 * @throws DaoException
 	 */
 	public boolean saved() {
-		boolean result = false;
 		if (getId() != null && getId() != 0) {
 			return updated();
 		}
-		Class<?> clazz = this.getClass();
-		Map<String, PropMapping> mapping = MODEL_PROPS.get(clazz);
+		ModelMetadata meta = ModelMetadata.of(this.getClass());
+		List<PropMapping> columns = new ArrayList<PropMapping>(
+				meta.getColumnCount());
+		List<Object> params = new ArrayList<Object>(meta.getColumnCount());
+		BitSet written = new BitSet(meta.getColumnCount());
+		for (int i = 0; i < meta.getColumnCount(); i++) {
+			PropMapping pm = meta.getColumn(i);
+			Object propValue = pm.read(this);
+			if (propValue != null) {
+				columns.add(pm);
+				params.add(propValue);
+				written.set(i);
+			}
+		}
+		ModelInsertBuilder ib = new ModelInsertBuilder(this.getClass(),
+				columns);
+		boolean result = ib.insert(this, params.toArray());
+		if (result) {
+			// Null columns were left to their defaults
+			markWritten(Collections.singletonList(this), written);
+		}
+		return result;
+	}
 
-		final StringBuffer insertSql = new StringBuffer("INSERT INTO ");
-		final StringBuffer valueSql = new StringBuffer(" VALUES(");
-		final List<Object> params = new ArrayList<Object>(mapping.size());
+	/**
+	 * Save models with JDBC batch in one transaction, ds.BatchSize rows per
+	 * batch.
+	 * 
+	 * @param models
+	 * @throws DaoException
+	 */
+	public static void saveAll(Collection<? extends BaseModel> models) {
+		saveAll(models, DaoManager.getInstance().getBatchSize());
+	}
 
-		String tblName = TopazUtil.camel2flat(clazz.getSimpleName());
-		insertSql.append(tblName).append(" (");
-		for (Map.Entry<String, PropMapping> entry : mapping.entrySet()) {
-			PropMapping pm = entry.getValue();
-			if (pm.isTable())
+	/**
+	 * Save models with JDBC batch in one transaction(or the current one).
+	 * New models are grouped by class and non-null columns, each group is
+	 * inserted with one prepared statement and generated ids are set back to
+	 * the models. Models which already have an id are updated.
+	 * 
+	 * @param models
+	 * @param batchSize
+	 *            max rows per executeBatch
+	 * @throws DaoException
+	 *             if batchSize is less than 1
+	 */
+	public static void saveAll(Collection<? extends BaseModel> models,
+			final int batchSize) {
+		ModelSQLBuilder.checkBatchSize(batchSize);
+		if (models == null || models.isEmpty()) {
+			return;
+		}
+		final Map<List<Object>, ColumnGroup> groups = new LinkedHashMap<List<Object>, ColumnGroup>();
+		final List<BaseModel> existing = new ArrayList<BaseModel>();
+		for (BaseModel m : models) {
+			if (m.getId() != null && m.getId() != 0) {
+				existing.add(m);
 				continue;
-			Object propValue;
-			try {
-				propValue = pm.getReadMethod().invoke(this);
-			} catch (Exception e) {
-				throw new DaoException(e);
 			}
-			if (propValue != null) {
-				insertSql.append(pm.getTargetName()).append(",");
-				valueSql.append("?,");
-				params.add(propValue);
+			ModelMetadata meta = ModelMetadata.of(m.getClass());
+			BitSet mask = new BitSet(meta.getColumnCount());
+			Object[] values = new Object[meta.getColumnCount()];
+			int n = 0;
+			for (int i = 0; i < meta.getColumnCount(); i++) {
+				Object v = meta.getColumn(i).read(m);
+				if (v != null) {
+					mask.set(i);
+					values[n++] = v;
+				}
 			}
+			Integer shard = meta.shardOf(m);
+			List<Object> key = Arrays.<Object> asList(m.getClass(), mask, shard);
+			ColumnGroup g = groups.get(key);
+			if (g == null) {
+				g = new ColumnGroup(meta, mask, shard);
+				groups.put(key, g);
+			}
+			g.models.add(m);
+			g.values.add(Arrays.copyOf(values, n));
 		}
-		insertSql.replace(insertSql.length() - 1, insertSql.length(), ")");
-		valueSql.replace(valueSql.length() - 1, valueSql.length(), ")");
-		insertSql.append(valueSql);
-
-		result = (Boolean) DaoManager.getInstance().useConnection(
-				new IConnVisitor() {
-
-					public Object visit(Connection conn) {
-						Boolean result = false;
-						PreparedStatement statement = null;
-						ResultSet resultSet = null;
-						try {
-							statement = conn.prepareStatement(
-									insertSql.toString(),
-									Statement.RETURN_GENERATED_KEYS);
-							for (int i = 0; i < params.size(); i++) {
-								statement.setObject(i + 1, params.get(i));
-							}
-							result = statement.executeUpdate() == 1;
-							resultSet = statement.getGeneratedKeys();
-							if (resultSet.next()) {
-								id = resultSet.getInt(1);
-							}
-							return result;
-						} catch (SQLException e) {
-							throw new DaoException(e);
-						} finally {
-							try {
-								DbUtils.close(resultSet);
-							} catch (SQLException e) {
-								log.error(e.getMessage(), e);
-							}
-							try {
-								DbUtils.close(statement);
-							} catch (SQLException e) {
-								log.error(e.getMessage(), e);
-							}
-						}
+
+		DaoManager.getInstance().useTransaction(new ITransVisitor() {
+			public void visit() {
+				for (ColumnGroup g : groups.values()) {
+					ModelInsertBuilder ib = new ModelInsertBuilder(g.modelClass,
+							g.columns);
+					if (ib.isSharded()) {
+						ib.onShard(g.shard);
 					}
+					ib.batch(g.models, g.values, batchSize);
+					markWritten(g.models, g.mask);
+				}
+				if (!existing.isEmpty()) {
+					updateAll(existing, batchSize);
+				}
+			}
+		});
+	}
 
-				});
-		return result;
+	/**
+	 * Models sharing the same class, written columns and shard.
+	 */
+	private static class ColumnGroup {
+		final Class<? extends BaseModel> modelClass;
+		final Integer shard;
+		final BitSet mask;
+		final List<PropMapping> columns;
+		final List<BaseModel> models = new ArrayList<BaseModel>();
+		final List<Object[]> values = new ArrayList<Object[]>();
+
+		@SuppressWarnings("unchecked")
+		ColumnGroup(ModelMetadata meta, BitSet mask, Integer shard) {
+			modelClass = (Class<? extends BaseModel>) meta.getModelClass();
+			this.shard = shard;
+			this.mask = mask;
+			columns = new ArrayList<PropMapping>(mask.cardinality());
+			for (int i = mask.nextSetBit(0); i >= 0; i = mask.nextSetBit(i + 1)) {
+				columns.add(meta.getColumn(i));
+			}
+		}
 	}
 
 	/**
@@ -244,7 +349,7 @@ public class BaseModel implements Serializable {
 			final Object... sqlParams) {
 
 		DaoManager mgr = DaoManager.getInstance();
-		List<Map<String, Object>> result = mgr.useConnection(new IConnVisitor() {
+		List<Map<String, Object>> result = mgr.useReadConnection(new IConnVisitor() {
 
 			public Object visit(Connection conn) throws SQLException {
 				QueryRunner runner = new QueryRunner();
@@ -255,35 +360,79 @@ public class BaseModel implements Serializable {
 		return result;
 	}
 
+	/**
+	 * Find model by id. Inside a transaction a model already loaded by this
+	 * transaction is returned without query, unless relations are requested.
+	 * Models of cached queries are shared and never returned this way.
+	 * Outside transaction it may be read from a replica which lags behind,
+	 * use find(clazz).where("id", id).fromPrimary().first() or refresh() to
+	 * see a write just made.
+	 * 
+	 * @param clazz
+	 * @param id
+	 * @param withs
+	 * @return model or null
+	 */
 	final static public <T extends BaseModel> T findById(Class<T> clazz, Integer id,
 			String... withs) {
 		prepareModel(clazz);
+		IdentityMap identityMap = DaoManager.getInstance().getIdentityMap();
+		if (identityMap != null && id != null && withs.length == 0) {
+			T loaded = identityMap.get(clazz, id);
+			if (loaded != null) {
+				return loaded;
+			}
+		}
 		ModelSelectBuilder ms = find(clazz, withs).where("id", id);
 		return ms.first();
 	}
 
+	/**
+	 * findById on the async executor of DaoManager.
+	 * 
+	 * @param clazz
+	 * @param id
+	 * @param withs
+	 * @return future of the model or null
+	 * @throws DaoException
+	 *             if called inside transaction
+	 */
+	final static public <T extends BaseModel> CompletableFuture<T> findByIdAsync(
+			final Class<T> clazz, final Integer id, final String... withs) {
+		return DaoManager.getInstance().useAsync(new Supplier<T>() {
+			public T get() {
+				return findById(clazz, id, withs);
+			}
+		});
+	}
+
 	final public void refresh() {
-		BaseModel newModel = find(this.getClass()).where("id", id).first();
+		// Replicas may not have the latest write yet
+		BaseModel newModel = find(this.getClass()).where("id", id)
+				.onShardOf(this).fromPrimary().first();
 		if (newModel == null) {
 			throw new DaoException(
 					"id is not exist, , this entity is not accociate with DB!");
 		}
-		Map<String, PropMapping> props = MODEL_PROPS.get(this.getClass());
-		for (PropMapping pm : props.values()) {
-			Method rm = pm.getReadMethod();
-			Method wm = pm.getWriteMethod();
-			Object v;
+		ModelMetadata meta = ModelMetadata.of(this.getClass());
+		for (PropMapping pm : meta.getProps().values()) {
 			try {
-				v = rm.invoke(newModel);
-				wm.invoke(this, v);
-			} catch (Exception e) {
+				pm.write(this, pm.read(newModel));
+			} catch (DaoException e) {
 				throw new DaoException("Refresh model failed!", e);
 			}
 		}
+		markLoaded();
+		IdentityMap identityMap = DaoManager.getInstance().getIdentityMap();
+		if (identityMap != null) {
+			identityMap.put(this);
+		}
 	}
 
 	/**
-	 * Update model and return the status
+	 * Update columns changed since the model was loaded or written(all
+	 * columns if it was not loaded) and return the status. No statement is
+	 * executed if nothing changed.
 	 * 
 	 * @return boolean
 	 * @throws DaoException
@@ -293,26 +442,261 @@ public class BaseModel implements Serializable {
 			throw new DaoException(
 					"id is not exist, this entity is not accociate with DB!");
 		}
+		ModelMetadata meta = ModelMetadata.of(this.getClass());
+		BitSet dirty = dirtyColumns(meta);
+		if (dirty.isEmpty()) {
+			return true;
+		}
 		ModelUpdateBuilder ub = new ModelUpdateBuilder(this.getClass());
+		for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+			PropMapping pm = meta.getColumn(i);
+			ub.set(pm.getPropertyName(), pm.read(this));
+		}
+
+		ub.where("id", getId());
+		ub.onShardOf(this);
+		boolean result = ub.update() > 0;
+		if (result) {
+			markWritten(Collections.singletonList(this), null);
+		}
+		IdentityMap identityMap = DaoManager.getInstance().getIdentityMap();
+		if (result && identityMap != null) {
+			// Changed columns were written, the model matches its row
+			identityMap.put(this);
+		}
+		return result;
+	}
 
-		Map<String, PropMapping> mapping = MODEL_PROPS.get(this.getClass());
-		PropMapping idMapping = mapping.get("id");
+	/**
+	 * Update models with JDBC batch in one transaction, ds.BatchSize rows per
+	 * batch.
+	 * 
+	 * @param models
+	 * @throws DaoException
+	 */
+	public static void updateAll(Collection<? extends BaseModel> models) {
+		updateAll(models, DaoManager.getInstance().getBatchSize());
+	}
 
-		for (Entry<String, PropMapping> entry : mapping.entrySet()) {
-			PropMapping pm = entry.getValue();
-			if (pm == idMapping || pm.isTable())
+	/**
+	 * Update changed columns of models by id with JDBC batch in one
+	 * transaction(or the current one). Models are grouped by class, changed
+	 * columns and shard, one prepared statement per group. Unchanged models
+	 * are skipped.
+	 * 
+	 * @param models
+	 * @param batchSize
+	 *            max rows per executeBatch
+	 * @throws DaoException
+	 *             if any model has no id or batchSize is less than 1
+	 */
+	public static void updateAll(Collection<? extends BaseModel> models,
+			final int batchSize) {
+		ModelSQLBuilder.checkBatchSize(batchSize);
+		if (models == null || models.isEmpty()) {
+			return;
+		}
+		final Map<List<Object>, ColumnGroup> groups = new LinkedHashMap<List<Object>, ColumnGroup>();
+		for (BaseModel m : models) {
+			if (m.getId() == null || m.getId().longValue() == 0L) {
+				throw new DaoException(
+						"id is not exist, this entity is not accociate with DB! "
+								+ m);
+			}
+			ModelMetadata meta = ModelMetadata.of(m.getClass());
+			BitSet mask = m.dirtyColumns(meta);
+			if (mask.isEmpty()) {
 				continue;
-			Object newValue;
-			try {
-				newValue = pm.getReadMethod().invoke(this);
-			} catch (Exception e) {
-				throw new DaoException(e);
 			}
-			ub.set(pm.getPropertyName(), newValue);
+			Object[] row = new Object[mask.cardinality() + 1];
+			int n = 0;
+			for (int i = mask.nextSetBit(0); i >= 0; i = mask.nextSetBit(i + 1)) {
+				row[n++] = meta.getColumn(i).read(m);
+			}
+			row[n] = m.getId();
+			Integer shard = meta.shardOf(m);
+			List<Object> key = Arrays.<Object> asList(m.getClass(), mask, shard);
+			ColumnGroup g = groups.get(key);
+			if (g == null) {
+				g = new ColumnGroup(meta, mask, shard);
+				groups.put(key, g);
+			}
+			g.models.add(m);
+			g.values.add(row);
+		}
+		if (groups.isEmpty()) {
+			return;
 		}
 
-		ub.where("id", getId());
-		return ub.update() > 0;
+		DaoManager.getInstance().useTransaction(new ITransVisitor() {
+			public void visit() {
+				for (ColumnGroup g : groups.values()) {
+					ModelUpdateBuilder ub = new ModelUpdateBuilder(g.modelClass);
+					if (ub.isSharded()) {
+						ub.onShard(g.shard);
+					}
+					for (PropMapping pm : g.columns) {
+						ub.set(pm.getPropertyName(), null);
+					}
+					ub.where("id", null);
+					ub.batch(g.values, batchSize);
+					markWritten(g.models, null);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Insert models, or update the rows which already exist, with multi-row
+	 * statements in one transaction(or the current one), ds.BatchSize rows
+	 * per statement. MySQL matches rows by primary or unique keys(INSERT ...
+	 * ON DUPLICATE KEY UPDATE), H2 by id(MERGE). Ids generated for new rows
+	 * are not set back to the models.
+	 * 
+	 * @param models
+	 * @param updateProps
+	 *            properties updated on existing rows, all columns except id
+	 *            if empty
+	 * @return affected rows reported by the database
+	 * @throws DaoException
+	 */
+	public static int upsertAll(Collection<? extends BaseModel> models,
+			String... updateProps) {
+		if (models == null || models.isEmpty()) {
+			return 0;
+		}
+		final int batchSize = DaoManager.getInstance().getBatchSize();
+		// Rows by (class, shard)
+		final Map<List<Object>, List<Object[]>> rowsByClass = new LinkedHashMap<List<Object>, List<Object[]>>();
+		for (BaseModel m : models) {
+			ModelMetadata meta = ModelMetadata.of(m.getClass());
+			Object[] row = new Object[meta.getColumnCount()];
+			for (int i = 0; i < row.length; i++) {
+				row[i] = meta.getColumn(i).read(m);
+			}
+			List<Object> key = Arrays.<Object> asList(m.getClass(),
+					meta.shardOf(m));
+			List<Object[]> rows = rowsByClass.get(key);
+			if (rows == null) {
+				rows = new ArrayList<Object[]>();
+				rowsByClass.put(key, rows);
+			}
+			rows.add(row);
+		}
+
+		final String[] props = updateProps;
+		final int[] affected = new int[1];
+		DaoManager.getInstance().useTransaction(new ITransVisitor() {
+			@SuppressWarnings("unchecked")
+			public void visit() {
+				for (Map.Entry<List<Object>, List<Object[]>> entry : rowsByClass
+						.entrySet()) {
+					Class<? extends BaseModel> clazz = (Class<? extends BaseModel>) entry
+							.getKey().get(0);
+					ModelMetadata meta = ModelMetadata.of(clazz);
+					List<PropMapping> updateColumns = new ArrayList<PropMapping>();
+					if (props.length == 0) {
+						for (PropMapping pm : meta.getColumns()) {
+							if (pm != meta.getIdMapping()) {
+								updateColumns.add(pm);
+							}
+						}
+					}
+					for (String prop : props) {
+						PropMapping pm = meta.getProp(prop);
+						if (pm == null || !pm.isColumn()) {
+							throw new DaoException("No column mapping found for property "
+									+ clazz.getName() + "." + prop + "!");
+						}
+						updateColumns.add(pm);
+					}
+					ModelUpsertBuilder ub = new ModelUpsertBuilder(clazz,
+							meta.getColumns(), updateColumns);
+					if (ub.isSharded()) {
+						ub.onShard((Integer) entry.getKey().get(1));
+					}
+					affected[0] += ub.upsert(entry.getValue(), batchSize);
+				}
+			}
+		});
+		return affected[0];
+	}
+
+	/**
+	 * Insert large number of new models, e.g. an initial import. On MySQL the
+	 * models are streamed by "LOAD DATA LOCAL INFILE" in one statement(see
+	 * MySQLBulkLoader), other databases and sharded models fall back to
+	 * batched inserts of ds.BatchSize rows, one transaction per batch unless
+	 * called in a transaction. Models are read from the iterator while
+	 * loading, ids generated by LOAD DATA are not set back to them.
+	 * 
+	 * @param clazz
+	 * @param models
+	 * @return number of rows loaded
+	 * @throws DaoException
+	 */
+	public static <T extends BaseModel> long bulkLoad(Class<T> clazz,
+			Iterator<? extends T> models) {
+		prepareModel(clazz);
+		if (!ModelMetadata.of(clazz).isSharded()) {
+			Long loaded = new MySQLBulkLoader(clazz).load(models);
+			if (loaded != null) {
+				return loaded;
+			}
+		}
+		int batchSize = DaoManager.getInstance().getBatchSize();
+		List<BaseModel> batch = new ArrayList<BaseModel>(batchSize);
+		long loaded = 0;
+		while (models.hasNext()) {
+			batch.add(models.next());
+			if (batch.size() == batchSize || !models.hasNext()) {
+				loaded += insertBatch(clazz, batch, batchSize);
+				batch.clear();
+			}
+		}
+		return loaded;
+	}
+
+	/**
+	 * Insert all columns of models by shard in one transaction.
+	 */
+	private static int insertBatch(final Class<? extends BaseModel> clazz,
+			List<BaseModel> models, final int batchSize) {
+		final ModelMetadata meta = ModelMetadata.of(clazz);
+		final Map<Integer, List<BaseModel>> byShard = new LinkedHashMap<Integer, List<BaseModel>>();
+		for (BaseModel m : models) {
+			Integer shard = meta.shardOf(m);
+			List<BaseModel> shardModels = byShard.get(shard);
+			if (shardModels == null) {
+				shardModels = new ArrayList<BaseModel>();
+				byShard.put(shard, shardModels);
+			}
+			shardModels.add(m);
+		}
+		final int[] inserted = new int[1];
+		DaoManager.getInstance().useTransaction(new ITransVisitor() {
+			public void visit() {
+				for (Map.Entry<Integer, List<BaseModel>> entry : byShard
+						.entrySet()) {
+					List<Object[]> values = new ArrayList<Object[]>(entry
+							.getValue().size());
+					for (BaseModel m : entry.getValue()) {
+						Object[] row = new Object[meta.getColumnCount()];
+						for (int i = 0; i < row.length; i++) {
+							row[i] = meta.getColumn(i).read(m);
+						}
+						values.add(row);
+					}
+					ModelInsertBuilder ib = new ModelInsertBuilder(clazz,
+							meta.getColumns());
+					if (ib.isSharded()) {
+						ib.onShard(entry.getKey());
+					}
+					inserted[0] += ib.batch(entry.getValue(), values, batchSize);
+				}
+			}
+		});
+		return inserted[0];
 	}
 
 	/**
@@ -329,12 +713,14 @@ public class BaseModel implements Serializable {
 	final public boolean increase(String prop) {
 		ModelUpdateBuilder sb = new ModelUpdateBuilder(this.getClass());
 		sb.inc(prop, 1).where("id", getId());
+		sb.onShardOf(this);
 		return sb.update() > 0;
 	}
 
 	final public boolean decrease(String prop) {
 		ModelUpdateBuilder sb = new ModelUpdateBuilder(this.getClass());
 		sb.dec(prop, 1).where("id", getId());
+		sb.onShardOf(this);
 		return sb.update() > 0;
 	}
 
@@ -367,18 +753,82 @@ public class BaseModel implements Serializable {
 	public boolean deleted() {
 		ModelDeleteBuilder db = new ModelDeleteBuilder(this.getClass());
 		db.where("id", id);
+		db.onShardOf(this);
 		return db.update() > 0;
 	}
 
+	/**
+	 * Delete rows of clazz by ids with chunked "id IN (...)" statements.
+	 * 
+	 * @param clazz
+	 * @param ids
+	 * @return number of rows deleted, see ModelDeleteBuilder.deleteByIds(ids)
+	 *         for drivers reporting SUCCESS_NO_INFO
+	 */
+	public static int deleteByIds(Class<? extends BaseModel> clazz,
+			Collection<Integer> ids) {
+		prepareModel(clazz);
+		return new ModelDeleteBuilder(clazz).deleteByIds(ids);
+	}
+
+	/**
+	 * Delete models by their ids in one transaction(or the current one),
+	 * grouped by model class. Models without id are ignored.
+	 * 
+	 * @param models
+	 * @return number of rows deleted, see ModelDeleteBuilder.deleteByIds(ids)
+	 *         for drivers reporting SUCCESS_NO_INFO
+	 */
+	public static int deleteAll(Collection<? extends BaseModel> models) {
+		if (models == null || models.isEmpty()) {
+			return 0;
+		}
+		// Ids by (class, shard)
+		final Map<List<Object>, List<Integer>> idsByClass = new LinkedHashMap<List<Object>, List<Integer>>();
+		for (BaseModel m : models) {
+			if (m.getId() == null) {
+				continue;
+			}
+			List<Object> key = Arrays.<Object> asList(m.getClass(),
+					ModelMetadata.of(m.getClass()).shardOf(m));
+			List<Integer> ids = idsByClass.get(key);
+			if (ids == null) {
+				ids = new ArrayList<Integer>();
+				idsByClass.put(key, ids);
+			}
+			ids.add(m.getId());
+		}
+		final int[] deleted = new int[1];
+		DaoManager.getInstance().useTransaction(new ITransVisitor() {
+			@SuppressWarnings("unchecked")
+			public void visit() {
+				for (Map.Entry<List<Object>, List<Integer>> entry : idsByClass
+						.entrySet()) {
+					Class<? extends BaseModel> clazz = (Class<? extends BaseModel>) entry
+							.getKey().get(0);
+					ModelDeleteBuilder db = new ModelDeleteBuilder(clazz);
+					if (db.isSharded()) {
+						db.onShard((Integer) entry.getKey().get(1));
+					}
+					deleted[0] += db.deleteByIds(entry.getValue());
+				}
+			}
+		});
+		return deleted[0];
+	}
+
 }
 
 class PropMapping {
-	private Class<?> baseType;
-	private Class<?> targetType;
-	private Prop prop;
-	private String propertyName;
-	private Method readMethod;
-	private Method writeMethod;
+	private final Class<?> baseType;
+	private final Class<?> targetType;
+	private final Prop prop;
+	private final String propertyName;
+	private final Method readMethod;
+	private final Method writeMethod;
+	private final PropAccessor accessor;
+	private final String targetName;
+	private final String byKey;
 
 	public PropMapping(Class<?> baseType, Class<?> type, Prop prop,
 			String pName, Method rMethod, Method wMethod) {
@@ -388,6 +838,9 @@ class PropMapping {
 		propertyName = pName;
 		readMethod = rMethod;
 		writeMethod = wMethod;
+		accessor = PropAccessor.create(type, rMethod, wMethod);
+		targetName = buildTargetName();
+		byKey = buildByKey();
 	}
 
 	public Class<?> getTargetType() {
@@ -407,8 +860,12 @@ class PropMapping {
 	}
 
 	public String getByKey() {
+		return byKey;
+	}
+
+	private String buildByKey() {
 		if (StringUtils.isBlank(prop.byKey())) {
-			String typeName = (getRelation() == Relation.BelongsTo ? getTargetName() : baseType
+			String typeName = (getRelation() == Relation.BelongsTo ? targetName : baseType
 					.getSimpleName());
 			return TopazUtil.camel2flat(typeName) + "_id";
 		} else {
@@ -422,6 +879,10 @@ class PropMapping {
 	 * @return
 	 */
 	public String getTargetName() {
+		return targetName;
+	}
+
+	private String buildTargetName() {
 		if (StringUtils.isBlank(prop.targetName())) {
 			return TopazUtil.camel2flat(isColumn() ? propertyName : targetType
 					.getSimpleName());
@@ -443,6 +904,24 @@ class PropMapping {
 		return writeMethod;
 	}
 
+	PropAccessor getAccessor() {
+		return accessor;
+	}
+
+	/**
+	 * Read property value from the model via its accessor.
+	 */
+	Object read(Object model) {
+		return accessor.get(model);
+	}
+
+	/**
+	 * Write property value to the model via its accessor.
+	 */
+	void write(Object model, Object value) {
+		accessor.set(model, value);
+	}
+
 	public String toString() {
 		return "[ColumnMapping: targetName=" + getTargetName()
 				+ ", readMethod=" + readMethod + ", writeMethod=" + writeMethod
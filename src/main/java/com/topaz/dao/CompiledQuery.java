@@ -0,0 +1,253 @@
+package com.topaz.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Query compiled from a builder by compile(): SQL text, number of parameter
+ * slots and row plan are fixed, so the same query shape runs with new
+ * parameters without building SQL or looking up properties again. Immutable
+ * and thread safe, it can be kept in a static field:
+ * 
+ * <pre>
+ * static final CompiledQuery POSTS_OF_USER = BaseModel.find(Post.class)
+ * 		.where(&quot;userId&quot;, null).orderBy(&quot;id&quot;, false).limit(0, 20)
+ * 		.compile();
+ * 
+ * List&lt;Post&gt; posts = POSTS_OF_USER.fetch(userId);
+ * </pre>
+ * 
+ * Parameters are given in the order they were added to the builder, values
+ * given to the builder are only placeholders. LIMIT is part of the SQL text.
+ */
+public final class CompiledQuery {
+
+	private static Log log = LogFactory.getLog(CompiledQuery.class);
+
+	private final Class<? extends BaseModel> modelClass;
+	private final String sql;
+	private final String countSql;
+	private final int paramCount;
+	private final List<PropMapping> relations;
+	private final String[] tables;
+	private final long cacheTtl;
+	private final TopazResultSetHandler<? extends BaseModel> handler;
+	// Built by the first execution
+	private volatile RowPlan plan;
+
+	/**
+	 * @param modelClass
+	 * @param sql
+	 * @param countSql
+	 *            SQL of count(), null if not a query
+	 * @param paramCount
+	 * @param relations
+	 *            relations loaded with the models
+	 * @param tables
+	 *            tables read or changed by the SQL
+	 * @param cacheTtl
+	 *            time to live of cached results, 0 if not cached
+	 */
+	CompiledQuery(Class<? extends BaseModel> modelClass, String sql,
+			String countSql, int paramCount, List<PropMapping> relations,
+			String[] tables, long cacheTtl) {
+		this.modelClass = modelClass;
+		this.sql = sql;
+		this.countSql = countSql;
+		this.paramCount = paramCount;
+		this.relations = Collections
+				.unmodifiableList(new ArrayList<PropMapping>(relations));
+		this.tables = tables.clone();
+		this.cacheTtl = cacheTtl;
+		this.handler = handler(modelClass, sql);
+	}
+
+	private static <T extends BaseModel> TopazResultSetHandler<T> handler(
+			Class<T> modelClass, String sql) {
+		return new TopazResultSetHandler<T>(modelClass, sql);
+	}
+
+	public String getSql() {
+		return sql;
+	}
+
+	public int getParamCount() {
+		return paramCount;
+	}
+
+	private void checkParams(Object[] params) {
+		if (params.length != paramCount) {
+			throw new DaoException(paramCount + " parameters expected but "
+					+ params.length + " given! SQL:" + sql);
+		}
+	}
+
+	private void checkQuery() {
+		if (countSql == null) {
+			throw new DaoException("Not a query! SQL:" + sql);
+		}
+	}
+
+	/**
+	 * Get list of objects with the parameters.
+	 * 
+	 * @param params
+	 * @return List
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends BaseModel> List<T> fetch(final Object... params) {
+		checkQuery();
+		checkParams(params);
+		List<T> result;
+		if (cacheTtl > 0) {
+			QueryCache cache = DaoManager.getInstance().getQueryCache();
+			List<Object> key = Arrays.asList(params);
+			result = (List<T>) cache.get(sql, key);
+			if (result == null) {
+				long[] versions = cache.versions(tables);
+				result = read(params);
+				cache.put(sql, key, tables, versions, result, cacheTtl);
+			}
+			// Shared with other threads, kept out of the identity map
+			return new ArrayList<T>(result);
+		}
+		result = read(params);
+		IdentityMap identityMap = DaoManager.getInstance().getIdentityMap();
+		if (identityMap != null) {
+			identityMap.registerAll(result, relations);
+		}
+		return result;
+	}
+
+	private <T extends BaseModel> List<T> read(final Object[] params) {
+		log.debug("Fetch compiled - " + sql);
+		return DaoManager.getInstance().useReadConnection(new IConnVisitor() {
+
+			@SuppressWarnings("unchecked")
+			public Object visit(Connection conn) throws SQLException {
+				PreparedStatement statement = null;
+				ResultSet rs = null;
+				try {
+					statement = prepareStatement(conn, sql, params);
+					rs = statement.executeQuery();
+					RowPlan p = plan;
+					if (p == null
+							|| p.getColumnCount() != rs.getMetaData()
+									.getColumnCount()) {
+						p = RowPlan.of(modelClass, sql, rs.getMetaData());
+						plan = p;
+					}
+					List<T> result = new ArrayList<T>();
+					while (rs.next()) {
+						result.add((T) handler.mapRow(rs, p));
+					}
+					return result;
+				} finally {
+					DbUtils.closeQuietly(rs);
+					DbUtils.closeQuietly(statement);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Get the first object with the parameters. LIMIT is not added, compile
+	 * the query with limit(0, 1) to read one row only.
+	 * 
+	 * @param params
+	 * @return first object or null
+	 */
+	public <T extends BaseModel> T first(Object... params) {
+		List<T> result = fetch(params);
+		return result.isEmpty() ? null : result.get(0);
+	}
+
+	/**
+	 * Get number of objects with the parameters via "select count(1)".
+	 * 
+	 * @param params
+	 * @return number of objects
+	 */
+	public long count(final Object... params) {
+		checkQuery();
+		checkParams(params);
+		log.debug("Fetch compiled count - " + countSql);
+		Long re = DaoManager.getInstance().useReadConnection(
+				new IConnVisitor() {
+
+					public Object visit(Connection conn) throws SQLException {
+						PreparedStatement statement = null;
+						ResultSet rs = null;
+						try {
+							statement = prepareStatement(conn, countSql, params);
+							rs = statement.executeQuery();
+							return rs.next() ? rs.getLong(1) : 0L;
+						} finally {
+							DbUtils.closeQuietly(rs);
+							DbUtils.closeQuietly(statement);
+						}
+					}
+				});
+		return re;
+	}
+
+	/**
+	 * Execute UPDATE or DELETE with the parameters.
+	 * 
+	 * @param params
+	 * @return number of affected rows
+	 */
+	public int update(final Object... params) {
+		if (countSql != null) {
+			throw new DaoException("Not an update! SQL:" + sql);
+		}
+		checkParams(params);
+		log.debug("Update compiled - " + sql);
+		DaoManager mgr = DaoManager.getInstance();
+		Integer result = mgr.useConnection(new IConnVisitor() {
+
+			public Object visit(Connection conn) throws SQLException {
+				PreparedStatement statement = prepareStatement(conn, sql, params);
+				try {
+					return statement.executeUpdate();
+				} finally {
+					DbUtils.closeQuietly(statement);
+				}
+			}
+		});
+		for (String table : tables) {
+			mgr.getQueryCache().invalidate(table);
+		}
+		ModelSQLBuilder.evictModels(modelClass);
+		return result;
+	}
+
+	private static PreparedStatement prepareStatement(Connection conn,
+			String sqlText, Object[] params) throws SQLException {
+		PreparedStatement statement = conn.prepareStatement(sqlText);
+		try {
+			for (int i = 0; i < params.length; i++) {
+				statement.setObject(i + 1, params[i]);
+			}
+		} catch (SQLException e) {
+			DbUtils.closeQuietly(statement);
+			throw e;
+		}
+		return statement;
+	}
+
+	public String toString() {
+		return "[CompiledQuery: sql=" + sql + ", paramCount=" + paramCount
+				+ "]";
+	}
+}
@@ -0,0 +1,476 @@
+package com.topaz.dao;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.ConnectionFactory;
+import org.apache.commons.dbcp.DelegatingConnection;
+import org.apache.commons.dbcp.PoolingConnection;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.pool.KeyedObjectPool;
+
+/**
+ * Built-in connection pool with a lock free borrow path. A thread first
+ * tries the connections it returned before(thread affine hand back), then
+ * claims any idle connection of the shared bag by compare and set, and only
+ * waits when the pool is exhausted. Waiters are served in order through a
+ * fair hand off queue and give up after maxWait.
+ * 
+ * Connections are validated by Connection.isValid only when they were idle
+ * longer than validationIdleTime, and retired when older than maxLifetime. A
+ * background task closes idle connections above maxIdle and keeps minIdle
+ * connections open.
+ * 
+ * Prepared statements are pooled per connection by dbcp's PoolingConnection
+ * if a statement pool factory is given.
+ */
+final class ConnectionPool implements DataSource {
+
+	private static Log log = LogFactory.getLog(ConnectionPool.class);
+
+	static final int NOT_IN_USE = 0;
+	static final int IN_USE = 1;
+	static final int REMOVED = -1;
+
+	private static final int LOCAL_ENTRIES = 16;
+	private static final int VALIDATION_TIMEOUT = 5;
+
+	/**
+	 * One physical connection of the pool.
+	 */
+	static final class Entry {
+		// Connection handed out, statement pooling wrapper of physical
+		final Connection conn;
+		final Connection physical;
+		final long createdAt;
+		final AtomicInteger state = new AtomicInteger(IN_USE);
+		volatile long lastAccess;
+
+		Entry(Connection conn, Connection physical) {
+			this.conn = conn;
+			this.physical = physical;
+			this.createdAt = System.currentTimeMillis();
+			this.lastAccess = createdAt;
+		}
+
+		boolean claim() {
+			return state.compareAndSet(NOT_IN_USE, IN_USE);
+		}
+	}
+
+	private final String url;
+	private final ConnectionFactory connectionFactory;
+	private final StatementPoolFactory stmtPoolFactory;
+	private final int maxActive;
+	private final int maxIdle;
+	private final int minIdle;
+	private final long maxWait;
+	private final long validationIdleTime;
+	private final long maxLifetime;
+
+	private final CopyOnWriteArrayList<Entry> entries = new CopyOnWriteArrayList<Entry>();
+	private final AtomicInteger total = new AtomicInteger();
+	private final AtomicInteger waiters = new AtomicInteger();
+	private final SynchronousQueue<Entry> handoff = new SynchronousQueue<Entry>(
+			true);
+	private final ThreadLocal<List<Entry>> returned = new ThreadLocal<List<Entry>>() {
+		protected List<Entry> initialValue() {
+			return new ArrayList<Entry>(LOCAL_ENTRIES);
+		}
+	};
+	private final Timer housekeeper;
+
+	/**
+	 * @param url
+	 * @param connectionFactory
+	 *            creates physical connections
+	 * @param stmtPoolFactory
+	 *            prepared statement pools, null to disable
+	 * @param maxActive
+	 * @param maxIdle
+	 * @param minIdle
+	 * @param maxWait
+	 *            milliseconds to wait for a connection, wait forever if <= 0
+	 * @param validationIdleTime
+	 *            milliseconds a connection may be idle without validation
+	 * @param maxLifetime
+	 *            milliseconds before a connection is retired, 0 to keep
+	 * @param housekeepingInterval
+	 *            milliseconds between housekeeping runs
+	 */
+	ConnectionPool(String url, ConnectionFactory connectionFactory,
+			StatementPoolFactory stmtPoolFactory, int maxActive, int maxIdle,
+			int minIdle, long maxWait, long validationIdleTime,
+			long maxLifetime, long housekeepingInterval) {
+		this.url = url;
+		this.connectionFactory = connectionFactory;
+		this.stmtPoolFactory = stmtPoolFactory;
+		this.maxActive = maxActive;
+		this.maxIdle = maxIdle;
+		this.minIdle = minIdle;
+		this.maxWait = maxWait;
+		this.validationIdleTime = validationIdleTime;
+		this.maxLifetime = maxLifetime;
+		housekeeper = new Timer("topaz-pool-housekeeper", true);
+		housekeeper.schedule(new TimerTask() {
+			public void run() {
+				houseKeep();
+			}
+		}, housekeepingInterval, housekeepingInterval);
+	}
+
+	public Connection getConnection() throws SQLException {
+		long start = System.currentTimeMillis();
+		long deadline = maxWait <= 0 ? Long.MAX_VALUE : start + maxWait;
+		while (true) {
+			Entry e = borrow(deadline);
+			if (e == null) {
+				throw new SQLException("Timeout waiting for connection of "
+						+ url + " after " + maxWait + "ms, "
+						+ getNumActive() + " active");
+			}
+			// Expired connections are retired when returned or idle
+			long now = System.currentTimeMillis();
+			if (now - e.lastAccess > validationIdleTime
+					&& !isValid(e.physical)) {
+				log.warn("Connection of " + url + " is broken, retired.");
+				retire(e);
+				continue;
+			}
+			e.lastAccess = now;
+			return new PooledConnection(e);
+		}
+	}
+
+	public Connection getConnection(String username, String password)
+			throws SQLException {
+		throw new SQLFeatureNotSupportedException(
+				"Connections are created with pool credentials.");
+	}
+
+	/**
+	 * Claim an idle connection, create one if the pool is not full, or wait
+	 * for a returned connection.
+	 * 
+	 * @param deadline
+	 * @return entry in use, or null if deadline passed
+	 */
+	private Entry borrow(long deadline) throws SQLException {
+		List<Entry> local = returned.get();
+		for (int i = local.size() - 1; i >= 0; i--) {
+			Entry e = local.remove(i);
+			if (e.claim()) {
+				return e;
+			}
+		}
+		while (true) {
+			for (Entry e : entries) {
+				if (e.claim()) {
+					return e;
+				}
+			}
+			Entry created = create();
+			if (created != null) {
+				return created;
+			}
+			long remain = deadline - System.currentTimeMillis();
+			if (remain <= 0) {
+				return null;
+			}
+			// Wake up now and then: a connection returned just before this
+			// thread started polling is missed by the hand off, and retired
+			// connections leave room for new ones
+			Entry e;
+			waiters.incrementAndGet();
+			try {
+				e = handoff.poll(Math.min(remain, 100), TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new SQLException(
+						"Interrupted while waiting for connection");
+			} finally {
+				waiters.decrementAndGet();
+			}
+			if (e != null && e.claim()) {
+				return e;
+			}
+		}
+	}
+
+	/**
+	 * Create a connection in use if the pool is not full.
+	 * 
+	 * @return entry, or null if the pool is full
+	 */
+	private Entry create() throws SQLException {
+		while (true) {
+			int n = total.get();
+			if (maxActive > 0 && n >= maxActive) {
+				return null;
+			}
+			if (total.compareAndSet(n, n + 1)) {
+				break;
+			}
+		}
+		try {
+			Entry e = newEntry();
+			entries.add(e);
+			return e;
+		} catch (SQLException ex) {
+			total.decrementAndGet();
+			throw ex;
+		} catch (RuntimeException ex) {
+			total.decrementAndGet();
+			throw ex;
+		}
+	}
+
+	private Entry newEntry() throws SQLException {
+		Connection physical;
+		try {
+			physical = connectionFactory.createConnection();
+		} catch (SQLException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new SQLException("Cannot create connection of " + url, e);
+		}
+		if (stmtPoolFactory == null) {
+			return new Entry(physical, physical);
+		}
+		return new Entry(poolStatements(physical), physical);
+	}
+
+	/**
+	 * Wrap physical connection to pool its prepared statements.
+	 */
+	// PoolingConnection of dbcp 1.4 takes a raw pool and is the factory of
+	// that pool, so the factory can only be set(deprecated) after both exist
+	@SuppressWarnings({ "rawtypes", "unchecked", "deprecation" })
+	private Connection poolStatements(Connection physical) {
+		KeyedObjectPool stmtPool = stmtPoolFactory.createPool();
+		PoolingConnection pc = new PoolingConnection(physical, stmtPool);
+		stmtPool.setFactory(pc);
+		return pc;
+	}
+
+	/**
+	 * Put connection back: reset it, then hand it to a thread waiting on the
+	 * hand off queue or keep it for the returning thread.
+	 */
+	private void release(Entry e) {
+		try {
+			// Wrapper of physical connection is passivated already
+			if (!e.physical.getAutoCommit()) {
+				e.physical.rollback();
+				e.physical.setAutoCommit(true);
+			}
+			e.physical.clearWarnings();
+		} catch (SQLException ex) {
+			log.warn("Reset connection of " + url + " failed, retired: "
+					+ ex.getMessage());
+			retire(e);
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (isExpired(e, now)) {
+			retire(e);
+			return;
+		}
+		e.lastAccess = now;
+		e.state.set(NOT_IN_USE);
+		// Never blocks: the offer only succeeds if a waiter is polling now,
+		// otherwise the connection stays in the shared bag
+		if (waiters.get() > 0 && handoff.offer(e)) {
+			return;
+		}
+		List<Entry> local = returned.get();
+		if (local.size() >= LOCAL_ENTRIES) {
+			local.remove(0);
+		}
+		local.add(e);
+	}
+
+	private boolean isExpired(Entry e, long now) {
+		return maxLifetime > 0 && now - e.createdAt > maxLifetime;
+	}
+
+	private boolean isValid(Connection conn) {
+		try {
+			return conn.isValid(VALIDATION_TIMEOUT);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Close and remove connection which is in use by the caller.
+	 */
+	private void retire(Entry e) {
+		e.state.set(REMOVED);
+		if (entries.remove(e)) {
+			total.decrementAndGet();
+		}
+		try {
+			e.conn.close();
+		} catch (SQLException ex) {
+			log.debug("Close retired connection failed: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Retire expired and surplus idle connections, then fill up to minIdle.
+	 */
+	void houseKeep() {
+		try {
+			long now = System.currentTimeMillis();
+			int idle = getNumIdle();
+			for (Entry e : entries) {
+				if ((isExpired(e, now) || (maxIdle >= 0 && idle > maxIdle))
+						&& e.claim()) {
+					retire(e);
+					idle--;
+				}
+			}
+			while (getNumIdle() < minIdle) {
+				Entry e = create();
+				if (e == null) {
+					break;
+				}
+				e.state.set(NOT_IN_USE);
+			}
+		} catch (SQLException ex) {
+			log.warn("Create idle connection of " + url + " failed: "
+					+ ex.getMessage());
+		} catch (RuntimeException ex) {
+			// Timer stops for good if its task throws
+			log.error("Housekeeping of " + url + " failed.", ex);
+		}
+	}
+
+	int getNumActive() {
+		return count(IN_USE);
+	}
+
+	int getNumIdle() {
+		return count(NOT_IN_USE);
+	}
+
+	int getMaxActive() {
+		return maxActive;
+	}
+
+	int getMaxIdle() {
+		return maxIdle;
+	}
+
+	int getMinIdle() {
+		return minIdle;
+	}
+
+	int getNumWaiters() {
+		return waiters.get();
+	}
+
+	private int count(int state) {
+		int n = 0;
+		for (Entry e : entries) {
+			if (e.state.get() == state) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Stop housekeeping and close idle connections, connections in use are
+	 * closed when they are returned.
+	 */
+	void close() {
+		housekeeper.cancel();
+		for (Entry e : entries) {
+			if (e.claim()) {
+				retire(e);
+			}
+		}
+	}
+
+	/**
+	 * Connection handed to the caller, close() returns the physical
+	 * connection to the pool. Statements left open are closed like dbcp does.
+	 */
+	private final class PooledConnection extends DelegatingConnection {
+		private final Entry entry;
+
+		PooledConnection(Entry entry) {
+			super(entry.conn);
+			this.entry = entry;
+			activate();
+		}
+
+		@Override
+		public void close() throws SQLException {
+			if (_closed) {
+				return;
+			}
+			try {
+				passivate();
+			} catch (SQLException e) {
+				_closed = true;
+				retire(entry);
+				throw e;
+			}
+			release(entry);
+		}
+
+		@Override
+		public Map<String, Class<?>> getTypeMap() throws SQLException {
+			checkOpen();
+			return getDelegate().getTypeMap();
+		}
+	}
+
+	public PrintWriter getLogWriter() throws SQLException {
+		return null;
+	}
+
+	public void setLogWriter(PrintWriter out) throws SQLException {
+	}
+
+	public void setLoginTimeout(int seconds) throws SQLException {
+	}
+
+	public int getLoginTimeout() throws SQLException {
+		return 0;
+	}
+
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if (iface.isInstance(this)) {
+			return iface.cast(this);
+		}
+		throw new SQLException(getClass().getName() + " is not a wrapper for "
+				+ iface.getName());
+	}
+
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return iface.isInstance(this);
+	}
+}
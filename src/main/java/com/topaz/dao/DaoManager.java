@@ -2,18 +2,34 @@ package com.topaz.dao;
 
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.Properties;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import javax.sql.DataSource;
 
-import org.apache.commons.dbcp.ConnectionFactory;
-import org.apache.commons.dbcp.DriverManagerConnectionFactory;
-import org.apache.commons.dbcp.PoolableConnectionFactory;
-import org.apache.commons.dbcp.PoolingDataSource;
+import org.apache.commons.dbcp.DelegatingConnection;
 import org.apache.commons.dbutils.DbUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.commons.pool.impl.GenericObjectPool;
 
 import com.topaz.common.Config;
 
@@ -28,31 +44,74 @@ public class DaoManager {
 	private static Log log = LogFactory.getLog(DaoManager.class);
 	private final static DaoManager INST = new DaoManager();
 	private final static ThreadLocal<Connection> LOCAL_TRANS_CONN = new ThreadLocal<Connection>();
-	private final GenericObjectPool<Connection> connectionPool;
-	private final PoolingDataSource ds;
-	
+	private final static ThreadLocal<List<ITransListener>> LOCAL_TRANS_LISTENERS = new ThreadLocal<List<ITransListener>>();
+	private final static ThreadLocal<IdentityMap> LOCAL_IDENTITY_MAP = new ThreadLocal<IdentityMap>();
+	private final static ThreadLocal<Map<Integer, Connection>> LOCAL_TRANS_SHARD_CONNS = new ThreadLocal<Map<Integer, Connection>>();
+	private final DataSourcePool primary;
+	private final ReplicaSet replicas;
+	private final DataSourcePool[] shards;
+	private final ExecutorService shardExecutor;
+	private final ExecutorService asyncExecutor;
+	private final StatementPoolFactory stmtPoolFactory;
+	private final QueryCache queryCache;
+	private final QueryStats queryStats;
+	private final int batchSize;
+	private final int fetchSize;
+
 	private DaoManager() {
 		Config c = Config.getInstance();
 		try {
 			Class.forName(c.getDbDriver());
 
-			connectionPool = new GenericObjectPool<Connection>(null);
-			connectionPool.setMaxIdle(c.getDbPoolMaxIdle());
-			connectionPool.setMinIdle(c.getDbPoolMinIdle());
-			connectionPool.setMaxActive(c.getDbPoolMaxActive());
-			connectionPool.setMaxWait(c.getDbPoolMaxWait());
-			connectionPool.setTestOnBorrow(true);
-
-			Properties props = new Properties();
-			props.setProperty("user", c.getDbUsername());
-			props.setProperty("password", c.getDbPassword());
-			props.setProperty("characterEncoding", "UTF-8");
-			ConnectionFactory connectionFactory = new DriverManagerConnectionFactory(
-					c.getDbUrl(), props);
-			new PoolableConnectionFactory(
-					connectionFactory, connectionPool, null, "SELECT 1", false,
-					true);
-			ds = new PoolingDataSource(connectionPool);
+			stmtPoolFactory = c.isDbPoolPreparedStatements() ? new StatementPoolFactory(
+					c.getDbMaxOpenPreparedStatements()) : null;
+			queryStats = c.isDbQueryStats() ? new QueryStats(
+					c.getDbSlowQueryThreshold()) : null;
+			if (queryStats != null && c.isDbJmx()) {
+				queryStats.registerMBean();
+			}
+			primary = new DataSourcePool("primary", c, c.getDbUrl(),
+					c.getDbUsername(), c.getDbPassword(), stmtPoolFactory,
+					queryStats);
+			List<String> replicaUrls = c.getDbReplicaUrls();
+			if (replicaUrls.isEmpty()) {
+				replicas = null;
+			} else {
+				List<DataSourcePool> pools = new ArrayList<DataSourcePool>();
+				for (String url : replicaUrls) {
+					pools.add(new DataSourcePool("replica" + pools.size(), c,
+							url, c.getDbReplicaUsername(), c
+									.getDbReplicaPassword(), stmtPoolFactory,
+							queryStats));
+				}
+				replicas = new ReplicaSet(pools,
+						ReplicaSet.Balance.of(c.getDbReplicaBalance()),
+						c.getDbReplicaCheckInterval());
+				log.info("Read replicas: " + replicaUrls);
+			}
+			List<String> shardUrls = c.getDbShardUrls();
+			shards = new DataSourcePool[shardUrls.size()];
+			for (int i = 0; i < shards.length; i++) {
+				shards[i] = new DataSourcePool("shard" + i, c,
+						shardUrls.get(i), c.getDbShardUsername(),
+						c.getDbShardPassword(), stmtPoolFactory,
+						queryStats);
+			}
+			// Queue is bounded, when full the caller queries the shard itself
+			int shardThreads = Math.max(1, c.getDbShardThreads());
+			shardExecutor = shards.length == 0 ? null : newExecutor(
+					"topaz-shard", shardThreads, shardThreads * 16,
+					new ThreadPoolExecutor.CallerRunsPolicy());
+			if (shards.length > 0) {
+				log.info("Shards: " + shardUrls);
+			}
+			asyncExecutor = newExecutor("topaz-async",
+					Math.max(1, c.getDbAsyncThreads()),
+					Math.max(1, c.getDbAsyncQueueSize()),
+					new ThreadPoolExecutor.AbortPolicy());
+			batchSize = c.getDbBatchSize();
+			fetchSize = c.getDbFetchSize();
+			queryCache = new QueryCache(c.getDbQueryCacheSize());
 		} catch (ClassNotFoundException e) {
 			log.error(e.getMessage(), e);
 			throw new DaoException(e);
@@ -63,22 +122,156 @@ public class DaoManager {
 
 	}
 
+	/**
+	 * Fixed size executor of daemon threads with bounded queue.
+	 * 
+	 * @param name
+	 *            thread name prefix
+	 * @param threads
+	 * @param queueSize
+	 * @param rejectHandler
+	 *            called when the queue is full
+	 */
+	private static ExecutorService newExecutor(final String name,
+			int threads, int queueSize, RejectedExecutionHandler rejectHandler) {
+		final AtomicInteger threadNo = new AtomicInteger();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+				60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, name + "-"
+								+ threadNo.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				}, rejectHandler);
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
 	public static DaoManager getInstance() {
 		return INST;
 	}
 
+	/**
+	 * DataSource of the primary database.
+	 */
 	public DataSource getDataSource() {
-		return this.ds;
+		return primary.getDataSource();
+	}
+
+	/**
+	 * Default number of rows per JDBC batch(ds.BatchSize).
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Fetch size for streaming queries(ds.FetchSize).
+	 */
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
+	/**
+	 * Cache of query results, used by ModelSelectBuilder.cached(ttl).
+	 */
+	public QueryCache getQueryCache() {
+		return queryCache;
+	}
+
+	/**
+	 * Number of prepared statements served from the statement pools.
+	 */
+	public long getStatementCacheHits() {
+		return stmtPoolFactory == null ? 0 : stmtPoolFactory.getHits();
+	}
+
+	/**
+	 * Number of statements actually prepared on connections.
+	 */
+	public long getStatementCacheMisses() {
+		return stmtPoolFactory == null ? 0 : stmtPoolFactory.getMisses();
+	}
+
+	/**
+	 * Statistics of the primary, replica and shard pools: borrow wait and
+	 * hold time histograms and outstanding borrows.
+	 */
+	public List<PoolSnapshot> getPoolSnapshots() {
+		List<PoolSnapshot> re = new ArrayList<PoolSnapshot>();
+		re.add(primary.snapshot());
+		if (replicas != null) {
+			replicas.addSnapshots(re);
+		}
+		for (DataSourcePool shard : shards) {
+			re.add(shard.snapshot());
+		}
+		return re;
+	}
+
+	/**
+	 * Statistics of executed statements by SQL shape, most total execution
+	 * time first. Empty if ds.QueryStats is off.
+	 */
+	public List<QuerySnapshot> getQuerySnapshots() {
+		return queryStats == null ? new ArrayList<QuerySnapshot>()
+				: queryStats.snapshot();
+	}
+
+	/**
+	 * Drop statistics of executed statements.
+	 */
+	public void resetQueryStats() {
+		if (queryStats != null) {
+			queryStats.reset();
+		}
 	}
 
 	public int getNumActive() {
-		return connectionPool.getNumActive();
+		return primary.getNumActive();
 	}
 
-	private boolean isInTransaction() {
+	public boolean isInTransaction() {
 		return (LOCAL_TRANS_CONN.get() != null);
 	}
 
+	/**
+	 * Models loaded in current transaction, null if not in transaction.
+	 */
+	IdentityMap getIdentityMap() {
+		return LOCAL_IDENTITY_MAP.get();
+	}
+
+	/**
+	 * Register listener called when current transaction completes. Without
+	 * transaction the listener is called at once as committed.
+	 * 
+	 * @param listener
+	 */
+	public void afterTransaction(ITransListener listener) {
+		List<ITransListener> listeners = LOCAL_TRANS_LISTENERS.get();
+		if (listeners == null) {
+			listener.afterCompletion(true);
+		} else {
+			listeners.add(listener);
+		}
+	}
+
+	private void fireAfterCompletion(List<ITransListener> listeners,
+			boolean committed) {
+		for (ITransListener l : listeners) {
+			try {
+				l.afterCompletion(committed);
+			} catch (RuntimeException e) {
+				log.error("Transaction listener " + l + " failed: "
+						+ e.getMessage(), e);
+			}
+		}
+	}
+
 	@SuppressWarnings("unchecked")
 	public <T> T useConnection(IConnVisitor inter) {
 		Connection conn = prepareConnection();
@@ -94,12 +287,174 @@ public class DaoManager {
 		return (T) result;
 	}
 
+	/**
+	 * Number of shard databases(ds.ShardUrls), 0 if sharding is not used.
+	 */
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * Visit connection of the shard. Inside transaction the shard connection
+	 * joins the transaction: it is opened on first use and committed or
+	 * rolled back with the primary connection.
+	 * 
+	 * @param shard
+	 *            shard index
+	 * @param inter
+	 * @return result of visitor
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T useShardConnection(int shard, IConnVisitor inter) {
+		Map<Integer, Connection> transConns = LOCAL_TRANS_SHARD_CONNS.get();
+		Connection conn = null;
+		try {
+			if (transConns != null) {
+				conn = transConns.get(shard);
+				if (conn == null) {
+					conn = shards[shard].getConnection();
+					transConns.put(shard, conn);
+					conn.setAutoCommit(false);
+				}
+			} else {
+				conn = shards[shard].getConnection();
+			}
+			return (T) inter.visit(conn);
+		} catch (SQLException e) {
+			log.error(e.getMessage(), e);
+			throw new DaoException(e);
+		} finally {
+			if (transConns == null) {
+				DbUtils.closeQuietly(conn);
+			}
+		}
+	}
+
+	/**
+	 * Visit connection of every shard and return results in shard order.
+	 * Shards are visited in parallel on the shard executor, or one by one on
+	 * the calling thread inside transaction.
+	 * 
+	 * @param inter
+	 *            must be thread safe
+	 * @return results of visitor
+	 */
+	public List<Object> useAllShards(final IConnVisitor inter) {
+		List<Object> results = new ArrayList<Object>(shards.length);
+		if (isInTransaction() || shards.length == 1) {
+			for (int i = 0; i < shards.length; i++) {
+				results.add(useShardConnection(i, inter));
+			}
+			return results;
+		}
+		List<Future<Object>> futures = new ArrayList<Future<Object>>(
+				shards.length);
+		for (int i = 0; i < shards.length; i++) {
+			final int shard = i;
+			futures.add(shardExecutor.submit(new Callable<Object>() {
+				public Object call() {
+					return useShardConnection(shard, inter);
+				}
+			}));
+		}
+		try {
+			for (Future<Object> f : futures) {
+				results.add(f.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DaoException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof DaoException) {
+				throw (DaoException) e.getCause();
+			}
+			throw new DaoException(e.getCause());
+		} finally {
+			for (Future<Object> f : futures) {
+				f.cancel(true);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Run DAO work on the async executor, which has at most ds.MaxActive
+	 * threads so async calls never wait for more connections than the pool
+	 * holds. The returned future fails with DaoException if the task fails or
+	 * the executor queue(ds.AsyncQueueSize) is full.
+	 * 
+	 * Transactions are bound to the calling thread, so async work is refused
+	 * inside transaction.
+	 * 
+	 * @param task
+	 * @return future of the task result
+	 * @throws DaoException
+	 *             if called inside transaction
+	 */
+	public <T> CompletableFuture<T> useAsync(final Supplier<T> task) {
+		if (isInTransaction()) {
+			throw new DaoException(
+					"Async DAO call is not allowed inside transaction!");
+		}
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			asyncExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						future.complete(task.get());
+					} catch (Throwable e) {
+						future.completeExceptionally(e instanceof DaoException ? e
+								: new DaoException(e));
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(new DaoException(
+					"Too many async DAO calls waiting!", e));
+		}
+		return future;
+	}
+
+	/**
+	 * Same as useConnection but for read only work: outside transaction the
+	 * connection is taken from a healthy read replica if any, otherwise from
+	 * the primary. Inside transaction the transaction connection is used.
+	 * 
+	 * Replicas may lag behind the primary, so reads which must see a write
+	 * just made should run in the transaction of the write.
+	 * 
+	 * @param inter
+	 * @return result of visitor
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T useReadConnection(IConnVisitor inter) {
+		if (replicas == null || isInTransaction()) {
+			return (T) useConnection(inter);
+		}
+		logPoolStatus();
+		Connection conn = replicas.getConnection();
+		if (conn == null) {
+			log.debug("No read replica available, read from primary.");
+			return (T) useConnection(inter);
+		}
+		Object result = null;
+		try {
+			result = inter.visit(conn);
+		} catch (SQLException e) {
+			log.error(e.getMessage(), e);
+			throw new DaoException(e);
+		} finally {
+			closeConnection(conn);
+		}
+		return (T) result;
+	}
+
 	private Connection prepareConnection() {
 		Connection curConn = LOCAL_TRANS_CONN.get();
 		if (curConn == null) {
 			try {
 				logPoolStatus();
-				curConn = ds.getConnection();
+				curConn = primary.getConnection();
 			} catch (SQLException e) {
 				throw new DaoException(e);
 			}
@@ -122,18 +477,115 @@ public class DaoManager {
 
 	public void logPoolStatus() {
 		if (log.isDebugEnabled()) {
-			StringBuffer re = new StringBuffer(
-					"[ConnectionPool Status: NumActive/MaxActive=");
-			re.append(connectionPool.getNumActive()).append("/")
-					.append(connectionPool.getMaxActive());
-			re.append(", MinIdle/NumIdle/MaxIdle=");
-			re.append(connectionPool.getMinIdle()).append("/")
-					.append(connectionPool.getNumIdle()).append("/")
-					.append(connectionPool.getMaxIdle()).append("]");
+			StringBuffer re = new StringBuffer("[ConnectionPool Status: ");
+			primary.appendStatus(re);
+			if (replicas != null) {
+				replicas.appendStatus(re);
+			}
+			for (int i = 0; i < shards.length; i++) {
+				re.append(", Shard[").append(i).append("]: ");
+				shards[i].appendStatus(re);
+			}
+			re.append(", StatementCache Hits/Misses=");
+			re.append(getStatementCacheHits()).append("/")
+					.append(getStatementCacheMisses()).append("]");
 			log.debug(re);
 		}
 	}
 
+	private void closeShardConnections(Map<Integer, Connection> shardConns,
+			Set<Connection> broken) {
+		for (Connection shardConn : shardConns.values()) {
+			if (broken.contains(shardConn)) {
+				discard(shardConn);
+				continue;
+			}
+			try {
+				shardConn.setAutoCommit(true);
+			} catch (SQLException e) {
+				log.error(e.getMessage(), e);
+			} finally {
+				DbUtils.closeQuietly(shardConn);
+			}
+		}
+	}
+
+	/**
+	 * Roll back every connection, each on its own so one failure does not
+	 * leave the others pending.
+	 * 
+	 * @param conns
+	 * @param broken
+	 *            receives connections failed to roll back
+	 * @return first failure, or null if all were rolled back
+	 */
+	static SQLException rollback(Collection<Connection> conns,
+			Set<Connection> broken) {
+		SQLException first = null;
+		for (Connection conn : conns) {
+			try {
+				conn.rollback();
+			} catch (SQLException e) {
+				log.error("Rollback failed: " + e.getMessage(), e);
+				broken.add(conn);
+				if (first == null) {
+					first = e;
+				}
+			}
+		}
+		return first;
+	}
+
+	/**
+	 * Close connection which failed to roll back. setAutoCommit(true) would
+	 * commit its pending work, so the physical connection is closed first
+	 * and the pool retires it when it is returned.
+	 */
+	static void discard(Connection conn) {
+		try {
+			if (conn instanceof DelegatingConnection) {
+				Connection physical = ((DelegatingConnection) conn)
+						.getInnermostDelegate();
+				if (physical != null) {
+					physical.close();
+				}
+			}
+		} catch (SQLException e) {
+			log.warn("Close broken connection failed: " + e.getMessage());
+		} finally {
+			DbUtils.closeQuietly(conn);
+		}
+	}
+
+	/**
+	 * Bind transaction of current thread to the connection.
+	 * 
+	 * @param conn
+	 * @return shard connections joining the transaction, filled when used
+	 */
+	Map<Integer, Connection> beginTransaction(Connection conn) {
+		LOCAL_TRANS_CONN.set(conn);
+		LOCAL_TRANS_LISTENERS.set(new ArrayList<ITransListener>());
+		LOCAL_IDENTITY_MAP.set(new IdentityMap());
+		Map<Integer, Connection> shardConns = new TreeMap<Integer, Connection>();
+		LOCAL_TRANS_SHARD_CONNS.set(shardConns);
+		return shardConns;
+	}
+
+	/**
+	 * Unbind transaction of current thread, connections are left open.
+	 * 
+	 * @return listeners of the transaction
+	 */
+	List<ITransListener> endTransaction() {
+		LOCAL_TRANS_CONN.remove();
+		List<ITransListener> listeners = LOCAL_TRANS_LISTENERS.get();
+		LOCAL_TRANS_LISTENERS.remove();
+		LOCAL_IDENTITY_MAP.remove();
+		LOCAL_TRANS_SHARD_CONNS.remove();
+		return listeners;
+	}
+
 	public void useTransaction(ITransVisitor inter) {
 		// If already in transaction, then just call target method and return
 		if (isInTransaction()) {
@@ -143,17 +595,29 @@ public class DaoManager {
 
 		// Start new transaction and set transaction conn
 		Connection conn = prepareConnection();
-		LOCAL_TRANS_CONN.set(conn);
+		Map<Integer, Connection> shardConns = beginTransaction(conn);
+		boolean committed = false;
+		Set<Connection> broken = Collections
+				.newSetFromMap(new IdentityHashMap<Connection, Boolean>());
 		try {
 			conn.setAutoCommit(false);
 			inter.visit();
+			// Not atomic over databases, shards are committed after primary
 			conn.commit();
+			for (Connection shardConn : shardConns.values()) {
+				shardConn.commit();
+			}
+			committed = true;
 		} catch (Exception e) {
 			// Roll back
-			try {
-				conn.rollback();
-			} catch (SQLException e1) {
-				throw new DaoException(e1);
+			List<Connection> conns = new ArrayList<Connection>();
+			conns.add(conn);
+			conns.addAll(shardConns.values());
+			SQLException e1 = rollback(conns, broken);
+			if (e1 != null) {
+				DaoException re = new DaoException(e1);
+				re.addSuppressed(e);
+				throw re;
 			}
 
 			// Re throw exception
@@ -163,14 +627,22 @@ public class DaoManager {
 				throw new DaoException(e);
 			}
 		} finally {
-			// End transaction set thread local conn to null
-			LOCAL_TRANS_CONN.set(null);
+			List<ITransListener> listeners = endTransaction();
 			try {
-				conn.setAutoCommit(true);
+				if (!broken.contains(conn)) {
+					conn.setAutoCommit(true);
+				}
 			} catch (SQLException e) {
 				throw new DaoException(e);
+			} finally {
+				if (broken.contains(conn)) {
+					discard(conn);
+				} else {
+					closeConnection(conn);
+				}
+				closeShardConnections(shardConns, broken);
+				fireAfterCompletion(listeners, committed);
 			}
-			closeConnection(conn);
 		}
 	}
 }
\ No newline at end of file
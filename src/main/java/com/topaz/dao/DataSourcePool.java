@@ -0,0 +1,142 @@
+package com.topaz.dao;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.ConnectionFactory;
+import org.apache.commons.dbcp.DriverManagerConnectionFactory;
+import org.apache.commons.dbcp.PoolableConnectionFactory;
+import org.apache.commons.dbcp.PoolingDataSource;
+import org.apache.commons.pool.impl.GenericObjectPool;
+
+import com.topaz.common.Config;
+
+/**
+ * Connection pool of one database(primary, replica or shard), sized by the
+ * ds.* pool settings. ds.Pool selects the built-in lock free ConnectionPool
+ * ("Topaz", default) or commons-pool with "SELECT 1" validation on borrow
+ * ("Dbcp"). Borrows of both are instrumented by a PoolMonitor.
+ */
+final class DataSourcePool {
+
+	private static final long HOUSEKEEPING_INTERVAL = 30000;
+
+	private final String url;
+	private final PoolMonitor monitor;
+	// One of them is used
+	private final GenericObjectPool<Connection> connectionPool;
+	private final ConnectionPool pool;
+	private final DataSource ds;
+
+	/**
+	 * @param name
+	 *            primary, replicaN or shardN, names the MBean of the pool
+	 * @param c
+	 * @param url
+	 * @param username
+	 * @param password
+	 * @param stmtPoolFactory
+	 *            prepared statement pools, null to disable
+	 * @param queryStats
+	 *            statistics of executed statements, null to disable
+	 */
+	DataSourcePool(String name, Config c, String url, String username, String password,
+			StatementPoolFactory stmtPoolFactory, QueryStats queryStats) {
+		this.url = url;
+		Properties props = new Properties();
+		props.setProperty("user", username);
+		props.setProperty("password", password);
+		props.setProperty("characterEncoding", "UTF-8");
+		props.setProperty("rewriteBatchedStatements",
+				String.valueOf(c.isDbRewriteBatchedStatements()));
+		props.setProperty("useServerPrepStmts",
+				String.valueOf(c.isDbUseServerPrepStmts()));
+		ConnectionFactory connectionFactory = new DriverManagerConnectionFactory(
+				url, props);
+		if ("Dbcp".equalsIgnoreCase(c.getDbPool())) {
+			pool = null;
+			connectionPool = new GenericObjectPool<Connection>(null);
+			connectionPool.setMaxIdle(c.getDbPoolMaxIdle());
+			connectionPool.setMinIdle(c.getDbPoolMinIdle());
+			connectionPool.setMaxActive(c.getDbPoolMaxActive());
+			connectionPool.setMaxWait(c.getDbPoolMaxWait());
+			connectionPool.setTestOnBorrow(true);
+			new PoolableConnectionFactory(connectionFactory, connectionPool,
+					stmtPoolFactory, "SELECT 1", false, true);
+			ds = new PoolingDataSource(connectionPool);
+		} else {
+			connectionPool = null;
+			pool = new ConnectionPool(url, connectionFactory, stmtPoolFactory,
+					c.getDbPoolMaxActive(), c.getDbPoolMaxIdle(),
+					c.getDbPoolMinIdle(), c.getDbPoolMaxWait(),
+					c.getDbValidationIdleTime(), c.getDbMaxLifetime(),
+					HOUSEKEEPING_INTERVAL);
+			ds = pool;
+		}
+		monitor = new PoolMonitor(name, this, c.getDbLeakDetectionThreshold(),
+				queryStats);
+		if (c.isDbJmx()) {
+			monitor.registerMBean();
+		}
+	}
+
+	String getUrl() {
+		return url;
+	}
+
+	DataSource getDataSource() {
+		return ds;
+	}
+
+	Connection getConnection() throws SQLException {
+		return monitor.borrow(ds);
+	}
+
+	int getNumActive() {
+		return pool != null ? pool.getNumActive() : connectionPool
+				.getNumActive();
+	}
+
+	int getNumIdle() {
+		return pool != null ? pool.getNumIdle() : connectionPool.getNumIdle();
+	}
+
+	int getMaxActive() {
+		return pool != null ? pool.getMaxActive() : connectionPool
+				.getMaxActive();
+	}
+
+	PoolSnapshot snapshot() {
+		return monitor.snapshot();
+	}
+
+	/**
+	 * Append pool status to the buffer.
+	 */
+	void appendStatus(StringBuffer re) {
+		if (pool != null) {
+			re.append("NumActive/MaxActive=");
+			re.append(pool.getNumActive()).append("/")
+					.append(pool.getMaxActive());
+			re.append(", MinIdle/NumIdle/MaxIdle=");
+			re.append(pool.getMinIdle()).append("/")
+					.append(pool.getNumIdle()).append("/")
+					.append(pool.getMaxIdle());
+			re.append(", Waiters=").append(pool.getNumWaiters());
+			monitor.appendTimes(re);
+			return;
+		}
+		re.append("NumActive/MaxActive=");
+		re.append(connectionPool.getNumActive()).append("/")
+				.append(connectionPool.getMaxActive());
+		re.append(", MinIdle/NumIdle/MaxIdle=");
+		re.append(connectionPool.getMinIdle()).append("/")
+				.append(connectionPool.getNumIdle()).append("/")
+				.append(connectionPool.getMaxIdle());
+		re.append(", Waiters=").append(monitor.getNumWaiting());
+		monitor.appendTimes(re);
+	}
+}
@@ -0,0 +1,35 @@
+package com.topaz.dao;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Database specific behaviours, detected from the JDBC connection.
+ */
+public enum Dialect {
+	MYSQL, H2, GENERIC;
+
+	public static Dialect of(Connection conn) throws SQLException {
+		String product = conn.getMetaData().getDatabaseProductName();
+		if (product == null) {
+			return GENERIC;
+		} else if (product.toLowerCase().contains("mysql")) {
+			return MYSQL;
+		} else if (product.toLowerCase().contains("h2")) {
+			return H2;
+		}
+		return GENERIC;
+	}
+
+	/**
+	 * Fetch size to stream a forward only result set row by row. MySQL
+	 * Connector/J only streams with Integer.MIN_VALUE, other drivers take the
+	 * configured size(ds.FetchSize).
+	 * 
+	 * @param configured
+	 * @return fetch size
+	 */
+	public int streamingFetchSize(int configured) {
+		return this == MYSQL ? Integer.MIN_VALUE : configured;
+	}
+}
@@ -0,0 +1,47 @@
+package com.topaz.dao;
+
+/**
+ * JMX view of one connection pool, registered as
+ * com.topaz:type=ConnectionPool,name=primary|replicaN|shardN when ds.Jmx is
+ * on. Times are in microseconds.
+ */
+public interface IConnectionPoolMXBean {
+
+	String getUrl();
+
+	int getNumActive();
+
+	int getNumIdle();
+
+	int getMaxActive();
+
+	int getNumWaiting();
+
+	long getBorrowCount();
+
+	long getBorrowFailures();
+
+	double getBorrowWaitMean();
+
+	long getBorrowWaitP99();
+
+	long getBorrowWaitMax();
+
+	double getHoldTimeMean();
+
+	long getHoldTimeP99();
+
+	long getHoldTimeMax();
+
+	long getLeaks();
+
+	/**
+	 * @return thread, call site and held time of every outstanding borrow
+	 */
+	String[] getOutstanding();
+
+	/**
+	 * @return hold time summary of every call site
+	 */
+	String[] getHoldTimeByCallSite();
+}
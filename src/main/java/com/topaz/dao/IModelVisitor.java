@@ -0,0 +1,8 @@
+package com.topaz.dao;
+
+public interface IModelVisitor<T extends BaseModel> {
+	/**
+	 * Called for each model read, throw exception to stop.
+	 */
+	void visit(T model);
+}
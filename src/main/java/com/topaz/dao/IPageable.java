@@ -0,0 +1,19 @@
+package com.topaz.dao;
+
+/**
+ * Page requested by ModelSelectBuilder.fetchPage, e.g. Pagination of the
+ * controller.
+ */
+public interface IPageable {
+
+	int getOffset();
+
+	int getPageSize();
+
+	/**
+	 * Called with the total number of records after the page is fetched.
+	 * 
+	 * @param recordCount
+	 */
+	void calcPagination(long recordCount);
+}
@@ -0,0 +1,29 @@
+package com.topaz.dao;
+
+/**
+ * JMX view of query statistics, registered as com.topaz:type=QueryStats when
+ * ds.QueryStats and ds.Jmx are on.
+ */
+public interface IQueryStatsMXBean {
+
+	int getShapeCount();
+
+	long getSlowQueries();
+
+	/**
+	 * @return milliseconds, 0 if the slow query log is off
+	 */
+	long getSlowQueryThreshold();
+
+	void setSlowQueryThreshold(long millis);
+
+	/**
+	 * @return summary of the 20 shapes with most total execution time
+	 */
+	String[] getTopQueries();
+
+	/**
+	 * Drop all statistics.
+	 */
+	void reset();
+}
@@ -0,0 +1,14 @@
+package com.topaz.dao;
+
+/**
+ * Map shard key value to shard index, must be stateless and thread safe.
+ */
+public interface IShardFunction {
+	/**
+	 * @param keyValue
+	 *            shard key value, not null
+	 * @param shardCount
+	 * @return shard index in [0, shardCount)
+	 */
+	public int shard(Object keyValue, int shardCount);
+}
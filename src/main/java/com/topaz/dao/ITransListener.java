@@ -0,0 +1,9 @@
+package com.topaz.dao;
+
+public interface ITransListener {
+	/**
+	 * Called after the transaction committed or rolled back and its
+	 * connection released.
+	 */
+	void afterCompletion(boolean committed);
+}
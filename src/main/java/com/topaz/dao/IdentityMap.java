@@ -0,0 +1,100 @@
+package com.topaz.dao;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * First level cache of models loaded in one transaction, keyed by model class
+ * and id. Bound to the transaction thread by DaoManager and dropped when the
+ * transaction commits or rolls back.
+ * 
+ * Not thread safe!
+ */
+final class IdentityMap {
+
+	private final Map<Class<?>, Map<Integer, BaseModel>> models = new HashMap<Class<?>, Map<Integer, BaseModel>>();
+
+	/**
+	 * Get model loaded before in this transaction.
+	 * 
+	 * @param clazz
+	 * @param id
+	 * @return model or null if not loaded
+	 */
+	@SuppressWarnings("unchecked")
+	<T extends BaseModel> T get(Class<T> clazz, Integer id) {
+		Map<Integer, BaseModel> byId = models.get(clazz);
+		return byId == null ? null : (T) byId.get(id);
+	}
+
+	/**
+	 * Register loaded model, the first instance registered for an id is kept.
+	 * 
+	 * @param model
+	 */
+	void register(BaseModel model) {
+		if (model != null && model.getId() != null) {
+			Map<Integer, BaseModel> byId = byId(model.getClass());
+			if (!byId.containsKey(model.getId())) {
+				byId.put(model.getId(), model);
+			}
+		}
+	}
+
+	/**
+	 * Register model which matches its row, replace the instance registered
+	 * for its id.
+	 * 
+	 * @param model
+	 */
+	void put(BaseModel model) {
+		if (model != null && model.getId() != null) {
+			byId(model.getClass()).put(model.getId(), model);
+		}
+	}
+
+	private Map<Integer, BaseModel> byId(Class<?> clazz) {
+		Map<Integer, BaseModel> byId = models.get(clazz);
+		if (byId == null) {
+			byId = new HashMap<Integer, BaseModel>();
+			models.put(clazz, byId);
+		}
+		return byId;
+	}
+
+	/**
+	 * Register loaded models and their loaded relations.
+	 * 
+	 * @param loaded
+	 * @param relations
+	 *            relation mappings loaded with the models
+	 */
+	void registerAll(List<? extends BaseModel> loaded,
+			List<PropMapping> relations) {
+		for (BaseModel m : loaded) {
+			register(m);
+			for (PropMapping pm : relations) {
+				Object sub = pm.read(m);
+				if (sub instanceof BaseModel) {
+					register((BaseModel) sub);
+				} else if (sub instanceof List) {
+					for (Object child : (List<?>) sub) {
+						if (child instanceof BaseModel) {
+							register((BaseModel) child);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drop all models of the class, e.g. after its table was changed.
+	 * 
+	 * @param clazz
+	 */
+	void evict(Class<?> clazz) {
+		models.remove(clazz);
+	}
+}
@@ -0,0 +1,116 @@
+package com.topaz.dao;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of durations. Values are counted in power of two
+ * buckets of microseconds, bucket i holds values in [2^(i-1), 2^i) us, so
+ * percentiles are estimated to the upper bound of their bucket.
+ */
+public final class LatencyHistogram {
+
+	static final int BUCKETS = 40;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record one duration.
+	 *
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		buckets.incrementAndGet(bucketOf(micros));
+		sum.add(micros);
+		long m = max.get();
+		while (micros > m && !max.compareAndSet(m, micros)) {
+			m = max.get();
+		}
+	}
+
+	static int bucketOf(long micros) {
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+	}
+
+	/**
+	 * Copy of current counts, later records do not change it.
+	 */
+	public Snapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+		}
+		return new Snapshot(counts, sum.sum(), max.get());
+	}
+
+	/**
+	 * Immutable counts of a histogram.
+	 */
+	public static final class Snapshot {
+
+		private final long[] counts;
+		private final long count;
+		private final long sumMicros;
+		private final long maxMicros;
+
+		Snapshot(long[] counts, long sumMicros, long maxMicros) {
+			long n = 0;
+			for (long c : counts) {
+				n += c;
+			}
+			this.counts = counts;
+			this.count = n;
+			this.sumMicros = sumMicros;
+			this.maxMicros = maxMicros;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getTotalMicros() {
+			return sumMicros;
+		}
+
+		public long getMaxMicros() {
+			return maxMicros;
+		}
+
+		public double getMeanMicros() {
+			return count == 0 ? 0 : (double) sumMicros / count;
+		}
+
+		/**
+		 * Estimated percentile, e.g. percentile(0.99).
+		 *
+		 * @param p
+		 *            between 0 and 1
+		 * @return upper bound in microseconds of the bucket the percentile
+		 *         falls in, never more than the max
+		 */
+		public long percentile(double p) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(p * count);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank && seen > 0) {
+					return Math.min(maxMicros, i == 0 ? 0 : (1L << i) - 1);
+				}
+			}
+			return maxMicros;
+		}
+
+		public String toString() {
+			return "count=" + count + ", mean=" + Math.round(getMeanMicros())
+					+ "us, p50=" + percentile(0.5) + "us, p99="
+					+ percentile(0.99) + "us, max=" + maxMicros + "us";
+		}
+	}
+}
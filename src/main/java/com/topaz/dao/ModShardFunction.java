@@ -0,0 +1,19 @@
+package com.topaz.dao;
+
+/**
+ * Default shard function: integral numbers modulo shard count, other values
+ * by hash code modulo shard count.
+ */
+public class ModShardFunction implements IShardFunction {
+
+	public int shard(Object keyValue, int shardCount) {
+		long v;
+		if (keyValue instanceof Integer || keyValue instanceof Long
+				|| keyValue instanceof Short || keyValue instanceof Byte) {
+			v = ((Number) keyValue).longValue();
+		} else {
+			v = keyValue.hashCode();
+		}
+		return (int) (((v % shardCount) + shardCount) % shardCount);
+	}
+}
@@ -2,6 +2,14 @@ package com.topaz.dao;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.Map;
 
 import org.apache.commons.dbutils.QueryRunner;
 import org.apache.commons.logging.Log;
@@ -25,6 +33,42 @@ public class ModelDeleteBuilder extends ModelSQLBuilder<ModelDeleteBuilder> {
 		sql.append("DELETE FROM ").append(baseTableName);
 	}
 
+	/**
+	 * Delete rows by ids with "id IN (...)" statements of at most 500 ids,
+	 * chunks of the same size share one batched statement. Conditions added
+	 * to this builder are ignored.
+	 * 
+	 * @param ids
+	 * @return number of rows deleted. Unknown if the driver reports
+	 *         SUCCESS_NO_INFO for the batch, then each statement counts as one
+	 *         row however many ids it deleted
+	 */
+	public int deleteByIds(Collection<?> ids) {
+		if (ids == null || ids.isEmpty()) {
+			return 0;
+		}
+		String prefix = "DELETE FROM " + baseTableName + " WHERE "
+				+ metadata.getIdMapping().getTargetName() + " IN ";
+		Map<Integer, List<Object[]>> chunksBySize = new LinkedHashMap<Integer, List<Object[]>>();
+		for (Object[] chunk : inChunks(new LinkedHashSet<Object>(ids))) {
+			List<Object[]> chunks = chunksBySize.get(chunk.length);
+			if (chunks == null) {
+				chunks = new ArrayList<Object[]>();
+				chunksBySize.put(chunk.length, chunks);
+			}
+			chunks.add(chunk);
+		}
+		int result = 0;
+		for (Map.Entry<Integer, List<Object[]>> entry : chunksBySize.entrySet()) {
+			String deleteSql = prefix + inPlaceholders(entry.getKey());
+			log.debug("Delete by ids - " + deleteSql);
+			result += batch(deleteSql, entry.getValue(), DaoManager
+					.getInstance().getBatchSize());
+		}
+		tableChanged();
+		return result;
+	}
+
 	/**
 	 * Update target table via DELETE
 	 * 
@@ -32,9 +76,7 @@ public class ModelDeleteBuilder extends ModelSQLBuilder<ModelDeleteBuilder> {
 	 */
 	public int update() {
 		log.debug("Delte = " + sql.toString());
-		int result = 0;
-		DaoManager daoMgr = DaoManager.getInstance();
-		result = (Integer) daoMgr.useConnection(new IConnVisitor() {
+		int result = execute(new IConnVisitor() {
 
 			public Object visit(Connection conn) throws SQLException {
 				QueryRunner qr = new QueryRunner();
@@ -42,6 +84,23 @@ public class ModelDeleteBuilder extends ModelSQLBuilder<ModelDeleteBuilder> {
 
 			}
 		});
+		tableChanged();
 		return result;
 	}
+
+	/**
+	 * update() on the async executor of DaoManager, the builder must not be
+	 * changed afterwards.
+	 * 
+	 * @return future of the number of affected rows
+	 * @throws DaoException
+	 *             if called inside transaction
+	 */
+	public CompletableFuture<Integer> updateAsync() {
+		return DaoManager.getInstance().useAsync(new Supplier<Integer>() {
+			public Integer get() {
+				return update();
+			}
+		});
+	}
 }
\ No newline at end of file
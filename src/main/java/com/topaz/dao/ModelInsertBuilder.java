@@ -0,0 +1,167 @@
+package com.topaz.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Build "INSERT INTO table (columns) VALUES(?,...)" for a fixed column list and
+ * execute it for one model or a batch of models, generated ids are assigned
+ * back to the models.
+ *
+ * Not thread safe!
+ */
+public class ModelInsertBuilder extends ModelSQLBuilder<ModelInsertBuilder> {
+
+	private static Log log = LogFactory.getLog(ModelInsertBuilder.class);
+
+	private final List<PropMapping> columns;
+
+	ModelInsertBuilder(Class<? extends BaseModel> clazz,
+			List<PropMapping> columns) {
+		super(clazz);
+		this.columns = columns;
+		buildSQL();
+	}
+
+	@Override
+	protected void buildSQL() {
+		StringBuffer valueSql = new StringBuffer(" VALUES(");
+		sql.append("INSERT INTO ").append(baseTableName).append(" (");
+		for (int i = 0; i < columns.size(); i++) {
+			if (i > 0) {
+				sql.append(",");
+				valueSql.append(",");
+			}
+			sql.append(columns.get(i).getTargetName());
+			valueSql.append("?");
+		}
+		sql.append(")").append(valueSql).append(")");
+	}
+
+	/**
+	 * Insert one model with column values, and set generated id to the model.
+	 *
+	 * @param model
+	 * @param values
+	 *            values in the order of columns
+	 * @return true if one row inserted
+	 */
+	boolean insert(final BaseModel model, final Object[] values) {
+		log.debug("Insert - " + sql);
+		onShardOf(model);
+		Boolean result = useConnection(new IConnVisitor() {
+
+			public Object visit(Connection conn) throws SQLException {
+				PreparedStatement statement = null;
+				ResultSet resultSet = null;
+				try {
+					statement = conn.prepareStatement(sql.toString(),
+							Statement.RETURN_GENERATED_KEYS);
+					bind(statement, values);
+					boolean result = statement.executeUpdate() == 1;
+					resultSet = statement.getGeneratedKeys();
+					if (resultSet.next()) {
+						model.setId(resultSet.getInt(1));
+					}
+					return result;
+				} finally {
+					close(statement, resultSet);
+				}
+			}
+		});
+		tableChanged();
+		return result;
+	}
+
+	/**
+	 * Insert models with JDBC batch, batchSize rows per executeBatch. Generated
+	 * ids are set to models in order. Runs on the transaction connection if
+	 * there is one. Models of sharded class must be on the shard set by
+	 * onShard.
+	 *
+	 * @param models
+	 * @param values
+	 *            column values of each model, same order as models
+	 * @param batchSize
+	 * @return number of rows inserted
+	 */
+	int batch(final List<? extends BaseModel> models,
+			final List<Object[]> values, final int batchSize) {
+		checkBatchSize(batchSize);
+		log.debug("Insert batch of " + models.size() + " - " + sql);
+		Integer result = useConnection(new IConnVisitor() {
+
+			public Object visit(Connection conn) throws SQLException {
+				PreparedStatement statement = null;
+				int inserted = 0;
+				try {
+					statement = conn.prepareStatement(sql.toString(),
+							Statement.RETURN_GENERATED_KEYS);
+					int start = 0;
+					while (start < models.size()) {
+						int end = Math.min(start + batchSize,
+								models.size());
+						for (int i = start; i < end; i++) {
+							bind(statement, values.get(i));
+							statement.addBatch();
+						}
+						inserted += affectedRows(statement
+								.executeBatch(), end - start);
+						assignIds(statement, models.subList(start, end));
+						start = end;
+					}
+					return inserted;
+				} finally {
+					close(statement, null);
+				}
+			}
+		});
+		tableChanged();
+		return result;
+	}
+
+	private void bind(PreparedStatement statement, Object[] values)
+			throws SQLException {
+		for (int i = 0; i < values.length; i++) {
+			statement.setObject(i + 1, values[i]);
+		}
+	}
+
+	private void assignIds(PreparedStatement statement,
+			List<? extends BaseModel> models) throws SQLException {
+		ResultSet keys = statement.getGeneratedKeys();
+		try {
+			int i = 0;
+			while (keys.next() && i < models.size()) {
+				models.get(i++).setId(keys.getInt(1));
+			}
+			if (i < models.size()) {
+				log.warn("Only " + i + " generated keys returned for "
+						+ models.size() + " rows - " + sql);
+			}
+		} finally {
+			DbUtils.closeQuietly(keys);
+		}
+	}
+
+	private void close(Statement statement, ResultSet resultSet) {
+		try {
+			DbUtils.close(resultSet);
+		} catch (SQLException e) {
+			log.error(e.getMessage(), e);
+		}
+		try {
+			DbUtils.close(statement);
+		} catch (SQLException e) {
+			log.error(e.getMessage(), e);
+		}
+	}
+}
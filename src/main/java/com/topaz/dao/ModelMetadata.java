@@ -0,0 +1,224 @@
+package com.topaz.dao;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.topaz.common.TopazUtil;
+
+/**
+ * Immutable mapping descriptor of a model class: table name, property
+ * mappings, id mapping, relations and the ordered column list. One instance
+ * is built per class on first use and published through a ClassValue, so it
+ * can be shared by all threads without locking.
+ */
+final class ModelMetadata {
+
+	private static final ClassValue<ModelMetadata> REGISTRY = new ClassValue<ModelMetadata>() {
+		@Override
+		protected ModelMetadata computeValue(Class<?> type) {
+			return new ModelMetadata(type);
+		}
+	};
+
+	private final Class<?> modelClass;
+	private final String tableName;
+	private final Map<String, PropMapping> props;
+	private final PropMapping idMapping;
+	private final PropMapping[] columns;
+	private final String[] columnNames;
+	private final List<PropMapping> relations;
+	private final PropMapping shardKey;
+	private final IShardFunction shardFunction;
+
+	/**
+	 * Get the metadata of model class, build it if not exist.
+	 *
+	 * @param clazz
+	 * @return ModelMetadata
+	 * @throws DaoException
+	 *             if a property has no getter/setter
+	 */
+	static ModelMetadata of(Class<?> clazz) {
+		return REGISTRY.get(clazz);
+	}
+
+	private ModelMetadata(Class<?> clazz) {
+		modelClass = clazz;
+		tableName = TopazUtil.camel2flat(clazz.getSimpleName());
+
+		Map<String, PropMapping> mapping = extractPropMethods(clazz);
+		List<PropMapping> cols = new ArrayList<PropMapping>(mapping.size());
+		List<PropMapping> rels = new ArrayList<PropMapping>();
+		for (PropMapping pm : mapping.values()) {
+			if (pm.isTable()) {
+				rels.add(pm);
+			} else {
+				cols.add(pm);
+			}
+		}
+		props = Collections.unmodifiableMap(mapping);
+		idMapping = mapping.get("id");
+		columns = cols.toArray(new PropMapping[cols.size()]);
+		columnNames = new String[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			columnNames[i] = columns[i].getTargetName();
+		}
+		relations = Collections.unmodifiableList(rels);
+
+		Sharded sharded = clazz.getAnnotation(Sharded.class);
+		if (sharded != null) {
+			shardKey = mapping.get(sharded.key());
+			if (shardKey == null || !shardKey.isColumn()) {
+				throw new DaoException("Shard key " + sharded.key()
+						+ " is not a column of " + clazz.getName());
+			}
+			try {
+				shardFunction = sharded.function().getDeclaredConstructor()
+						.newInstance();
+			} catch (Exception e) {
+				throw new DaoException(e);
+			}
+		} else {
+			shardKey = null;
+			shardFunction = null;
+		}
+	}
+
+	/**
+	 * Extract properties read, write methods and column name, properties of
+	 * super class come first.
+	 *
+	 * @return
+	 */
+	private static Map<String, PropMapping> extractPropMethods(Class<?> clazz) {
+		Map<String, PropMapping> result = new LinkedHashMap<String, PropMapping>();
+		List<Field> allFields = new ArrayList<Field>();
+		Class<?> curClazz = clazz;
+		while (curClazz != null) {
+			allFields.addAll(0, Arrays.asList(curClazz.getDeclaredFields()));
+			curClazz = curClazz.getSuperclass();
+		}
+		for (Field f : allFields) {
+			Prop prop = f.getAnnotation(Prop.class);
+			if (prop != null) {
+				String propName = f.getName();
+				String readMethodName = (f.getType() == boolean.class
+						|| f.getType() == Boolean.class ? "is" : "get")
+						+ StringUtils.capitalize(propName);
+				String writeMethodName = "set"
+						+ StringUtils.capitalize(propName);
+
+				Method readMethod = null;
+				Method writeMethod = null;
+				try {
+					readMethod = clazz
+							.getMethod(readMethodName, new Class[] {});
+					writeMethod = clazz.getMethod(writeMethodName, f.getType());
+				} catch (Exception e) {
+					throw new DaoException(e);
+				}
+				result.put(propName, new PropMapping(clazz, f.getType(), prop,
+						propName, readMethod, writeMethod));
+			}
+		}
+		return result;
+	}
+
+	public Class<?> getModelClass() {
+		return modelClass;
+	}
+
+	public String getTableName() {
+		return tableName;
+	}
+
+	/**
+	 * All property mappings(columns and relations) keyed by property name.
+	 */
+	public Map<String, PropMapping> getProps() {
+		return props;
+	}
+
+	public PropMapping getProp(String propName) {
+		return props.get(propName);
+	}
+
+	public PropMapping getIdMapping() {
+		return idMapping;
+	}
+
+	public int getColumnCount() {
+		return columns.length;
+	}
+
+	public PropMapping getColumn(int index) {
+		return columns[index];
+	}
+
+	public String getColumnName(int index) {
+		return columnNames[index];
+	}
+
+	/**
+	 * Column mappings in declaration order.
+	 */
+	public List<PropMapping> getColumns() {
+		return Collections.unmodifiableList(Arrays.asList(columns));
+	}
+
+	/**
+	 * Table(relation) mappings in declaration order.
+	 */
+	public List<PropMapping> getRelations() {
+		return relations;
+	}
+
+	public boolean isSharded() {
+		return shardKey != null;
+	}
+
+	public PropMapping getShardKey() {
+		return shardKey;
+	}
+
+	/**
+	 * Shard index of the key value.
+	 * 
+	 * @param keyValue
+	 * @param shardCount
+	 * @return shard index, or null if the model is not sharded, there is no
+	 *         shard configured or the value is null
+	 */
+	public Integer shardOf(Object keyValue, int shardCount) {
+		if (shardKey == null || shardCount <= 0 || keyValue == null) {
+			return null;
+		}
+		return shardFunction.shard(keyValue, shardCount);
+	}
+
+	/**
+	 * Shard index of the model by its shard key value.
+	 * 
+	 * @see #shardOf(Object, int)
+	 */
+	public Integer shardOf(BaseModel model) {
+		if (shardKey == null) {
+			return null;
+		}
+		return shardOf(shardKey.read(model), DaoManager.getInstance()
+				.getShardCount());
+	}
+
+	public String toString() {
+		return "[ModelMetadata: " + modelClass.getName() + " -> " + tableName
+				+ ", columns=" + Arrays.toString(columnNames) + "]";
+	}
+}
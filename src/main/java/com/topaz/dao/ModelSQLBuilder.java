@@ -1,10 +1,17 @@
 package com.topaz.dao;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
-import com.topaz.common.TopazUtil;
+import org.apache.commons.dbutils.DbUtils;
 
 /**
  * Not thread safe!
@@ -30,29 +37,162 @@ abstract public class ModelSQLBuilder<T extends ModelSQLBuilder> {
 
 	}
 
-	protected Class baseModelClazz;
+	/**
+	 * Max number of values bound to one "IN (...)", longer value lists are
+	 * split into several statements.
+	 */
+	private static final int IN_CHUNK_SIZE = 500;
+
+	protected Class<? extends BaseModel> baseModelClazz;
+	protected final ModelMetadata metadata;
 	protected final String baseTableName;
 
 	protected StringBuffer sql = new StringBuffer();
 	protected List<Object> sqlParams = new ArrayList<Object>();
+	// Whether WHERE segment is added by the builder
+	protected boolean whereAdded = false;
+	// Start of the conditions after WHERE, -1 if not added
+	protected int whereStart = -1;
+	// Whether conditions are joined by OR
+	protected boolean orAdded = false;
+
+	// Target shard of sharded model, null if unknown
+	private Integer shard;
+	// Shard given by caller, or conditions can no longer pick a shard
+	private boolean shardFixed = false;
+	// Number of shards, read from DaoManager when first needed
+	private int shardCount = -1;
 
 	public ModelSQLBuilder(Class<? extends BaseModel> clazz) {
 		this.baseModelClazz = clazz;
-		baseTableName = TopazUtil.camel2flat(baseModelClazz.getSimpleName());
+		metadata = ModelMetadata.of(clazz);
+		baseTableName = metadata.getTableName();
 	}
 
 	public ModelSQLBuilder(Class<? extends BaseModel> clazz, String sql, List<Object> sqlParams,
 			SQLBuilderType type) {
 		this.baseModelClazz = clazz;
-		baseTableName = TopazUtil.camel2flat(baseModelClazz.getSimpleName());
+		metadata = ModelMetadata.of(clazz);
+		baseTableName = metadata.getTableName();
 		this.sqlParams.addAll(sqlParams);
 	}
 
 	abstract protected void buildSQL();
 
+	/**
+	 * Split values into parameter arrays of at most IN_CHUNK_SIZE. Each array
+	 * is padded with its last value up to a power of two(or IN_CHUNK_SIZE),
+	 * so only a few distinct IN statements are ever prepared.
+	 * 
+	 * @param values
+	 * @return List of parameter arrays
+	 */
+	protected static List<Object[]> inChunks(Collection<?> values) {
+		List<Object[]> chunks = new ArrayList<Object[]>();
+		Iterator<?> it = values.iterator();
+		int remain = values.size();
+		while (remain > 0) {
+			int n = Math.min(remain, IN_CHUNK_SIZE);
+			int size = Math.min(Integer.highestOneBit(n) == n ? n
+					: Integer.highestOneBit(n) << 1, IN_CHUNK_SIZE);
+			Object[] chunk = new Object[size];
+			for (int i = 0; i < n; i++) {
+				chunk[i] = it.next();
+			}
+			Arrays.fill(chunk, n, size, chunk[n - 1]);
+			chunks.add(chunk);
+			remain -= n;
+		}
+		return chunks;
+	}
+
+	/**
+	 * @param batchSize
+	 * @throws DaoException
+	 *             if batchSize is less than 1
+	 */
+	static void checkBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new DaoException("Batch size must be positive: " + batchSize);
+		}
+	}
+
+	/**
+	 * Execute sqlText once per parameter row with JDBC batch on one
+	 * connection(the transaction connection if there is one), batchSize rows
+	 * per executeBatch. Runs on every shard if the target shard is unknown.
+	 * 
+	 * @param sqlText
+	 * @param rows
+	 * @param batchSize
+	 * @return number of affected rows, not exact if the driver reports
+	 *         SUCCESS_NO_INFO and a statement may change other than one row
+	 */
+	protected int batch(final String sqlText, final List<Object[]> rows,
+			final int batchSize) {
+		checkBatchSize(batchSize);
+		return execute(new IConnVisitor() {
+
+			public Object visit(Connection conn) throws SQLException {
+				PreparedStatement statement = conn
+						.prepareStatement(sqlText);
+				int affected = 0;
+				try {
+					int inBatch = 0;
+					for (Object[] row : rows) {
+						for (int i = 0; i < row.length; i++) {
+							statement.setObject(i + 1, row[i]);
+						}
+						statement.addBatch();
+						if (++inBatch == batchSize) {
+							affected += affectedRows(
+									statement.executeBatch(), inBatch);
+							inBatch = 0;
+						}
+					}
+					if (inBatch > 0) {
+						affected += affectedRows(
+								statement.executeBatch(), inBatch);
+					}
+				} finally {
+					DbUtils.close(statement);
+				}
+				return affected;
+			}
+		});
+	}
+
+	/**
+	 * Sum up executeBatch counts, SUCCESS_NO_INFO(e.g. rewritten batch) counts
+	 * as one row for each statement. Exact for statements changing one row
+	 * each like INSERT of a model, the real count is unknown otherwise.
+	 */
+	static int affectedRows(int[] counts, int batchRows) {
+		int rows = 0;
+		for (int c : counts) {
+			if (c == Statement.SUCCESS_NO_INFO) {
+				return batchRows;
+			}
+			rows += c;
+		}
+		return rows;
+	}
+
+	/**
+	 * @param n
+	 * @return "(?,?,...)" with n placeholders
+	 */
+	protected static String inPlaceholders(int n) {
+		StringBuilder sb = new StringBuilder(n * 2 + 1);
+		sb.append('(');
+		for (int i = 0; i < n; i++) {
+			sb.append(i == 0 ? "?" : ",?");
+		}
+		return sb.append(')').toString();
+	}
+
 	protected PropMapping findProp(String prop) {
-		Map<String, PropMapping> mapping = BaseModel.MODEL_PROPS.get(baseModelClazz);
-		PropMapping pm = mapping.get(prop);
+		PropMapping pm = metadata.getProp(prop);
 		if (pm == null) {
 			throw new DaoException("No column mapping found for property "
 					+ baseModelClazz.getName() + "."
@@ -61,12 +201,181 @@ abstract public class ModelSQLBuilder<T extends ModelSQLBuilder> {
 		return pm;
 	}
 
+	/**
+	 * Compile the statement(e.g. UPDATE or DELETE) for repeated execution by
+	 * CompiledQuery.update(params).
+	 * 
+	 * @return CompiledQuery
+	 * @throws DaoException
+	 *             if the model is sharded
+	 */
+	public CompiledQuery compile() {
+		checkCompilable();
+		return new CompiledQuery(baseModelClazz, sql.toString(), null,
+				sqlParams.size(), Collections.<PropMapping> emptyList(),
+				new String[] { baseTableName }, 0);
+	}
+
+	/**
+	 * Compiled queries run on the primary or replica database, shard can not
+	 * be picked by their parameters.
+	 */
+	protected void checkCompilable() {
+		if (isSharded()) {
+			throw new DaoException("Sharded model can not be compiled! SQL:"
+					+ sql);
+		}
+	}
+
+	/**
+	 * Invalidate cached queries of the base table and models of the base class
+	 * loaded in current transaction, called after data changed.
+	 */
+	protected void tableChanged() {
+		DaoManager.getInstance().getQueryCache().invalidate(baseTableName);
+		evictModels(baseModelClazz);
+	}
+
+	/**
+	 * Evict models of the class loaded in current transaction.
+	 */
+	static void evictModels(Class<? extends BaseModel> clazz) {
+		IdentityMap identityMap = DaoManager.getInstance().getIdentityMap();
+		if (identityMap != null) {
+			identityMap.evict(clazz);
+		}
+	}
+
 	public T c(String prop, Object value) {
 		return c(prop, OP.EQ, value);
 	}
 
+	/**
+	 * Run the statement on shard of the shard key value. Without it the shard
+	 * is picked from "shardKey = ?" conditions, or all shards are used.
+	 * 
+	 * @param keyValue
+	 * @return builder
+	 */
+	public T shardBy(Object keyValue) {
+		return onShard(metadata.shardOf(keyValue, shardCount()));
+	}
+
+	private int shardCount() {
+		if (shardCount < 0) {
+			shardCount = DaoManager.getInstance().getShardCount();
+		}
+		return shardCount;
+	}
+
+	/**
+	 * Route over the given number of shards instead of the configured ones,
+	 * for tests without shard databases.
+	 */
+	T withShardCount(int shardCount) {
+		this.shardCount = shardCount;
+		return (T) this;
+	}
+
+	/**
+	 * @return target shard, null if unknown
+	 */
+	Integer getShard() {
+		return shard;
+	}
+
+	T onShard(Integer shard) {
+		this.shard = shard;
+		this.shardFixed = true;
+		return (T) this;
+	}
+
+	/**
+	 * Run the statement on shard of the model, ignored if the model is not
+	 * sharded.
+	 */
+	T onShardOf(BaseModel model) {
+		if (isSharded()) {
+			onShard(metadata.shardOf(model));
+		}
+		return (T) this;
+	}
+
+	/**
+	 * Pick the shard from condition "shardKey = value".
+	 */
+	private void route(PropMapping pm, OP op, Object value) {
+		if (!shardFixed && op == OP.EQ && pm == metadata.getShardKey()) {
+			shard = metadata.shardOf(value, shardCount());
+		}
+	}
+
+	/**
+	 * Whether the model is sharded and shards are configured.
+	 */
+	protected boolean isSharded() {
+		return metadata.isSharded() && shardCount() > 0;
+	}
+
+	/**
+	 * Whether the statement must run on all shards.
+	 */
+	protected boolean isScatter() {
+		return isSharded() && shard == null;
+	}
+
+	/**
+	 * Visit connection of the target shard, or of the primary database if the
+	 * model is not sharded.
+	 * 
+	 * @throws DaoException
+	 *             if the model is sharded and the target shard is unknown
+	 */
+	protected <R> R useConnection(IConnVisitor visitor) {
+		DaoManager mgr = DaoManager.getInstance();
+		if (!isSharded()) {
+			return mgr.useConnection(visitor);
+		}
+		if (shard == null) {
+			throw new DaoException("Shard key " + baseModelClazz.getName()
+					+ "." + metadata.getShardKey().getPropertyName()
+					+ " is required! SQL:" + sql);
+		}
+		return mgr.useShardConnection(shard, visitor);
+	}
+
+	/**
+	 * Visit read connection: the target shard, or a replica(or primary) if the
+	 * model is not sharded.
+	 */
+	protected <R> R useReadConnection(IConnVisitor visitor) {
+		if (!isSharded()) {
+			return DaoManager.getInstance().useReadConnection(visitor);
+		}
+		return useConnection(visitor);
+	}
+
+	/**
+	 * Run visitor which returns number of affected rows, on every shard if the
+	 * target shard is unknown.
+	 * 
+	 * @return number of affected rows
+	 */
+	protected int execute(IConnVisitor visitor) {
+		if (!isScatter()) {
+			Integer result = useConnection(visitor);
+			return result;
+		}
+		int result = 0;
+		for (Object r : DaoManager.getInstance().useAllShards(visitor)) {
+			result += (Integer) r;
+		}
+		return result;
+	}
+
 	public T c(String prop, OP op, Object value) {
 		PropMapping pm = findProp(prop);
+		route(pm, op, value);
 		sql.append(" " + baseTableName + ".").append(pm.getTargetName())
 				.append(op.getValue()).append("? ");
 		sqlParams.add(value);
@@ -79,6 +388,12 @@ abstract public class ModelSQLBuilder<T extends ModelSQLBuilder> {
 	}
 
 	public T or() {
+		if (!shardFixed) {
+			// Conditions may match rows of any shard
+			shard = null;
+			shardFixed = true;
+		}
+		orAdded = true;
 		sql.append(" OR ");
 		return (T) this;
 	}
@@ -99,7 +414,11 @@ abstract public class ModelSQLBuilder<T extends ModelSQLBuilder> {
 
 	public T where(String propName, OP op, Object value) {
 		PropMapping pm = findProp(propName);
-		sql.append(" WHERE ").append(baseTableName + ".").append(pm.getTargetName())
+		route(pm, op, value);
+		whereAdded = true;
+		sql.append(" WHERE ");
+		whereStart = sql.length();
+		sql.append(baseTableName + ".").append(pm.getTargetName())
 				.append(op.getValue()).append("? ");
 		sqlParams.add(value);
 		return (T) this;
@@ -1,18 +1,39 @@
 package com.topaz.dao;
 
-import java.lang.reflect.Method;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.MathContext;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.apache.commons.dbutils.DbUtils;
 import org.apache.commons.dbutils.QueryRunner;
 import org.apache.commons.dbutils.ResultSetHandler;
+import org.apache.commons.dbutils.handlers.ArrayListHandler;
 import org.apache.commons.dbutils.handlers.ScalarHandler;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.topaz.common.IntHashSet;
+import com.topaz.dao.Prop.Relation;
+
 /**
  * Not thread safe!
  * 
@@ -22,14 +43,50 @@ public class ModelSelectBuilder extends ModelSQLBuilder<ModelSelectBuilder> {
 
 	private static Log log = LogFactory.getLog(ModelSelectBuilder.class);
 
+	// Value types of fetchColumn
+	private static final int INTS = 0;
+	private static final int LONGS = 1;
+	private static final int DOUBLES = 2;
+	private static final int ID_SET = 3;
+
+	private static final Pattern AGGREGATE = Pattern.compile(
+			"(sum|avg|min|max|count)\\(\\s*(\\*|[\\w.]+)\\s*\\)",
+			Pattern.CASE_INSENSITIVE);
+
 	private String[] with;
+	// Relations loaded with the base models
+	private List<PropMapping> relations = new ArrayList<PropMapping>();
 	private List<PropMapping> hasMany;
+	// Projection: columns selected or excluded by table alias(base table name
+	// or relation), all columns of an alias if absent
+	private Map<String, Set<PropMapping>> selected;
+	private Map<String, Set<PropMapping>> excluded;
 
 	private boolean limited = false;
+	// Position of " LIMIT" in sql, offset and count, used to merge shards
+	private int limitStart = -1;
+	private int limitOffset;
+	private int limitCount;
+	// Order of the query, used to merge shards
+	private List<OrderKey> orders = new ArrayList<OrderKey>(2);
+	// Position of " FROM" and the first " ORDER BY" in sql, used by count()
+	private int fromStart = -1;
+	private int orderStart = -1;
+	private boolean joined = false;
+	private long cacheTtl = 0;
+	private long countTtl = 0;
+	private boolean approximate = false;
+	private boolean foundRows = false;
+	private boolean primary = false;
+	// Columns of GROUP BY for aggregate()
+	private List<String> groupBy;
+	// Tables read by the query, used to invalidate cached results
+	private Set<String> tables = new LinkedHashSet<String>();
 
 	public ModelSelectBuilder(Class<? extends BaseModel> clazz, String... with) {
 		super(clazz);
 		this.with = with;
+		tables.add(baseTableName);
 
 		buildSQL();
 	}
@@ -39,61 +96,210 @@ public class ModelSelectBuilder extends ModelSQLBuilder<ModelSelectBuilder> {
 		super(clazz);
 		this.sql.append(sql);
 		this.sqlParams.addAll(sqlParams);
+		tables.add(baseTableName);
 	}
 
 	@Override
 	public void buildSQL() {
 
-		Map<String, PropMapping> baseMapping = BaseModel.MODEL_PROPS
-				.get(baseModelClazz);
-		sql.append("SELECT " + baseTableName + ".* ");
 		String fromSeg = " FROM " + baseTableName;
 
 		for (String w : with) {
-			PropMapping tblProp = baseMapping.get(w);
+			PropMapping tblProp = metadata.getProp(w);
 			if (tblProp.isTable()) {
-
-				// Get target type and column names
-				BaseModel.prepareModel(tblProp.getTargetType());
-				Map<String, PropMapping> subMapping = BaseModel.MODEL_PROPS
-						.get(tblProp.getTargetType());
-				for (PropMapping pm : subMapping.values()) {
-					if (pm.isTable())
-						continue;
-					String cName = pm.getTargetName();
-					String colFullName = w + "." + cName;
-					sql.append("," + colFullName + " AS '" + colFullName + "'");
+				relations.add(tblProp);
+				if (tblProp.getRelation() == Relation.HasMany) {
+					// Loaded by a separate query after the base rows
+					if (hasMany == null) {
+						hasMany = new ArrayList<PropMapping>();
+					}
+					hasMany.add(tblProp);
+					tables.add(tblProp.getTargetName());
+					continue;
 				}
+
 				String tblName = tblProp.getTargetName();
 				String byKey = tblProp.getByKey();
+				tables.add(tblName);
 
+				joined = true;
 				switch (tblProp.getRelation()) {
 				case HasOne:
 					fromSeg += (" JOIN " + tblName + " " + w + " ON "
 							+ baseTableName + ".id=" + w + "." + byKey);
 					break;
-				case HasMany:
-					if (hasMany == null) {
-						hasMany = new ArrayList<PropMapping>();
-					}
-					hasMany.add(tblProp);
-					break;
 				case BelongsTo:
 					fromSeg += (" JOIN " + tblName + " " + w + " ON "
 							+ baseTableName + "." + byKey + "=" + w + ".id");
 					break;
+				default:
+					break;
 				}
 			}
 		}
+		sql.append(selectSeg());
+		fromStart = sql.length();
 		sql.append(fromSeg);
 	}
 
+	/**
+	 * "SELECT" segment with columns of base model and joined models, columns
+	 * of joined models are labeled "with.column".
+	 */
+	private String selectSeg() {
+		StringBuilder seg = new StringBuilder("SELECT ");
+		if (isProjected(baseTableName)) {
+			String sep = "";
+			for (PropMapping col : metadata.getColumns()) {
+				if (isSelected(baseTableName, col, metadata)) {
+					seg.append(sep).append(baseTableName).append(".")
+							.append(col.getTargetName());
+					sep = ",";
+				}
+			}
+		} else {
+			seg.append(baseTableName).append(".*");
+		}
+		seg.append(" ");
+		for (PropMapping tblProp : relations) {
+			if (tblProp.getRelation() == Relation.HasMany) {
+				continue;
+			}
+			String w = tblProp.getPropertyName();
+			ModelMetadata subMeta = ModelMetadata.of(tblProp.getTargetType());
+			for (PropMapping col : subMeta.getColumns()) {
+				if (isSelected(w, col, subMeta)) {
+					String colFullName = w + "." + col.getTargetName();
+					seg.append("," + colFullName + " AS '" + colFullName + "'");
+				}
+			}
+		}
+		return seg.toString();
+	}
+
+	private boolean isProjected(String alias) {
+		return (selected != null && selected.containsKey(alias))
+				|| (excluded != null && excluded.containsKey(alias));
+	}
+
+	private boolean isSelected(String alias, PropMapping col, ModelMetadata meta) {
+		if (col == meta.getIdMapping()) {
+			return true;
+		}
+		Set<PropMapping> cols = selected == null ? null : selected.get(alias);
+		if (cols != null) {
+			return cols.contains(col);
+		}
+		cols = excluded == null ? null : excluded.get(alias);
+		return cols == null || !cols.contains(col);
+	}
+
+	/**
+	 * Select only columns of the properties instead of "SELECT table.*",
+	 * other properties of the loaded models are left null(or default value
+	 * of primitive types). Use "with.prop" for properties of joined models,
+	 * which then keep only the listed columns. Id columns are always
+	 * selected. HasMany relations are loaded with all columns.
+	 * 
+	 * Unloaded columns are not written by update() of the loaded models
+	 * unless they are set.
+	 * 
+	 * @param props
+	 *            column properties, e.g. "title", "author.name"
+	 * @return ModelSelectBuilder
+	 */
+	public ModelSelectBuilder select(String... props) {
+		if (selected == null) {
+			selected = new HashMap<String, Set<PropMapping>>();
+		}
+		return project(selected, props);
+	}
+
+	/**
+	 * Select all columns except those of the properties, e.g. large TEXT or
+	 * BLOB columns not needed by a list.
+	 * 
+	 * @param props
+	 *            column properties, e.g. "content", "author.avatar"
+	 * @return ModelSelectBuilder
+	 * @see #select(String...)
+	 */
+	public ModelSelectBuilder exclude(String... props) {
+		if (excluded == null) {
+			excluded = new HashMap<String, Set<PropMapping>>();
+		}
+		return project(excluded, props);
+	}
+
+	private ModelSelectBuilder project(Map<String, Set<PropMapping>> projection,
+			String[] props) {
+		if (fromStart < 0) {
+			throw new DaoException(
+					"Projection is not supported by query of SQL! SQL:" + sql);
+		}
+		for (String prop : props) {
+			String alias = aliasOf(prop);
+			PropMapping pm = columnOf(prop);
+			Set<PropMapping> cols = projection.get(alias);
+			if (cols == null) {
+				cols = new HashSet<PropMapping>();
+				projection.put(alias, cols);
+			}
+			cols.add(pm);
+		}
+		// Replace the select segment, positions after it move
+		String seg = selectSeg();
+		int delta = seg.length() - fromStart;
+		sql.replace(0, fromStart, seg);
+		fromStart += delta;
+		if (whereStart >= 0) {
+			whereStart += delta;
+		}
+		if (orderStart >= 0) {
+			orderStart += delta;
+		}
+		if (limitStart >= 0) {
+			limitStart += delta;
+		}
+		return this;
+	}
+
+	/**
+	 * Table alias of "prop"(base table) or "with.prop"(joined relation).
+	 */
+	private String aliasOf(String prop) {
+		int dot = prop.indexOf('.');
+		return dot < 0 ? baseTableName : prop.substring(0, dot);
+	}
+
+	/**
+	 * Column mapping of "prop" or "with.prop" of a joined relation.
+	 */
+	private PropMapping columnOf(String prop) {
+		int dot = prop.indexOf('.');
+		PropMapping pm;
+		if (dot < 0) {
+			pm = findProp(prop);
+		} else {
+			String alias = prop.substring(0, dot);
+			PropMapping tblProp = metadata.getProp(alias);
+			if (tblProp == null || !relations.contains(tblProp)
+					|| tblProp.getRelation() == Relation.HasMany) {
+				throw new DaoException("No joined relation found for " + prop
+						+ "! SQL:" + sql);
+			}
+			pm = findProp(alias, prop.substring(dot + 1));
+		}
+		if (!pm.isColumn()) {
+			throw new DaoException("Property " + prop
+					+ " is not a column! SQL:" + sql);
+		}
+		return pm;
+	}
+
 	private PropMapping findProp(String with, String prop) {
-		Map<String, PropMapping> mapping = BaseModel.MODEL_PROPS
-				.get(baseModelClazz);
-		PropMapping tblPm = mapping.get(with);
-		mapping = BaseModel.MODEL_PROPS.get(tblPm.getTargetType());
-		PropMapping pm = mapping.get(prop);
+		PropMapping tblPm = metadata.getProp(with);
+		PropMapping pm = ModelMetadata.of(tblPm.getTargetType()).getProp(prop);
 		if (pm == null) {
 			throw new DaoException("No column mapping found for property "
 					+ with + "." + prop + "!");
@@ -120,7 +326,10 @@ public class ModelSelectBuilder extends ModelSQLBuilder<ModelSelectBuilder> {
 	public ModelSelectBuilder where(String with, String propName, OP op,
 			Object value) {
 		PropMapping pm = findProp(with, propName);
-		sql.append(" WHERE ").append(with + ".").append(pm.getTargetName())
+		whereAdded = true;
+		sql.append(" WHERE ");
+		whereStart = sql.length();
+		sql.append(with + ".").append(pm.getTargetName())
 				.append(op.getValue()).append("? ");
 		sqlParams.add(value);
 		return this;
@@ -144,12 +353,17 @@ public class ModelSelectBuilder extends ModelSQLBuilder<ModelSelectBuilder> {
 		return this;
 	}
 
+	/**
+	 * Order by the property, later calls add more order keys.
+	 * 
+	 * @param prop
+	 * @param ascending
+	 * @return ModelSelectBuilder
+	 */
 	public ModelSelectBuilder orderBy(String prop, boolean ascending) {
 		PropMapping pm = findProp(prop);
 		if (null != pm) {
-			sql.append(" ORDER BY ").append(baseTableName).append(".")
-					.append(pm.getTargetName());
-			sql.append(ascending ? " asc " : " desc ");
+			addOrder(null, pm, baseTableName, ascending);
 		}
 		return this;
 	}
@@ -158,24 +372,382 @@ public class ModelSelectBuilder extends ModelSQLBuilder<ModelSelectBuilder> {
 			boolean ascending) {
 		PropMapping pm = findProp(with, propName);
 		if (null != pm) {
-			sql.append(" ORDER BY ").append(with + ".")
-					.append(pm.getTargetName());
-			sql.append(ascending ? " asc " : " desc ");
+			addOrder(metadata.getProp(with), pm, with, ascending);
+		}
+		return this;
+	}
+
+	private void addOrder(PropMapping relation, PropMapping pm, String alias,
+			boolean ascending) {
+		if (limited) {
+			throw new DaoException("Order must be added before limit! SQL:"
+					+ sql);
+		}
+		if (orders.isEmpty()) {
+			markOrder();
+			sql.append(" ORDER BY ");
+		} else {
+			sql.setLength(sql.length() - 1);
+			sql.append(", ");
+		}
+		orders.add(new OrderKey(relation, pm, ascending));
+		sql.append(alias).append(".").append(pm.getTargetName());
+		sql.append(ascending ? " asc " : " desc ");
+	}
+
+	/**
+	 * Seek to rows after lastValue of a unique property in ascending order,
+	 * i.e. "prop > lastValue ORDER BY prop asc". With an index on the column
+	 * every page costs the same as the first one, unlike "LIMIT offset,count".
+	 * Call it after all conditions and before limit(0, pageSize).
+	 * 
+	 * @param prop
+	 *            unique, not null property
+	 * @param lastValue
+	 *            value of the last row of previous page, null for first page
+	 * @return ModelSelectBuilder
+	 */
+	public ModelSelectBuilder after(String prop, Object lastValue) {
+		return seek(prop, lastValue, null, true);
+	}
+
+	/**
+	 * Seek to rows after (lastValue, lastId) in order of "prop asc, id asc",
+	 * for properties which are not unique. Index on (prop, id) is needed.
+	 * 
+	 * @param prop
+	 *            not null property
+	 * @param lastValue
+	 *            value of the last row of previous page, null for first page
+	 * @param lastId
+	 *            id of the last row of previous page
+	 * @return ModelSelectBuilder
+	 * @see #after(String, Object)
+	 */
+	public ModelSelectBuilder after(String prop, Object lastValue,
+			Integer lastId) {
+		return seek(prop, lastValue, lastId, true);
+	}
+
+	/**
+	 * Same as after(prop, lastValue) in descending order.
+	 * 
+	 * @see #after(String, Object)
+	 */
+	public ModelSelectBuilder before(String prop, Object lastValue) {
+		return seek(prop, lastValue, null, false);
+	}
+
+	/**
+	 * Same as after(prop, lastValue, lastId) in descending order.
+	 * 
+	 * @see #after(String, Object, Integer)
+	 */
+	public ModelSelectBuilder before(String prop, Object lastValue,
+			Integer lastId) {
+		return seek(prop, lastValue, lastId, false);
+	}
+
+	private ModelSelectBuilder seek(String prop, Object lastValue,
+			Integer lastId, boolean ascending) {
+		if (fromStart < 0) {
+			throw new DaoException(
+					"Seek is not supported by query of SQL! SQL:" + sql);
 		}
+		if (limited || !orders.isEmpty()) {
+			throw new DaoException(
+					"Seek must be added before order and limit! SQL:" + sql);
+		}
+		PropMapping pm = findProp(prop);
+		PropMapping idPm = metadata.getIdMapping();
+		boolean tieById = lastId != null && pm != idPm;
+		String col = baseTableName + "." + pm.getTargetName();
+		String idCol = baseTableName + "." + idPm.getTargetName();
+		String op = ascending ? " > " : " < ";
+		if (lastValue != null) {
+			if (whereAdded && orAdded) {
+				// Seek applies to all rows matched by the conditions
+				sql.insert(whereStart, "(").append(")");
+			}
+			sql.append(whereAdded ? " AND " : " WHERE ");
+			whereAdded = true;
+			if (tieById) {
+				// Range on col first so index on (col, id) is used
+				sql.append(col).append(ascending ? " >= " : " <= ")
+						.append("? AND (").append(col).append(op)
+						.append("? OR ").append(idCol).append(op)
+						.append("?) ");
+				sqlParams.add(lastValue);
+				sqlParams.add(lastValue);
+				sqlParams.add(lastId);
+			} else {
+				sql.append(col).append(op).append("? ");
+				sqlParams.add(lastValue);
+			}
+		}
+		String dir = ascending ? " asc" : " desc";
+		markOrder();
+		orders.add(new OrderKey(null, pm, ascending));
+		sql.append(" ORDER BY ").append(col).append(dir);
+		if (pm != idPm) {
+			// Same order on every page, also when values are not unique
+			orders.add(new OrderKey(null, idPm, ascending));
+			sql.append(", ").append(idCol).append(dir);
+		}
+		sql.append(" ");
 		return this;
 	}
 
+	private void markOrder() {
+		if (orderStart < 0) {
+			orderStart = sql.length();
+		}
+	}
+
 	public ModelSelectBuilder limit(Integer offset, Integer count) {
 		if (limited) {
 			throw new DaoException("Limit segment already added! SQL:" + sql);
 		}
 		if (offset != null && count != null) {
+			limitStart = sql.length();
+			limitOffset = offset;
+			limitCount = count;
 			sql.append(" LIMIT ").append(offset).append(",").append(count);
 			limited = true;
 		}
 		return this;
 	}
 
+	/**
+	 * Cache results of fetch(), first() and count() of this query for ttl
+	 * milliseconds, keyed by SQL and parameters. Cached results are dropped
+	 * when any table of the query is changed by model builders. Cached models
+	 * are shared between callers and must be treated as read only, they are
+	 * not registered in the identity map of current transaction.
+	 * 
+	 * @param ttl
+	 *            time to live in milliseconds
+	 * @return ModelSelectBuilder
+	 * @throws DaoException
+	 *             if the query is of SQL, whose tables are not known
+	 */
+	public ModelSelectBuilder cached(long ttl) {
+		checkCacheable();
+		this.cacheTtl = ttl;
+		return this;
+	}
+
+	/**
+	 * Cache the total of count() and fetchPage() for ttl milliseconds, keyed
+	 * by FROM and WHERE of the query and parameters, so paging through the
+	 * same list counts only once. Rows of the pages are not cached.
+	 * 
+	 * @param ttl
+	 *            time to live in milliseconds
+	 * @return ModelSelectBuilder
+	 * @throws DaoException
+	 *             if the query is of SQL, whose tables are not known
+	 */
+	public ModelSelectBuilder countCached(long ttl) {
+		checkCacheable();
+		this.countTtl = ttl;
+		return this;
+	}
+
+	/**
+	 * Cached results are dropped by tables of the query, a query of SQL may
+	 * read tables other than its model's.
+	 */
+	private void checkCacheable() {
+		if (fromStart < 0) {
+			throw new DaoException(
+					"Cache is not supported by query of SQL! SQL:" + sql);
+		}
+	}
+
+	/**
+	 * Estimate the total of count() and fetchPage() from MySQL table
+	 * statistics instead of counting rows, for huge tables where an exact
+	 * total is not needed. The estimate may be far off, other databases
+	 * still count exactly.
+	 * 
+	 * @return ModelSelectBuilder
+	 */
+	public ModelSelectBuilder approximateCount() {
+		this.approximate = true;
+		return this;
+	}
+
+	/**
+	 * Read rows and total of fetchPage() in one round trip on MySQL by
+	 * SQL_CALC_FOUND_ROWS and FOUND_ROWS(), instead of a COUNT query after
+	 * the rows. It saves a round trip, but MySQL has deprecated both since
+	 * 8.0.17 and scans all matching rows to count them, so a COUNT that is
+	 * answered from an index is usually faster. Other databases count as
+	 * usual.
+	 * 
+	 * @return ModelSelectBuilder
+	 */
+	public ModelSelectBuilder foundRows() {
+		this.foundRows = true;
+		return this;
+	}
+
+	/**
+	 * Read from the primary database even if replicas are configured, for
+	 * reads which must see a write just made outside the transaction.
+	 * 
+	 * @return ModelSelectBuilder
+	 */
+	public ModelSelectBuilder fromPrimary() {
+		this.primary = true;
+		return this;
+	}
+
+	@Override
+	protected <R> R useReadConnection(IConnVisitor visitor) {
+		if (primary) {
+			return useConnection(visitor);
+		}
+		return super.useReadConnection(visitor);
+	}
+
+	/**
+	 * Run visitor with a read connection(replica if configured), or return
+	 * the cached result if cached(ttl) is set.
+	 * 
+	 * @param sqlText
+	 * @param visitor
+	 * @param count
+	 *            true if visitor returns a count, false for a list of models
+	 * @param ttl
+	 *            time to live of cached result, 0 to read without cache
+	 */
+	private Object query(String sqlText, IConnVisitor visitor, boolean count,
+			long ttl) {
+		if (ttl <= 0) {
+			return read(visitor, count);
+		}
+		QueryCache cache = DaoManager.getInstance().getQueryCache();
+		Object result = cache.get(sqlText, sqlParams);
+		if (result == null) {
+			String[] tbls = tables.toArray(new String[tables.size()]);
+			long[] versions = cache.versions(tbls);
+			result = read(visitor, count);
+			cache.put(sqlText, sqlParams, tbls, versions, result, ttl);
+		}
+		return result;
+	}
+
+	/**
+	 * Run visitor on the read connection, or on all shards in parallel if the
+	 * shard is unknown and merge the results.
+	 */
+	@SuppressWarnings("unchecked")
+	private Object read(IConnVisitor visitor, boolean count) {
+		if (!isScatter()) {
+			return useReadConnection(visitor);
+		}
+		List<Object> parts = DaoManager.getInstance().useAllShards(visitor);
+		if (count) {
+			long total = 0;
+			for (Object p : parts) {
+				total += ((Number) p).longValue();
+			}
+			return total;
+		}
+		List<BaseModel> merged = new ArrayList<BaseModel>();
+		for (Object p : parts) {
+			merged.addAll((List<BaseModel>) p);
+		}
+		if (!orders.isEmpty()) {
+			Collections.sort(merged, orderComparator());
+		}
+		if (limitStart >= 0) {
+			int from = Math.min(limitOffset, merged.size());
+			int to = Math.min(limitOffset + limitCount, merged.size());
+			merged = new ArrayList<BaseModel>(merged.subList(from, to));
+		}
+		return merged;
+	}
+
+	/**
+	 * Order of rows merged from shards.
+	 */
+	Comparator<BaseModel> orderComparator() {
+		return new OrderComparator(orders);
+	}
+
+	/**
+	 * SQL to run on each shard: "LIMIT offset,count" becomes "LIMIT
+	 * 0,offset+count", the page is cut after merging.
+	 */
+	String shardSql() {
+		if (limitStart < 0) {
+			return sql.toString();
+		}
+		String limitSeg = " LIMIT " + limitOffset + "," + limitCount;
+		return sql.substring(0, limitStart) + " LIMIT 0,"
+				+ (limitOffset + limitCount)
+				+ sql.substring(limitStart + limitSeg.length());
+	}
+
+	/**
+	 * One key of ORDER BY, relation is null for properties of the base model.
+	 */
+	private static final class OrderKey {
+		final PropMapping relation;
+		final PropMapping prop;
+		final boolean asc;
+
+		OrderKey(PropMapping relation, PropMapping prop, boolean asc) {
+			this.relation = relation;
+			this.prop = prop;
+			this.asc = asc;
+		}
+
+		Object value(BaseModel m) {
+			Object target = m;
+			if (relation != null) {
+				target = relation.read(m);
+				if (target == null) {
+					return null;
+				}
+			}
+			return prop.read(target);
+		}
+	}
+
+	/**
+	 * Order of merged shard rows, same as ORDER BY of the query(NULL first
+	 * when ascending): by the first key, then the next on ties.
+	 */
+	private static final class OrderComparator implements Comparator<BaseModel> {
+		private final List<OrderKey> keys;
+
+		OrderComparator(List<OrderKey> keys) {
+			this.keys = keys;
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		public int compare(BaseModel m1, BaseModel m2) {
+			for (OrderKey key : keys) {
+				Comparable v1 = (Comparable) key.value(m1);
+				Comparable v2 = (Comparable) key.value(m2);
+				int re;
+				if (v1 == null || v2 == null) {
+					re = v1 == v2 ? 0 : (v1 == null ? -1 : 1);
+				} else {
+					re = v1.compareTo(v2);
+				}
+				if (re != 0) {
+					return key.asc ? re : -re;
+				}
+			}
+			return 0;
+		}
+	}
+
 	public <T extends BaseModel> T first() {
 		if (!limited) {
 			limit(0, 1);
@@ -185,71 +757,862 @@ public class ModelSelectBuilder extends ModelSQLBuilder<ModelSelectBuilder> {
 	}
 
 	/**
-	 * Get list of objects from table
+	 * Get list of objects from table. For sharded model without known shard
+	 * the query runs on all shards in parallel, rows are merged by all ORDER
+	 * BY keys and then cut by LIMIT.
 	 * 
 	 * @return List
 	 */
 	@SuppressWarnings("unchecked")
 	public <T extends BaseModel> List<T> fetch() {
 		log.debug("Fetch  - " + sql);
-		DaoManager mgr = DaoManager.getInstance();
-		List<T> result = (List<T>) mgr.useConnection(new IConnVisitor() {
+		final String sqlText = sql.toString();
+		final String execSql = isScatter() ? shardSql() : sqlText;
+		List<T> result = (List<T>) query(sqlText, new IConnVisitor() {
 
 			public Object visit(Connection conn) throws SQLException {
-				QueryRunner runner = new QueryRunner();
-				TopazResultSetHandler<T> h = new TopazResultSetHandler<T>(
-						baseModelClazz);
-				List<T> result = runner.query(conn, sql.toString(), h,
-						sqlParams.toArray());
-
-				if (hasMany != null) {
-					for (T re : result) {
-						for (PropMapping pm : hasMany) {
-							String byKey = pm.getByKey();
-							String sql = "SELECT * FROM " + pm.getTargetName() + " WHERE " + byKey
-									+ "=?";
-							TopazResultSetHandler subHandler = new TopazResultSetHandler(
-									pm.getTargetType());
-							List<Object> subResult = runner.query(conn, sql, subHandler,
-									new Object[] { re.getId() });
-
-							Method write = pm.getWriteMethod();
-							try {
-								write.invoke(re, subResult);
-							} catch (Exception e) {
-								log.error(e.getMessage(), e);
-								throw new DaoException(e);
-							}
+				return load(conn, execSql);
+			}
+		}, false, cacheTtl);
+		register(result);
+		return cacheTtl > 0 ? new ArrayList<T>(result) : result;
+	}
+
+	/**
+	 * Fetch one page of objects and pass the total number of objects to
+	 * page.calcPagination. The total is counted on the same connection after
+	 * the rows, or read by FOUND_ROWS() if foundRows() is set. Cached,
+	 * approximate and sharded queries run fetch() and count().
+	 * 
+	 * @param page
+	 *            offset and size of the page, e.g. Pagination
+	 * @return objects of the page
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends BaseModel> List<T> fetchPage(IPageable page) {
+		if (limited) {
+			throw new DaoException("Limit segment already added! SQL:" + sql);
+		}
+		final String countSql = countSql();
+		QueryCache cache = DaoManager.getInstance().getQueryCache();
+		Long total = countTtl > 0 ? (Long) cache.get(countSql, sqlParams)
+				: null;
+		limit(page.getOffset(), page.getPageSize());
+		List<T> result;
+		if (total != null || approximate || cacheTtl > 0 || isScatter()) {
+			result = fetch();
+			if (total == null) {
+				total = count();
+			}
+		} else {
+			log.debug("Fetch Page - " + sql);
+			final String sqlText = sql.toString();
+			String[] tbls = tables.toArray(new String[tables.size()]);
+			long[] versions = cache.versions(tbls);
+			Object[] re = useReadConnection(new IConnVisitor() {
+
+				public Object visit(Connection conn) throws SQLException {
+					return loadPage(conn, sqlText, countSql);
+				}
+			});
+			result = (List<T>) re[0];
+			total = (Long) re[1];
+			register(result);
+			if (countTtl > 0) {
+				cache.put(countSql, sqlParams, tbls, versions, total, countTtl);
+			}
+		}
+		page.calcPagination(total);
+		return result;
+	}
+
+	/**
+	 * Load rows of the page and the total on the connection.
+	 * 
+	 * @return rows and total
+	 */
+	Object[] loadPage(Connection conn, String sqlText, String countSql)
+			throws SQLException {
+		if (!foundRows || Dialect.of(conn) != Dialect.MYSQL
+				|| !sqlText.startsWith("SELECT ")) {
+			return new Object[] { load(conn, sqlText),
+					countRows(conn, countSql) };
+		}
+		List<BaseModel> rows = load(conn, "SELECT SQL_CALC_FOUND_ROWS "
+				+ sqlText.substring(7));
+		Number found = new QueryRunner().query(conn, "SELECT FOUND_ROWS()",
+				new ScalarHandler<Number>(1));
+		return new Object[] { rows, found.longValue() };
+	}
+
+	/**
+	 * Compile the query for repeated execution by CompiledQuery.fetch(params),
+	 * first(params) or count(params). Settings of cached(ttl) are kept.
+	 * 
+	 * @return CompiledQuery
+	 * @throws DaoException
+	 *             if the model is sharded or HasMany relations are loaded
+	 */
+	@Override
+	public CompiledQuery compile() {
+		checkCompilable();
+		if (hasMany != null) {
+			throw new DaoException(
+					"HasMany relations are not supported by compiled query! SQL:"
+							+ sql);
+		}
+		return new CompiledQuery(baseModelClazz, sql.toString(), countSql(),
+				sqlParams.size(), relations, tables.toArray(new String[tables
+						.size()]), cacheTtl);
+	}
+
+	/**
+	 * Handler mapping rows to models of the builder, typed as the caller
+	 * expects them.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T extends BaseModel> TopazResultSetHandler<T> handler(
+			String sqlText) {
+		return new TopazResultSetHandler<T>((Class<T>) baseModelClazz, sqlText);
+	}
+
+	/**
+	 * Load objects and their HasMany relations.
+	 */
+	private <T extends BaseModel> List<T> load(Connection conn, String execSql)
+			throws SQLException {
+		QueryRunner runner = new QueryRunner();
+		TopazResultSetHandler<T> h = handler(execSql);
+		List<T> result = runner.query(conn, execSql, h, sqlParams.toArray());
+
+		if (hasMany != null) {
+			loadHasMany(conn, runner, result);
+		}
+		return result;
+	}
+
+	private void register(List<? extends BaseModel> result) {
+		if (selected != null || excluded != null) {
+			// Partially loaded models must not be returned as complete ones
+			return;
+		}
+		if (cacheTtl > 0) {
+			// Cached models are shared with other threads, changes made in
+			// the transaction must not reach them
+			return;
+		}
+		IdentityMap identityMap = DaoManager.getInstance().getIdentityMap();
+		if (identityMap != null) {
+			identityMap.registerAll(result, relations);
+		}
+	}
+
+	/**
+	 * fetch() on the async executor of DaoManager, the builder must not be
+	 * changed afterwards.
+	 * 
+	 * @return future of the list of objects
+	 * @throws DaoException
+	 *             if called inside transaction
+	 */
+	public <T extends BaseModel> CompletableFuture<List<T>> fetchAsync() {
+		return DaoManager.getInstance().useAsync(new Supplier<List<T>>() {
+			public List<T> get() {
+				return fetch();
+			}
+		});
+	}
+
+	/**
+	 * first() on the async executor of DaoManager, the builder must not be
+	 * changed afterwards.
+	 * 
+	 * @return future of the first object or null
+	 * @throws DaoException
+	 *             if called inside transaction
+	 */
+	public <T extends BaseModel> CompletableFuture<T> firstAsync() {
+		return DaoManager.getInstance().useAsync(new Supplier<T>() {
+			public T get() {
+				return first();
+			}
+		});
+	}
+
+	/**
+	 * Load HasMany relations of the parents with one "byKey IN (...)" query
+	 * per chunk of parent ids instead of one query per parent, then assign
+	 * the children grouped by foreign key.
+	 * 
+	 * @param conn
+	 * @param runner
+	 * @param parents
+	 * @throws SQLException
+	 */
+	private <T extends BaseModel> void loadHasMany(Connection conn,
+			QueryRunner runner, List<T> parents) throws SQLException {
+		if (parents.isEmpty()) {
+			return;
+		}
+		Set<Integer> parentIds = new LinkedHashSet<Integer>(parents.size());
+		for (T p : parents) {
+			if (p.getId() != null) {
+				parentIds.add(p.getId());
+			}
+		}
+		for (PropMapping pm : hasMany) {
+			final String byKey = pm.getByKey();
+			final Map<Integer, List<Object>> children = new HashMap<Integer, List<Object>>(
+					parentIds.size() * 2);
+			String selectSeg = "SELECT * FROM " + pm.getTargetName()
+					+ " WHERE " + byKey + " IN ";
+			for (Object[] ids : inChunks(parentIds)) {
+				final String subSql = selectSeg + inPlaceholders(ids.length);
+				log.debug("Fetch HasMany - " + subSql);
+				@SuppressWarnings({ "unchecked", "rawtypes" })
+				final TopazResultSetHandler<Object> subHandler = new TopazResultSetHandler(
+						pm.getTargetType(), subSql);
+				runner.query(conn, subSql, new ResultSetHandler<Object>() {
+					public Object handle(ResultSet rs) throws SQLException {
+						subHandler.handleGrouped(rs, byKey, children);
+						return null;
+					}
+				}, ids);
+			}
+			for (T p : parents) {
+				List<Object> subResult = children.get(p.getId());
+				pm.write(p, subResult == null ? new ArrayList<Object>()
+						: subResult);
+			}
+		}
+	}
+
+	/**
+	 * Stream rows to the visitor one by one instead of loading them into a
+	 * list, memory stays bounded no matter how many rows are read. The
+	 * connection(or the transaction connection) is held until all rows are
+	 * visited or the visitor throws, then statement and result set are closed.
+	 * 
+	 * With MySQL the rows are streamed(fetch size Integer.MIN_VALUE), so the
+	 * visitor must not run other queries on the same connection, e.g. inside
+	 * the same transaction. HasMany relations are not supported.
+	 * 
+	 * Sharded models without known shard are streamed shard by shard, order
+	 * and limit apply within each shard.
+	 * 
+	 * @param visitor
+	 * @return number of rows visited
+	 */
+	public <T extends BaseModel> long forEach(final IModelVisitor<T> visitor) {
+		if (hasMany != null) {
+			throw new DaoException(
+					"HasMany relations are not supported while streaming! SQL:"
+							+ sql);
+		}
+		log.debug("Stream - " + sql);
+		final DaoManager mgr = DaoManager.getInstance();
+		IConnVisitor streamer = new IConnVisitor() {
+
+			@SuppressWarnings("unchecked")
+			public Object visit(Connection conn) throws SQLException {
+				String sqlText = sql.toString();
+				PreparedStatement statement = null;
+				ResultSet rs = null;
+				long rows = 0;
+				try {
+					statement = conn.prepareStatement(sqlText,
+							ResultSet.TYPE_FORWARD_ONLY,
+							ResultSet.CONCUR_READ_ONLY);
+					statement.setFetchSize(Dialect.of(conn).streamingFetchSize(
+							mgr.getFetchSize()));
+					for (int i = 0; i < sqlParams.size(); i++) {
+						statement.setObject(i + 1, sqlParams.get(i));
+					}
+					rs = statement.executeQuery();
+					TopazResultSetHandler<T> h = handler(sqlText);
+					RowPlan plan = RowPlan.of(baseModelClazz, sqlText,
+							rs.getMetaData());
+					while (rs.next()) {
+						visitor.visit(h.mapRow(rs, plan));
+						rows++;
+					}
+				} finally {
+					DbUtils.closeQuietly(rs);
+					if (statement != null) {
+						// Statement may go back to the statement pool
+						try {
+							statement.setFetchSize(0);
+						} catch (SQLException e) {
+							log.warn(e.getMessage(), e);
 						}
 					}
+					DbUtils.closeQuietly(statement);
 				}
+				return rows;
+			}
+		};
+		if (!isScatter()) {
+			Long result = useReadConnection(streamer);
+			return result;
+		}
+		long rows = 0;
+		for (int i = 0; i < mgr.getShardCount(); i++) {
+			rows += (Long) mgr.useShardConnection(i, streamer);
+		}
+		return rows;
+	}
 
-				return result;
+	/**
+	 * Values of one column instead of models, read straight from the result
+	 * set into a primitive array, e.g. ids or foreign keys of millions of
+	 * rows. Conditions, order and limit of the query apply, NULL is read as
+	 * 0. With MySQL the rows are streamed(fetch size Integer.MIN_VALUE).
+	 * 
+	 * Sharded models without known shard are read from all shards in shard
+	 * order, order and limit are not supported then.
+	 * 
+	 * @param prop
+	 *            column property, e.g. "authorId" or "author.score"
+	 * @return values in row order
+	 */
+	public int[] fetchInts(String prop) {
+		return (int[]) fetchColumn(prop, INTS);
+	}
+
+	/**
+	 * @see #fetchInts(String)
+	 */
+	public long[] fetchLongs(String prop) {
+		return (long[]) fetchColumn(prop, LONGS);
+	}
+
+	/**
+	 * @see #fetchInts(String)
+	 */
+	public double[] fetchDoubles(String prop) {
+		return (double[]) fetchColumn(prop, DOUBLES);
+	}
+
+	/**
+	 * Ids of the matched rows in a primitive int set.
+	 * 
+	 * @see #fetchInts(String)
+	 */
+	public IntHashSet fetchIdSet() {
+		return (IntHashSet) fetchColumn(metadata.getIdMapping()
+				.getPropertyName(), ID_SET);
+	}
+
+	private Object fetchColumn(String prop, final int type) {
+		if (fromStart < 0) {
+			throw new DaoException(
+					"Column fetch is not supported by query of SQL! SQL:" + sql);
+		}
+		final String colSql = "SELECT " + aliasOf(prop) + "."
+				+ columnOf(prop).getTargetName() + sql.substring(fromStart);
+		log.debug("Fetch Column - " + colSql);
+		IConnVisitor reader = new IConnVisitor() {
+
+			public Object visit(Connection conn) throws SQLException {
+				return readColumn(conn, colSql, type);
 			}
-		});
-		return result;
+		};
+		if (!isScatter()) {
+			Object re = query(colSql, reader, false, cacheTtl);
+			// Cached values are shared
+			return cacheTtl > 0 ? concat(Collections.singletonList(re), type)
+					: re;
+		}
+		if (orderStart >= 0 || limitStart >= 0) {
+			throw new DaoException(
+					"Order and limit of column fetch are not supported across shards! SQL:"
+							+ sql);
+		}
+		return concat(DaoManager.getInstance().useAllShards(reader), type);
+	}
+
+	private Object readColumn(Connection conn, String colSql, int type)
+			throws SQLException {
+		PreparedStatement statement = null;
+		ResultSet rs = null;
+		try {
+			statement = conn.prepareStatement(colSql,
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			statement.setFetchSize(Dialect.of(conn).streamingFetchSize(
+					DaoManager.getInstance().getFetchSize()));
+			for (int i = 0; i < sqlParams.size(); i++) {
+				statement.setObject(i + 1, sqlParams.get(i));
+			}
+			rs = statement.executeQuery();
+			int n = 0;
+			switch (type) {
+			case INTS:
+				int[] ints = new int[256];
+				while (rs.next()) {
+					if (n == ints.length) {
+						ints = Arrays.copyOf(ints, n * 2);
+					}
+					ints[n++] = rs.getInt(1);
+				}
+				return Arrays.copyOf(ints, n);
+			case LONGS:
+				long[] longs = new long[256];
+				while (rs.next()) {
+					if (n == longs.length) {
+						longs = Arrays.copyOf(longs, n * 2);
+					}
+					longs[n++] = rs.getLong(1);
+				}
+				return Arrays.copyOf(longs, n);
+			case DOUBLES:
+				double[] doubles = new double[256];
+				while (rs.next()) {
+					if (n == doubles.length) {
+						doubles = Arrays.copyOf(doubles, n * 2);
+					}
+					doubles[n++] = rs.getDouble(1);
+				}
+				return Arrays.copyOf(doubles, n);
+			default:
+				IntHashSet ids = new IntHashSet();
+				while (rs.next()) {
+					ids.add(rs.getInt(1));
+				}
+				return ids;
+			}
+		} finally {
+			DbUtils.closeQuietly(rs);
+			if (statement != null) {
+				// Statement may go back to the statement pool
+				try {
+					statement.setFetchSize(0);
+				} catch (SQLException e) {
+					log.warn(e.getMessage(), e);
+				}
+			}
+			DbUtils.closeQuietly(statement);
+		}
+	}
+
+	/**
+	 * New array(or set) with the values of all parts in order.
+	 */
+	private static Object concat(List<Object> parts, int type) {
+		int n = 0;
+		for (Object p : parts) {
+			n += type == ID_SET ? ((IntHashSet) p).size() : Array.getLength(p);
+		}
+		if (type == ID_SET) {
+			IntHashSet ids = new IntHashSet(n);
+			for (Object p : parts) {
+				ids.addAll(((IntHashSet) p).toArray());
+			}
+			return ids;
+		}
+		Object re = type == INTS ? new int[n] : (type == LONGS ? new long[n]
+				: new double[n]);
+		int pos = 0;
+		for (Object p : parts) {
+			int len = Array.getLength(p);
+			System.arraycopy(p, 0, re, pos, len);
+			pos += len;
+		}
+		return re;
 	}
 
 	/**
-	 * Get number of objects via "select count(1)"
+	 * Get number of objects via "select count(1)", or the estimate from table
+	 * statistics if approximateCount() is set.
 	 * 
 	 * @return Long
 	 */
 	public long count() {
-		Long re = 0L;
-		final StringBuffer countSql = new StringBuffer(sql.toString());
-		countSql.replace(7, sql.indexOf("FROM"), " COUNT(1) ");
+		final String countSql = countSql();
 		log.debug("Fetch Count - " + countSql);
-		DaoManager mgr = DaoManager.getInstance();
-		re = (Long) mgr.useConnection(new IConnVisitor() {
+		IConnVisitor counter = new IConnVisitor() {
 
 			public Object visit(Connection conn) throws SQLException {
-				QueryRunner runner = new QueryRunner();
-				ResultSetHandler<Long> h = new ScalarHandler<Long>(1);
-				return (Long) runner.query(conn, countSql.toString(), h,
-						sqlParams.toArray());
+				Long re = approximate ? estimateRows(conn, countSql) : null;
+				return re != null ? re : countRows(conn, countSql);
 			}
-		});
+		};
+		// Estimates are cached apart from exact counts
+		String key = approximate ? "EXPLAIN " + countSql : countSql;
+		Long re = (Long) query(key, counter, true, countTtl > 0 ? countTtl
+				: cacheTtl);
+		return re;
+	}
+
+	/**
+	 * "SELECT COUNT(1)" with FROM, JOIN and WHERE of the query, ORDER BY and
+	 * LIMIT are dropped.
+	 */
+	String countSql() {
+		int end = whereEnd();
+		if (fromStart >= 0) {
+			return "SELECT COUNT(1)" + sql.substring(fromStart, end);
+		}
+		// Query by SQL
+		StringBuffer countSql = new StringBuffer(sql.substring(0, end));
+		countSql.replace(7, countSql.indexOf("FROM"), " COUNT(1) ");
+		return countSql.toString();
+	}
+
+	/**
+	 * End of FROM, JOIN and WHERE segments, where ORDER BY or LIMIT starts.
+	 */
+	private int whereEnd() {
+		return orderStart >= 0 ? orderStart : (limitStart >= 0 ? limitStart
+				: sql.length());
+	}
+
+	private long countRows(Connection conn, String countSql)
+			throws SQLException {
+		QueryRunner runner = new QueryRunner();
+		Number re = runner.query(conn, countSql, new ScalarHandler<Number>(1),
+				sqlParams.toArray());
+		return re == null ? 0 : re.longValue();
+	}
+
+	/**
+	 * Estimated number of rows from MySQL table statistics: TABLE_ROWS of
+	 * information_schema without conditions and joins, otherwise rows of
+	 * EXPLAIN.
+	 * 
+	 * @return estimate, or null if not available
+	 */
+	private Long estimateRows(Connection conn, String countSql)
+			throws SQLException {
+		if (Dialect.of(conn) != Dialect.MYSQL) {
+			return null;
+		}
+		QueryRunner runner = new QueryRunner();
+		Number re;
+		if (fromStart >= 0 && !whereAdded && !joined) {
+			re = runner.query(conn, "SELECT TABLE_ROWS"
+					+ " FROM information_schema.TABLES"
+					+ " WHERE TABLE_SCHEMA=DATABASE() AND TABLE_NAME=?",
+					new ScalarHandler<Number>(1), baseTableName);
+		} else {
+			re = runner.query(conn, "EXPLAIN " + countSql,
+					new ScalarHandler<Number>("rows"), sqlParams.toArray());
+		}
+		return re == null ? null : re.longValue();
+	}
+
+	/**
+	 * "SELECT SUM(column)" with FROM, JOIN and WHERE of the query, ORDER BY
+	 * and LIMIT are dropped.
+	 * 
+	 * @param prop
+	 *            column property, e.g. "amount" or "author.score"
+	 * @return sum as returned by the driver(e.g. BigDecimal for integer
+	 *         columns on MySQL), null if no rows match
+	 */
+	public Number sum(String prop) {
+		return (Number) aggregateOne("SUM", prop);
+	}
+
+	/**
+	 * @return average as returned by the driver, null if no rows match
+	 * @see #sum(String)
+	 */
+	public Number avg(String prop) {
+		return (Number) aggregateOne("AVG", prop);
+	}
+
+	/**
+	 * @return minimum value of the column, null if no rows match
+	 * @see #sum(String)
+	 */
+	@SuppressWarnings("unchecked")
+	public <V> V min(String prop) {
+		return (V) aggregateOne("MIN", prop);
+	}
+
+	/**
+	 * @return maximum value of the column, null if no rows match
+	 * @see #sum(String)
+	 */
+	@SuppressWarnings("unchecked")
+	public <V> V max(String prop) {
+		return (V) aggregateOne("MAX", prop);
+	}
+
+	private Object aggregateOne(String fn, String prop) {
+		List<Object[]> rows = aggregate(
+				Collections.singletonList(new AggExpr(fn, columnRef(prop))),
+				false);
+		return rows.isEmpty() ? null : rows.get(0)[0];
+	}
+
+	/**
+	 * Group rows by the properties for aggregate(), other fetch methods
+	 * ignore it.
+	 * 
+	 * @param props
+	 *            column properties, e.g. "userId" or "author.name"
+	 * @return ModelSelectBuilder
+	 */
+	public ModelSelectBuilder groupBy(String... props) {
+		if (fromStart < 0) {
+			throw new DaoException(
+					"Group by is not supported by query of SQL! SQL:" + sql);
+		}
+		if (groupBy == null) {
+			groupBy = new ArrayList<String>();
+		}
+		for (String prop : props) {
+			groupBy.add(columnRef(prop));
+		}
+		return this;
+	}
+
+	/**
+	 * Aggregate on the database instead of loading models, one Object[] per
+	 * group with values in the order of the expressions:
+	 * 
+	 * <pre>
+	 * List&lt;Object[]&gt; rows = BaseModel.find(Order.class)
+	 * 		.where(&quot;status&quot;, 1).groupBy(&quot;userId&quot;)
+	 * 		.aggregate(&quot;userId&quot;, &quot;sum(amount)&quot;, &quot;count(*)&quot;);
+	 * </pre>
+	 * 
+	 * Expressions are sum, avg, min, max or count of a column property(or
+	 * count(*)), and the group by properties themselves. Order and limit of
+	 * the query apply to the groups, so they may only use group by
+	 * properties. Without groupBy one row is returned.
+	 * 
+	 * Sharded models without known shard are aggregated on every shard and
+	 * merged(AVG from SUM and COUNT of the shards), order and limit are not
+	 * supported then.
+	 * 
+	 * @param exprs
+	 *            e.g. "userId", "sum(amount)", "max(author.score)"
+	 * @return rows
+	 */
+	public List<Object[]> aggregate(String... exprs) {
+		return aggregate(parseAggregates(exprs), groupBy != null);
+	}
+
+	List<AggExpr> parseAggregates(String... exprs) {
+		List<AggExpr> es = new ArrayList<AggExpr>(exprs.length);
+		for (String expr : exprs) {
+			Matcher m = AGGREGATE.matcher(expr.trim());
+			if (m.matches()) {
+				String col = "*".equals(m.group(2)) ? "*" : columnRef(m
+						.group(2));
+				if ("*".equals(col) && !"count".equalsIgnoreCase(m.group(1))) {
+					throw new DaoException("Only count supports * : " + expr);
+				}
+				es.add(new AggExpr(m.group(1).toUpperCase(), col));
+			} else {
+				String col = columnRef(expr.trim());
+				if (groupBy == null || !groupBy.contains(col)) {
+					throw new DaoException("Property " + expr
+							+ " is neither aggregated nor grouped! SQL:" + sql);
+				}
+				es.add(new AggExpr(null, col));
+			}
+		}
+		return es;
+	}
+
+	/**
+	 * Column of "prop" or "with.prop" qualified by its table alias.
+	 */
+	private String columnRef(String prop) {
+		if (fromStart < 0) {
+			throw new DaoException(
+					"Aggregation is not supported by query of SQL! SQL:" + sql);
+		}
+		return aliasOf(prop) + "." + columnOf(prop).getTargetName();
+	}
+
+	/**
+	 * One expression of aggregate(), fn is null for a group by column.
+	 */
+	static final class AggExpr {
+		final String fn;
+		final String column;
+
+		AggExpr(String fn, String column) {
+			this.fn = fn;
+			this.column = column;
+		}
+
+		/**
+		 * @param split
+		 *            true to select AVG as SUM and COUNT, for merging shards
+		 */
+		void appendTo(StringBuilder seg, boolean split) {
+			if (fn == null) {
+				seg.append(column);
+			} else if (split && "AVG".equals(fn)) {
+				seg.append("SUM(").append(column).append("),COUNT(")
+						.append(column).append(")");
+			} else {
+				seg.append(fn).append("(").append(column).append(")");
+			}
+		}
+	}
+
+	String aggregateSql(List<AggExpr> es, boolean grouped,
+			boolean split) {
+		StringBuilder seg = new StringBuilder("SELECT ");
+		for (int i = 0; i < es.size(); i++) {
+			if (i > 0) {
+				seg.append(",");
+			}
+			es.get(i).appendTo(seg, split);
+		}
+		int end = whereEnd();
+		seg.append(sql, fromStart, end);
+		if (grouped) {
+			seg.append(" GROUP BY ");
+			for (int i = 0; i < groupBy.size(); i++) {
+				seg.append(i > 0 ? "," : "").append(groupBy.get(i));
+			}
+			seg.append(sql, end, sql.length());
+		}
+		return seg.toString();
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Object[]> aggregate(List<AggExpr> es, boolean grouped) {
+		final boolean scatter = isScatter();
+		if (scatter && grouped && (orderStart >= 0 || limitStart >= 0)) {
+			throw new DaoException(
+					"Order and limit of aggregation are not supported across shards! SQL:"
+							+ sql);
+		}
+		final String aggSql = aggregateSql(es, grouped, scatter);
+		log.debug("Fetch Aggregate - " + aggSql);
+		IConnVisitor reader = new IConnVisitor() {
+
+			public Object visit(Connection conn) throws SQLException {
+				return new QueryRunner().query(conn, aggSql,
+						new ArrayListHandler(), sqlParams.toArray());
+			}
+		};
+		if (!scatter) {
+			List<Object[]> rows = (List<Object[]>) query(aggSql, reader,
+					false, cacheTtl);
+			// Cached rows are shared
+			if (cacheTtl > 0) {
+				List<Object[]> copy = new ArrayList<Object[]>(rows.size());
+				for (Object[] row : rows) {
+					copy.add(row.clone());
+				}
+				rows = copy;
+			}
+			return rows;
+		}
+		return mergeShards(es,
+				DaoManager.getInstance().useAllShards(reader));
+	}
+
+	/**
+	 * Merge aggregated rows of shards by their group by values.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static List<Object[]> mergeShards(List<AggExpr> es, List<Object> parts) {
+		Map<List<Object>, Object[]> groups = new LinkedHashMap<List<Object>, Object[]>();
+		for (Object part : parts) {
+			for (Object[] row : (List<Object[]>) part) {
+				List<Object> key = new ArrayList<Object>();
+				int c = 0;
+				for (AggExpr e : es) {
+					if (e.fn == null) {
+						key.add(row[c]);
+					}
+					c += "AVG".equals(e.fn) ? 2 : 1;
+				}
+				Object[] acc = groups.get(key);
+				if (acc == null) {
+					groups.put(key, row);
+					continue;
+				}
+				c = 0;
+				for (AggExpr e : es) {
+					if ("MIN".equals(e.fn) || "MAX".equals(e.fn)) {
+						Comparable a = (Comparable) acc[c];
+						Comparable b = (Comparable) row[c];
+						if (a == null || (b != null && ("MIN".equals(e.fn) ? b
+								.compareTo(a) < 0 : b.compareTo(a) > 0))) {
+							acc[c] = b;
+						}
+					} else if (e.fn != null) {
+						acc[c] = add((Number) acc[c], (Number) row[c]);
+						if ("AVG".equals(e.fn)) {
+							c++;
+							acc[c] = add((Number) acc[c], (Number) row[c]);
+						}
+					}
+					c++;
+				}
+			}
+		}
+		List<Object[]> re = new ArrayList<Object[]>(groups.size());
+		for (Object[] acc : groups.values()) {
+			Object[] row = new Object[es.size()];
+			int c = 0;
+			for (int i = 0; i < row.length; i++) {
+				if ("AVG".equals(es.get(i).fn)) {
+					row[i] = avg((Number) acc[c], (Number) acc[c + 1]);
+					c += 2;
+				} else {
+					row[i] = acc[c++];
+				}
+			}
+			re.add(row);
+		}
 		return re;
 	}
+
+	private static Number add(Number a, Number b) {
+		if (a == null || b == null) {
+			return a == null ? b : a;
+		}
+		if (a instanceof BigDecimal || b instanceof BigDecimal) {
+			return toBigDecimal(a).add(toBigDecimal(b));
+		}
+		if (a instanceof Double || a instanceof Float || b instanceof Double
+				|| b instanceof Float) {
+			return a.doubleValue() + b.doubleValue();
+		}
+		return a.longValue() + b.longValue();
+	}
+
+	private static BigDecimal toBigDecimal(Number n) {
+		return n instanceof BigDecimal ? (BigDecimal) n : new BigDecimal(
+				n.toString());
+	}
+
+	private static Number avg(Number sum, Number count) {
+		if (sum == null || count == null || count.longValue() == 0) {
+			return null;
+		}
+		if (sum instanceof BigDecimal) {
+			return ((BigDecimal) sum).divide(BigDecimal.valueOf(count
+					.longValue()), MathContext.DECIMAL64);
+		}
+		return sum.doubleValue() / count.longValue();
+	}
+
+	/**
+	 * count() on the async executor of DaoManager, the builder must not be
+	 * changed afterwards.
+	 * 
+	 * @return future of the count
+	 * @throws DaoException
+	 *             if called inside transaction
+	 */
+	public CompletableFuture<Long> countAsync() {
+		return DaoManager.getInstance().useAsync(new Supplier<Long>() {
+			public Long get() {
+				return count();
+			}
+		});
+	}
 }
\ No newline at end of file
@@ -3,6 +3,8 @@ package com.topaz.dao;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 import org.apache.commons.dbutils.QueryRunner;
 import org.apache.commons.lang.StringUtils;
@@ -74,6 +76,22 @@ public class ModelUpdateBuilder extends ModelSQLBuilder<ModelUpdateBuilder> {
 		return this;
 	}
 
+	/**
+	 * Execute the built SQL once for each parameter row with JDBC batch. The
+	 * rows replace the parameters given to set/where.
+	 * 
+	 * @param rows
+	 * @param batchSize
+	 * @return number of updated rows, one per row of the batch if the driver
+	 *         reports SUCCESS_NO_INFO
+	 */
+	public int batch(List<Object[]> rows, int batchSize) {
+		log.debug("Update batch of " + rows.size() + " - " + sql);
+		int result = batch(sql.toString(), rows, batchSize);
+		tableChanged();
+		return result;
+	}
+
 	/**
 	 * Update target table via INSERT, UPDATE, DELETE
 	 * 
@@ -81,9 +99,7 @@ public class ModelUpdateBuilder extends ModelSQLBuilder<ModelUpdateBuilder> {
 	 */
 	public int update() {
 		log.debug("Update sql = " + sql.toString());
-		int result = 0;
-		DaoManager daoMgr = DaoManager.getInstance();
-		result = (Integer) daoMgr.useConnection(new IConnVisitor() {
+		int result = execute(new IConnVisitor() {
 
 			public Object visit(Connection conn) throws SQLException {
 				QueryRunner qr = new QueryRunner();
@@ -91,6 +107,23 @@ public class ModelUpdateBuilder extends ModelSQLBuilder<ModelUpdateBuilder> {
 
 			}
 		});
+		tableChanged();
 		return result;
 	}
+
+	/**
+	 * update() on the async executor of DaoManager, the builder must not be
+	 * changed afterwards.
+	 * 
+	 * @return future of the number of affected rows
+	 * @throws DaoException
+	 *             if called inside transaction
+	 */
+	public CompletableFuture<Integer> updateAsync() {
+		return DaoManager.getInstance().useAsync(new Supplier<Integer>() {
+			public Integer get() {
+				return update();
+			}
+		});
+	}
 }
\ No newline at end of file
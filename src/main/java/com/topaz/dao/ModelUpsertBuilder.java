@@ -0,0 +1,172 @@
+package com.topaz.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Build multi-row upsert for a fixed column list and execute it chunk by
+ * chunk. Rows are inserted, or update the existing row with the same key:
+ * 
+ * <pre>
+ * MySQL: INSERT INTO t (c1,c2) VALUES (?,?),(?,?)
+ *        ON DUPLICATE KEY UPDATE c2=VALUES(c2)
+ * H2:    MERGE INTO t USING (VALUES (?,?),(?,?)) src(c1,c2) ON t.id=src.id
+ *        WHEN MATCHED THEN UPDATE SET c2=src.c2
+ *        WHEN NOT MATCHED THEN INSERT (c1,c2) VALUES (src.c1,src.c2)
+ * </pre>
+ * 
+ * MySQL matches rows by primary key or any unique key, H2 by id only.
+ * 
+ * Not thread safe!
+ */
+public class ModelUpsertBuilder extends ModelSQLBuilder<ModelUpsertBuilder> {
+
+	private static Log log = LogFactory.getLog(ModelUpsertBuilder.class);
+
+	/**
+	 * Max number of parameters of one statement(MySQL limit).
+	 */
+	static final int MAX_PARAMS = 65535;
+
+	private final List<PropMapping> columns;
+	private final List<PropMapping> updateColumns;
+
+	/**
+	 * @param clazz
+	 * @param columns
+	 *            columns inserted, including id
+	 * @param updateColumns
+	 *            columns updated if the row exists
+	 */
+	ModelUpsertBuilder(Class<? extends BaseModel> clazz,
+			List<PropMapping> columns, List<PropMapping> updateColumns) {
+		super(clazz);
+		this.columns = columns;
+		this.updateColumns = updateColumns;
+	}
+
+	/**
+	 * SQL depends on database and number of rows, see sql(Dialect, int).
+	 */
+	@Override
+	protected void buildSQL() {
+	}
+
+	/**
+	 * @param dialect
+	 * @param rows
+	 *            number of rows in VALUES
+	 * @return upsert SQL
+	 * @throws DaoException
+	 *             if database is neither MySQL nor H2
+	 */
+	String sql(Dialect dialect, int rows) {
+		StringBuilder colSeg = new StringBuilder();
+		for (int i = 0; i < columns.size(); i++) {
+			colSeg.append(i == 0 ? "" : ",").append(
+					columns.get(i).getTargetName());
+		}
+		StringBuilder valueSeg = new StringBuilder();
+		String row = inPlaceholders(columns.size());
+		for (int i = 0; i < rows; i++) {
+			valueSeg.append(i == 0 ? "" : ",").append(row);
+		}
+		StringBuilder s = new StringBuilder();
+		switch (dialect) {
+		case MYSQL:
+			s.append("INSERT INTO ").append(baseTableName).append(" (")
+					.append(colSeg).append(") VALUES ").append(valueSeg)
+					.append(" ON DUPLICATE KEY UPDATE ");
+			if (updateColumns.isEmpty()) {
+				// Keep existing row
+				s.append("id=id");
+			}
+			for (int i = 0; i < updateColumns.size(); i++) {
+				String c = updateColumns.get(i).getTargetName();
+				s.append(i == 0 ? "" : ",").append(c).append("=VALUES(")
+						.append(c).append(")");
+			}
+			break;
+		case H2:
+			s.append("MERGE INTO ").append(baseTableName)
+					.append(" USING (VALUES ").append(valueSeg)
+					.append(") src(").append(colSeg).append(") ON ")
+					.append(baseTableName).append(".id=src.id");
+			for (int i = 0; i < updateColumns.size(); i++) {
+				String c = updateColumns.get(i).getTargetName();
+				s.append(i == 0 ? " WHEN MATCHED THEN UPDATE SET " : ",")
+						.append(c).append("=src.").append(c);
+			}
+			s.append(" WHEN NOT MATCHED THEN INSERT (").append(colSeg)
+					.append(") VALUES (");
+			for (int i = 0; i < columns.size(); i++) {
+				s.append(i == 0 ? "" : ",").append("src.")
+						.append(columns.get(i).getTargetName());
+			}
+			s.append(")");
+			break;
+		default:
+			throw new DaoException("Upsert is not supported by " + dialect
+					+ " database!");
+		}
+		return s.toString();
+	}
+
+	/**
+	 * Upsert rows, at most chunkSize rows(and MAX_PARAMS parameters) per
+	 * statement. Runs on the transaction connection if there is one. Rows of
+	 * sharded class must be on the shard set by onShard.
+	 * 
+	 * @param values
+	 *            column values of each row
+	 * @param chunkSize
+	 * @return affected rows reported by the database, e.g. MySQL counts 1
+	 *         per inserted and 2 per updated row
+	 */
+	int upsert(final List<Object[]> values, int chunkSize) {
+		final int rowsPerChunk = Math.max(1,
+				Math.min(chunkSize, MAX_PARAMS / columns.size()));
+		log.debug("Upsert " + values.size() + " rows into " + baseTableName
+				+ ", " + rowsPerChunk + " rows per statement");
+		Integer result = useConnection(new IConnVisitor() {
+
+			public Object visit(Connection conn) throws SQLException {
+				Dialect dialect = Dialect.of(conn);
+				PreparedStatement statement = null;
+				int preparedRows = 0;
+				int affected = 0;
+				try {
+					int start = 0;
+					while (start < values.size()) {
+						int end = Math.min(start + rowsPerChunk, values.size());
+						if (end - start != preparedRows) {
+							DbUtils.closeQuietly(statement);
+							statement = conn.prepareStatement(sql(dialect, end
+									- start));
+							preparedRows = end - start;
+						}
+						int p = 1;
+						for (int i = start; i < end; i++) {
+							for (Object v : values.get(i)) {
+								statement.setObject(p++, v);
+							}
+						}
+						affected += statement.executeUpdate();
+						start = end;
+					}
+					return affected;
+				} finally {
+					DbUtils.closeQuietly(statement);
+				}
+			}
+		});
+		tableChanged();
+		return result;
+	}
+}
@@ -0,0 +1,194 @@
+package com.topaz.dao;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.Iterator;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Bulk loader of MySQL. Models are serialized on the fly into the tab
+ * separated format of "LOAD DATA LOCAL INFILE", columns in PropMapping order,
+ * and streamed to the server through Connector/J without temp files.
+ * 
+ * The server must enable local_infile and the JDBC url must allow it
+ * (allowLoadLocalInfile, true by default in Connector/J 5.1). Rows with
+ * duplicate keys are skipped by the server with warnings.
+ * 
+ * Not thread safe!
+ */
+final class MySQLBulkLoader extends ModelSQLBuilder<MySQLBulkLoader> {
+
+	private static Log log = LogFactory.getLog(MySQLBulkLoader.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] NULL = new byte[] { '\\', 'N' };
+
+	MySQLBulkLoader(Class<? extends BaseModel> clazz) {
+		super(clazz);
+		buildSQL();
+	}
+
+	@Override
+	protected void buildSQL() {
+		sql.append("LOAD DATA LOCAL INFILE 'topaz-bulk-load' INTO TABLE ")
+				.append(baseTableName)
+				.append(" CHARACTER SET utf8mb4 FIELDS TERMINATED BY '\\t'")
+				.append(" ESCAPED BY '\\\\' LINES TERMINATED BY '\\n' (");
+		for (int i = 0; i < metadata.getColumnCount(); i++) {
+			sql.append(i == 0 ? "" : ",").append(metadata.getColumnName(i));
+		}
+		sql.append(")");
+	}
+
+	/**
+	 * Stream models to the table, runs on the transaction connection if
+	 * there is one.
+	 * 
+	 * @param models
+	 * @return number of rows loaded, or null if the database is not MySQL
+	 *         and nothing was read from models
+	 */
+	Long load(final Iterator<? extends BaseModel> models) {
+		Long result = useConnection(new IConnVisitor() {
+
+			public Object visit(Connection conn) throws SQLException {
+				if (Dialect.of(conn) != Dialect.MYSQL) {
+					return null;
+				}
+				log.debug("Bulk load - " + sql);
+				Statement statement = conn.createStatement();
+				try {
+					statement.unwrap(com.mysql.jdbc.Statement.class)
+							.setLocalInfileInputStream(new RowStream(models));
+					return Long.valueOf(statement.executeUpdate(sql
+							.toString()));
+				} finally {
+					DbUtils.closeQuietly(statement);
+				}
+			}
+		});
+		if (result != null) {
+			tableChanged();
+		}
+		return result;
+	}
+
+	/**
+	 * Encode one model as a line of LOAD DATA.
+	 */
+	byte[] encode(BaseModel model) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		for (int i = 0; i < metadata.getColumnCount(); i++) {
+			if (i > 0) {
+				out.write('\t');
+			}
+			Object v = metadata.getColumn(i).read(model);
+			if (v == null) {
+				out.write(NULL, 0, NULL.length);
+			} else {
+				escape(out, v instanceof byte[] ? (byte[]) v : text(v)
+						.getBytes(UTF8));
+			}
+		}
+		out.write('\n');
+		return out.toByteArray();
+	}
+
+	private static String text(Object v) {
+		if (v instanceof Boolean) {
+			return ((Boolean) v) ? "1" : "0";
+		} else if (v instanceof BigDecimal) {
+			return ((BigDecimal) v).toPlainString();
+		} else if (v instanceof Date && !(v instanceof Timestamp)
+				&& !(v instanceof java.sql.Date) && !(v instanceof java.sql.Time)) {
+			return new Timestamp(((Date) v).getTime()).toString();
+		}
+		return v.toString();
+	}
+
+	/**
+	 * Escape field value by ESCAPED BY '\\'. Bytes of multi-byte UTF-8
+	 * characters are never below 0x80, so escaping works on the bytes.
+	 */
+	private static void escape(ByteArrayOutputStream out, byte[] bytes) {
+		for (byte b : bytes) {
+			switch (b) {
+			case '\\':
+				out.write('\\');
+				out.write('\\');
+				break;
+			case '\t':
+				out.write('\\');
+				out.write('t');
+				break;
+			case '\n':
+				out.write('\\');
+				out.write('n');
+				break;
+			case '\r':
+				out.write('\\');
+				out.write('r');
+				break;
+			case 0:
+				out.write('\\');
+				out.write('0');
+				break;
+			default:
+				out.write(b);
+			}
+		}
+	}
+
+	/**
+	 * Lines of the models, encoded when the driver reads them.
+	 */
+	private final class RowStream extends InputStream {
+		private final Iterator<? extends BaseModel> models;
+		private byte[] line = new byte[0];
+		private int pos = 0;
+
+		RowStream(Iterator<? extends BaseModel> models) {
+			this.models = models;
+		}
+
+		private boolean fill() {
+			while (pos >= line.length) {
+				if (!models.hasNext()) {
+					return false;
+				}
+				line = encode(models.next());
+				pos = 0;
+			}
+			return true;
+		}
+
+		@Override
+		public int read() {
+			return fill() ? line[pos++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			int n = 0;
+			while (n < len && fill()) {
+				int c = Math.min(len - n, line.length - pos);
+				System.arraycopy(line, pos, b, off + n, c);
+				pos += c;
+				n += c;
+			}
+			return n == 0 ? -1 : n;
+		}
+	}
+}
@@ -0,0 +1,486 @@
+package com.topaz.dao;
+
+import java.lang.management.ManagementFactory;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.DelegatingConnection;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Instruments borrows of one DataSourcePool: connections are wrapped to record
+ * how long threads wait for them and how long they are held, and every
+ * outstanding borrow is tracked with its thread.
+ *
+ * With a leak threshold the stack of each borrow is captured as well, hold
+ * time is then also recorded per call site(first frame outside topaz dao) and
+ * connections held longer than the threshold are logged with the stack that
+ * took them. Capturing stacks costs a few microseconds per borrow, so it is
+ * off by default.
+ *
+ * With QueryStats the statements of the connections are profiled as well.
+ */
+final class PoolMonitor implements IConnectionPoolMXBean {
+
+	private static Log log = LogFactory.getLog(PoolMonitor.class);
+
+	static final int MAX_CALL_SITES = 1024;
+	static final String OTHER_CALL_SITES = "(other)";
+
+	private static final String[] SKIPPED_FRAMES = { "com.topaz.dao.",
+			"java.", "javax.", "sun.", "jdk.", "org.apache.commons." };
+
+	private static Timer leakDetector;
+
+	private final String name;
+	private final DataSourcePool pool;
+	private final long leakThreshold;
+	private final QueryStats queryStats;
+	private final LatencyHistogram borrowWait = new LatencyHistogram();
+	private final LatencyHistogram holdTime = new LatencyHistogram();
+	private final ConcurrentMap<String, LatencyHistogram> holdTimeByCallSite = new ConcurrentHashMap<String, LatencyHistogram>();
+	private final ConcurrentMap<Long, TrackedConnection> outstanding = new ConcurrentHashMap<Long, TrackedConnection>();
+	private final AtomicLong borrowSeq = new AtomicLong();
+	private final AtomicLong borrowFailures = new AtomicLong();
+	private final AtomicLong leaks = new AtomicLong();
+	private final AtomicInteger waiting = new AtomicInteger();
+
+	/**
+	 * @param name
+	 * @param pool
+	 * @param leakThreshold
+	 *            milliseconds a connection may be held before it is reported
+	 *            as leaked, 0 to disable stack capture and leak reports
+	 * @param queryStats
+	 *            null to not profile statements
+	 */
+	PoolMonitor(String name, DataSourcePool pool, long leakThreshold,
+			QueryStats queryStats) {
+		this.name = name;
+		this.pool = pool;
+		this.leakThreshold = leakThreshold;
+		this.queryStats = queryStats;
+		if (leakThreshold > 0) {
+			long interval = Math.max(1000, leakThreshold / 2);
+			leakDetector().schedule(new TimerTask() {
+				public void run() {
+					checkLeaks();
+				}
+			}, interval, interval);
+		}
+	}
+
+	private static synchronized Timer leakDetector() {
+		if (leakDetector == null) {
+			leakDetector = new Timer("topaz-leak-detector", true);
+		}
+		return leakDetector;
+	}
+
+	/**
+	 * Take a connection from the data source and track it until closed.
+	 */
+	Connection borrow(DataSource ds) throws SQLException {
+		long start = System.nanoTime();
+		Connection conn;
+		waiting.incrementAndGet();
+		try {
+			conn = ds.getConnection();
+		} catch (SQLException e) {
+			borrowFailures.incrementAndGet();
+			throw e;
+		} finally {
+			waiting.decrementAndGet();
+		}
+		long now = System.nanoTime();
+		borrowWait.record(now - start);
+		TrackedConnection tc = new TrackedConnection(conn,
+				borrowSeq.incrementAndGet(), now,
+				leakThreshold > 0 ? new Throwable("Connection borrowed")
+						: null);
+		outstanding.put(tc.seq, tc);
+		return tc;
+	}
+
+	private void returned(TrackedConnection tc) {
+		outstanding.remove(tc.seq);
+		long held = System.nanoTime() - tc.borrowedAt;
+		holdTime.record(held);
+		if (tc.stack != null) {
+			callSiteHistogram(tc.callSite()).record(held);
+		}
+		if (tc.reported) {
+			log.info("Leaked connection of pool " + name + " taken by "
+					+ tc.thread + " returned after "
+					+ TimeUnit.NANOSECONDS.toMillis(held) + "ms");
+		}
+	}
+
+	private LatencyHistogram callSiteHistogram(String callSite) {
+		LatencyHistogram h = holdTimeByCallSite.get(callSite);
+		if (h == null) {
+			if (holdTimeByCallSite.size() >= MAX_CALL_SITES) {
+				callSite = OTHER_CALL_SITES;
+			}
+			LatencyHistogram created = new LatencyHistogram();
+			h = holdTimeByCallSite.putIfAbsent(callSite, created);
+			if (h == null) {
+				h = created;
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * Log connections held longer than the leak threshold, once each.
+	 */
+	void checkLeaks() {
+		long now = System.nanoTime();
+		for (TrackedConnection tc : outstanding.values()) {
+			long held = TimeUnit.NANOSECONDS.toMillis(now - tc.borrowedAt);
+			if (!tc.reported && held > leakThreshold) {
+				tc.reported = true;
+				leaks.incrementAndGet();
+				log.warn("Connection of pool " + name + " held by " + tc.thread
+						+ " for " + held + "ms, possible leak", tc.stack);
+			}
+		}
+	}
+
+	/**
+	 * First frame outside topaz dao, the jdk and commons libraries.
+	 */
+	static String callSite(StackTraceElement[] stack) {
+		for (StackTraceElement e : stack) {
+			String cls = e.getClassName();
+			boolean skipped = false;
+			for (String prefix : SKIPPED_FRAMES) {
+				if (cls.startsWith(prefix)) {
+					skipped = true;
+					break;
+				}
+			}
+			if (!skipped) {
+				return e.toString();
+			}
+		}
+		return stack.length > 0 ? stack[stack.length - 1].toString()
+				: OTHER_CALL_SITES;
+	}
+
+	PoolSnapshot snapshot() {
+		long now = System.nanoTime();
+		Map<String, LatencyHistogram.Snapshot> byCallSite = new TreeMap<String, LatencyHistogram.Snapshot>();
+		for (Map.Entry<String, LatencyHistogram> e : holdTimeByCallSite
+				.entrySet()) {
+			byCallSite.put(e.getKey(), e.getValue().snapshot());
+		}
+		List<PoolSnapshot.Borrow> borrows = new ArrayList<PoolSnapshot.Borrow>();
+		for (TrackedConnection tc : outstanding.values()) {
+			long held = TimeUnit.NANOSECONDS.toMillis(now - tc.borrowedAt);
+			borrows.add(new PoolSnapshot.Borrow(tc.thread,
+					tc.stack == null ? null : tc.callSite(), held,
+					leakThreshold > 0 && held > leakThreshold,
+					tc.stack == null ? null : tc.stack.getStackTrace()));
+		}
+		return new PoolSnapshot(name, pool.getUrl(), pool.getNumActive(),
+				pool.getNumIdle(), pool.getMaxActive(), waiting.get(),
+				borrowFailures.get(), leaks.get(), borrowWait.snapshot(),
+				holdTime.snapshot(), byCallSite, borrows);
+	}
+
+	/**
+	 * Append wait and hold time percentiles and leaks to the buffer.
+	 */
+	void appendTimes(StringBuffer re) {
+		LatencyHistogram.Snapshot wait = borrowWait.snapshot();
+		LatencyHistogram.Snapshot hold = holdTime.snapshot();
+		re.append(", Wait p50/p99/max=").append(wait.percentile(0.5))
+				.append("/").append(wait.percentile(0.99)).append("/")
+				.append(wait.getMaxMicros()).append("us");
+		re.append(", Hold p50/p99/max=").append(hold.percentile(0.5))
+				.append("/").append(hold.percentile(0.99)).append("/")
+				.append(hold.getMaxMicros()).append("us");
+		re.append(", Outstanding/Leaks=").append(outstanding.size())
+				.append("/").append(leaks.get());
+	}
+
+	/**
+	 * Register this monitor to the platform MBean server, replacing the bean
+	 * of a previous DaoManager.
+	 */
+	void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName on = new ObjectName(
+					"com.topaz:type=ConnectionPool,name=" + name);
+			if (server.isRegistered(on)) {
+				server.unregisterMBean(on);
+			}
+			server.registerMBean(this, on);
+		} catch (JMException e) {
+			log.warn("Register MBean of pool " + name + " failed: "
+					+ e.getMessage());
+		}
+	}
+
+	String getName() {
+		return name;
+	}
+
+	public String getUrl() {
+		return pool.getUrl();
+	}
+
+	public int getNumActive() {
+		return pool.getNumActive();
+	}
+
+	public int getNumIdle() {
+		return pool.getNumIdle();
+	}
+
+	public int getMaxActive() {
+		return pool.getMaxActive();
+	}
+
+	public int getNumWaiting() {
+		return waiting.get();
+	}
+
+	public long getBorrowCount() {
+		return borrowSeq.get();
+	}
+
+	public long getBorrowFailures() {
+		return borrowFailures.get();
+	}
+
+	public double getBorrowWaitMean() {
+		return borrowWait.snapshot().getMeanMicros();
+	}
+
+	public long getBorrowWaitP99() {
+		return borrowWait.snapshot().percentile(0.99);
+	}
+
+	public long getBorrowWaitMax() {
+		return borrowWait.snapshot().getMaxMicros();
+	}
+
+	public double getHoldTimeMean() {
+		return holdTime.snapshot().getMeanMicros();
+	}
+
+	public long getHoldTimeP99() {
+		return holdTime.snapshot().percentile(0.99);
+	}
+
+	public long getHoldTimeMax() {
+		return holdTime.snapshot().getMaxMicros();
+	}
+
+	public long getLeaks() {
+		return leaks.get();
+	}
+
+	public String[] getOutstanding() {
+		List<PoolSnapshot.Borrow> borrows = snapshot().getOutstanding();
+		String[] re = new String[borrows.size()];
+		for (int i = 0; i < re.length; i++) {
+			re[i] = borrows.get(i).toString();
+		}
+		return re;
+	}
+
+	public String[] getHoldTimeByCallSite() {
+		List<String> re = new ArrayList<String>();
+		for (Map.Entry<String, LatencyHistogram.Snapshot> e : snapshot()
+				.getHoldTimeByCallSite().entrySet()) {
+			re.add(e.getKey() + ": " + e.getValue());
+		}
+		return re.toArray(new String[re.size()]);
+	}
+
+	/**
+	 * Connection handed out by the pool, closing it returns the wrapped pooled
+	 * connection.
+	 */
+	private final class TrackedConnection extends DelegatingConnection {
+		final long seq;
+		final long borrowedAt;
+		final String thread;
+		final Throwable stack;
+		volatile boolean reported;
+		private String callSite;
+
+		TrackedConnection(Connection conn, long seq, long borrowedAt,
+				Throwable stack) {
+			super(conn);
+			this.seq = seq;
+			this.borrowedAt = borrowedAt;
+			this.thread = Thread.currentThread().getName();
+			this.stack = stack;
+		}
+
+		String callSite() {
+			if (callSite == null) {
+				callSite = PoolMonitor.callSite(stack.getStackTrace());
+			}
+			return callSite;
+		}
+
+		@Override
+		public Statement createStatement() throws SQLException {
+			if (queryStats == null) {
+				return super.createStatement();
+			}
+			checkOpen();
+			return queryStats.created(this, getDelegate().createStatement());
+		}
+
+		@Override
+		public PreparedStatement prepareStatement(String sql)
+				throws SQLException {
+			if (queryStats == null) {
+				return super.prepareStatement(sql);
+			}
+			checkOpen();
+			return queryStats.prepared(this, getDelegate()
+					.prepareStatement(sql), sql);
+		}
+
+		@Override
+		public PreparedStatement prepareStatement(String sql,
+				int autoGeneratedKeys) throws SQLException {
+			if (queryStats == null) {
+				return super.prepareStatement(sql, autoGeneratedKeys);
+			}
+			checkOpen();
+			return queryStats.prepared(this, getDelegate().prepareStatement(
+					sql, autoGeneratedKeys), sql);
+		}
+
+		@Override
+		public PreparedStatement prepareStatement(String sql,
+				int resultSetType, int resultSetConcurrency)
+				throws SQLException {
+			if (queryStats == null) {
+				return super.prepareStatement(sql, resultSetType,
+						resultSetConcurrency);
+			}
+			checkOpen();
+			return queryStats.prepared(this, getDelegate().prepareStatement(
+					sql, resultSetType, resultSetConcurrency), sql);
+		}
+
+		@Override
+		public PreparedStatement prepareStatement(String sql,
+				int resultSetType, int resultSetConcurrency,
+				int resultSetHoldability) throws SQLException {
+			if (queryStats == null) {
+				return super.prepareStatement(sql, resultSetType,
+						resultSetConcurrency, resultSetHoldability);
+			}
+			checkOpen();
+			return queryStats.prepared(this, getDelegate().prepareStatement(
+					sql, resultSetType, resultSetConcurrency,
+					resultSetHoldability), sql);
+		}
+
+		@Override
+		public PreparedStatement prepareStatement(String sql,
+				int[] columnIndexes) throws SQLException {
+			if (queryStats == null) {
+				return super.prepareStatement(sql, columnIndexes);
+			}
+			checkOpen();
+			return queryStats.prepared(this, getDelegate().prepareStatement(
+					sql, columnIndexes), sql);
+		}
+
+		@Override
+		public PreparedStatement prepareStatement(String sql,
+				String[] columnNames) throws SQLException {
+			if (queryStats == null) {
+				return super.prepareStatement(sql, columnNames);
+			}
+			checkOpen();
+			return queryStats.prepared(this, getDelegate().prepareStatement(
+					sql, columnNames), sql);
+		}
+
+		@Override
+		public CallableStatement prepareCall(String sql) throws SQLException {
+			if (queryStats == null) {
+				return super.prepareCall(sql);
+			}
+			checkOpen();
+			return queryStats.called(this, getDelegate().prepareCall(sql),
+					sql);
+		}
+
+		@Override
+		public CallableStatement prepareCall(String sql, int resultSetType,
+				int resultSetConcurrency) throws SQLException {
+			if (queryStats == null) {
+				return super.prepareCall(sql, resultSetType,
+						resultSetConcurrency);
+			}
+			checkOpen();
+			return queryStats.called(this, getDelegate().prepareCall(sql,
+					resultSetType, resultSetConcurrency), sql);
+		}
+
+		@Override
+		public CallableStatement prepareCall(String sql, int resultSetType,
+				int resultSetConcurrency, int resultSetHoldability)
+				throws SQLException {
+			if (queryStats == null) {
+				return super.prepareCall(sql, resultSetType,
+						resultSetConcurrency, resultSetHoldability);
+			}
+			checkOpen();
+			return queryStats.called(this, getDelegate().prepareCall(sql,
+					resultSetType, resultSetConcurrency, resultSetHoldability),
+					sql);
+		}
+
+		@Override
+		public Map<String, Class<?>> getTypeMap() throws SQLException {
+			checkOpen();
+			return getDelegate().getTypeMap();
+		}
+
+		@Override
+		public void close() throws SQLException {
+			if (_closed) {
+				return;
+			}
+			// Statements are closed by the pooled connection
+			_closed = true;
+			returned(this);
+			getDelegate().close();
+		}
+	}
+}
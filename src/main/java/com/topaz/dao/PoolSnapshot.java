@@ -0,0 +1,174 @@
+package com.topaz.dao;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Point in time statistics of one connection pool, see
+ * DaoManager.getPoolSnapshots. Wait is the time a thread spends taking a
+ * connection from the pool, hold is the time from taking it until it is
+ * closed. Hold time per call site and the stack of outstanding borrows are
+ * only collected when ds.LeakDetectionThreshold is set.
+ */
+public final class PoolSnapshot {
+
+	/**
+	 * A connection taken from the pool and not closed yet.
+	 */
+	public static final class Borrow {
+
+		private final String thread;
+		private final String callSite;
+		private final long heldMillis;
+		private final boolean leaked;
+		private final StackTraceElement[] stack;
+
+		Borrow(String thread, String callSite, long heldMillis,
+				boolean leaked, StackTraceElement[] stack) {
+			this.thread = thread;
+			this.callSite = callSite;
+			this.heldMillis = heldMillis;
+			this.leaked = leaked;
+			this.stack = stack;
+		}
+
+		public String getThread() {
+			return thread;
+		}
+
+		/**
+		 * @return first caller outside of topaz dao, null if stacks are not
+		 *         collected
+		 */
+		public String getCallSite() {
+			return callSite;
+		}
+
+		public long getHeldMillis() {
+			return heldMillis;
+		}
+
+		/**
+		 * @return true if held longer than the leak threshold
+		 */
+		public boolean isLeaked() {
+			return leaked;
+		}
+
+		/**
+		 * @return stack where the connection was taken, null if stacks are not
+		 *         collected
+		 */
+		public StackTraceElement[] getStack() {
+			return stack == null ? null : stack.clone();
+		}
+
+		public String toString() {
+			return thread + (callSite == null ? "" : " at " + callSite)
+					+ " held " + heldMillis + "ms" + (leaked ? " (leaked)" : "");
+		}
+	}
+
+	private final String name;
+	private final String url;
+	private final int numActive;
+	private final int numIdle;
+	private final int maxActive;
+	private final int numWaiting;
+	private final long borrowFailures;
+	private final long leaks;
+	private final LatencyHistogram.Snapshot borrowWait;
+	private final LatencyHistogram.Snapshot holdTime;
+	private final Map<String, LatencyHistogram.Snapshot> holdTimeByCallSite;
+	private final List<Borrow> outstanding;
+
+	PoolSnapshot(String name, String url, int numActive, int numIdle,
+			int maxActive, int numWaiting, long borrowFailures, long leaks,
+			LatencyHistogram.Snapshot borrowWait,
+			LatencyHistogram.Snapshot holdTime,
+			Map<String, LatencyHistogram.Snapshot> holdTimeByCallSite,
+			List<Borrow> outstanding) {
+		this.name = name;
+		this.url = url;
+		this.numActive = numActive;
+		this.numIdle = numIdle;
+		this.maxActive = maxActive;
+		this.numWaiting = numWaiting;
+		this.borrowFailures = borrowFailures;
+		this.leaks = leaks;
+		this.borrowWait = borrowWait;
+		this.holdTime = holdTime;
+		this.holdTimeByCallSite = Collections
+				.unmodifiableMap(holdTimeByCallSite);
+		this.outstanding = Collections.unmodifiableList(outstanding);
+	}
+
+	/**
+	 * @return primary, replicaN or shardN
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public int getNumActive() {
+		return numActive;
+	}
+
+	public int getNumIdle() {
+		return numIdle;
+	}
+
+	public int getMaxActive() {
+		return maxActive;
+	}
+
+	/**
+	 * @return threads waiting for a connection now
+	 */
+	public int getNumWaiting() {
+		return numWaiting;
+	}
+
+	/**
+	 * @return borrows failed by timeout or connect error
+	 */
+	public long getBorrowFailures() {
+		return borrowFailures;
+	}
+
+	/**
+	 * @return connections reported held longer than the leak threshold
+	 */
+	public long getLeaks() {
+		return leaks;
+	}
+
+	public LatencyHistogram.Snapshot getBorrowWait() {
+		return borrowWait;
+	}
+
+	public LatencyHistogram.Snapshot getHoldTime() {
+		return holdTime;
+	}
+
+	public Map<String, LatencyHistogram.Snapshot> getHoldTimeByCallSite() {
+		return holdTimeByCallSite;
+	}
+
+	public List<Borrow> getOutstanding() {
+		return outstanding;
+	}
+
+	public String toString() {
+		return "[Pool " + name + ": NumActive/MaxActive=" + numActive + "/"
+				+ maxActive + ", NumIdle=" + numIdle + ", Waiting="
+				+ numWaiting + ", Wait(" + borrowWait + "), Hold(" + holdTime
+				+ "), BorrowFailures=" + borrowFailures + ", Leaks=" + leaks
+				+ "]";
+	}
+}
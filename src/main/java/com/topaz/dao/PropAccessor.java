@@ -0,0 +1,162 @@
+package com.topaz.dao;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+
+/**
+ * Fast property accessor built once per model property. Read and write
+ * methods are unreflected into method handles with erased signatures, so
+ * calls avoid Method.invoke's argument array, access checks and, for
+ * primitive properties, boxing.
+ */
+final class PropAccessor {
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+	private final Class<?> type;
+	private final MethodHandle getter;
+	private final MethodHandle setter;
+	private final MethodHandle primitiveSetter;
+
+	static PropAccessor create(Class<?> type, Method readMethod,
+			Method writeMethod) {
+		try {
+			return new PropAccessor(type, readMethod, writeMethod);
+		} catch (IllegalAccessException e) {
+			throw new DaoException("Cannot access property methods "
+					+ readMethod + ", " + writeMethod, e);
+		}
+	}
+
+	private PropAccessor(Class<?> type, Method readMethod, Method writeMethod)
+			throws IllegalAccessException {
+		this.type = type;
+		readMethod.setAccessible(true);
+		writeMethod.setAccessible(true);
+		MethodHandle rh = LOOKUP.unreflect(readMethod);
+		MethodHandle wh = LOOKUP.unreflect(writeMethod);
+		getter = rh.asType(MethodType.methodType(Object.class, Object.class));
+		setter = wh.asType(MethodType.methodType(void.class, Object.class,
+				Object.class));
+		Class<?> primitive = unbox(type);
+		primitiveSetter = primitive == null ? null : wh.asType(MethodType
+				.methodType(void.class, Object.class, primitive));
+	}
+
+	private static Class<?> unbox(Class<?> type) {
+		if (type.isPrimitive()) {
+			return type;
+		} else if (type == Integer.class) {
+			return int.class;
+		} else if (type == Long.class) {
+			return long.class;
+		} else if (type == Double.class) {
+			return double.class;
+		} else if (type == Float.class) {
+			return float.class;
+		} else if (type == Short.class) {
+			return short.class;
+		} else if (type == Byte.class) {
+			return byte.class;
+		} else if (type == Boolean.class) {
+			return boolean.class;
+		}
+		return null;
+	}
+
+	public Class<?> getType() {
+		return type;
+	}
+
+	public Object get(Object bean) {
+		try {
+			return (Object) getter.invokeExact(bean);
+		} catch (Throwable t) {
+			throw wrap(t);
+		}
+	}
+
+	public void set(Object bean, Object value) {
+		try {
+			setter.invokeExact(bean, value);
+		} catch (Throwable t) {
+			throw wrap(t);
+		}
+	}
+
+	public void setInt(Object bean, int value) {
+		try {
+			primitiveSetter(int.class).invokeExact(bean, value);
+		} catch (Throwable t) {
+			throw wrap(t);
+		}
+	}
+
+	public void setLong(Object bean, long value) {
+		try {
+			primitiveSetter(long.class).invokeExact(bean, value);
+		} catch (Throwable t) {
+			throw wrap(t);
+		}
+	}
+
+	public void setDouble(Object bean, double value) {
+		try {
+			primitiveSetter(double.class).invokeExact(bean, value);
+		} catch (Throwable t) {
+			throw wrap(t);
+		}
+	}
+
+	public void setFloat(Object bean, float value) {
+		try {
+			primitiveSetter(float.class).invokeExact(bean, value);
+		} catch (Throwable t) {
+			throw wrap(t);
+		}
+	}
+
+	public void setShort(Object bean, short value) {
+		try {
+			primitiveSetter(short.class).invokeExact(bean, value);
+		} catch (Throwable t) {
+			throw wrap(t);
+		}
+	}
+
+	public void setByte(Object bean, byte value) {
+		try {
+			primitiveSetter(byte.class).invokeExact(bean, value);
+		} catch (Throwable t) {
+			throw wrap(t);
+		}
+	}
+
+	public void setBoolean(Object bean, boolean value) {
+		try {
+			primitiveSetter(boolean.class).invokeExact(bean, value);
+		} catch (Throwable t) {
+			throw wrap(t);
+		}
+	}
+
+	private MethodHandle primitiveSetter(Class<?> primitive) {
+		if (primitiveSetter == null
+				|| primitiveSetter.type().parameterType(1) != primitive) {
+			throw new DaoException("Property type " + type.getName()
+					+ " can not be set from " + primitive);
+		}
+		return primitiveSetter;
+	}
+
+	private static RuntimeException wrap(Throwable t) {
+		if (t instanceof DaoException) {
+			return (DaoException) t;
+		} else if (t instanceof Error) {
+			throw (Error) t;
+		}
+		return new DaoException(t);
+	}
+}
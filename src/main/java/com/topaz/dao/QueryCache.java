@@ -0,0 +1,229 @@
+package com.topaz.dao;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Bounded LRU cache of query results keyed by SQL text and parameters.
+ *
+ * Every table has a version number which is increased when the table is
+ * changed through the model builders. An entry remembers the versions of the
+ * tables it read and is treated as stale once any of them changes. Changes
+ * made inside a transaction are published when it commits and dropped when
+ * it rolls back; until then the current thread bypasses cached results of
+ * those tables.
+ */
+public class QueryCache {
+
+	private static Log log = LogFactory.getLog(QueryCache.class);
+	private final static ThreadLocal<Set<String>> LOCAL_CHANGED_TABLES = new ThreadLocal<Set<String>>();
+
+	private final int maxSize;
+	private final Map<Key, Entry> entries;
+	private final ConcurrentMap<String, AtomicLong> tableVersions = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	@SuppressWarnings("serial")
+	QueryCache(final int maxSize) {
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+				return size() > QueryCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Get cached result, or null if absent, expired or any of its tables
+	 * changed.
+	 */
+	Object get(String sql, Collection<Object> params) {
+		Key key = new Key(sql, params);
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+		}
+		if (entry == null || isChangedInTransaction(entry.tables)) {
+			misses.incrementAndGet();
+			return null;
+		}
+		if (entry.expireAt < System.currentTimeMillis()
+				|| !Arrays.equals(entry.versions, versions(entry.tables))) {
+			synchronized (entries) {
+				if (entries.get(key) == entry) {
+					entries.remove(key);
+				}
+			}
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.value;
+	}
+
+	/**
+	 * Cache query result.
+	 *
+	 * @param sql
+	 * @param params
+	 * @param tables
+	 *            tables read by the query
+	 * @param versions
+	 *            table versions taken before the query ran
+	 * @param value
+	 * @param ttl
+	 *            time to live in milliseconds
+	 */
+	void put(String sql, Collection<Object> params, String[] tables,
+			long[] versions, Object value, long ttl) {
+		if (isChangedInTransaction(tables)) {
+			// Result may contain uncommitted data
+			return;
+		}
+		Entry entry = new Entry(tables, versions, value,
+				System.currentTimeMillis() + ttl);
+		synchronized (entries) {
+			entries.put(new Key(sql, params), entry);
+		}
+	}
+
+	/**
+	 * Snapshot of current versions of tables.
+	 */
+	long[] versions(String[] tables) {
+		long[] re = new long[tables.length];
+		for (int i = 0; i < tables.length; i++) {
+			AtomicLong v = tableVersions.get(tables[i]);
+			re[i] = v == null ? 0 : v.get();
+		}
+		return re;
+	}
+
+	/**
+	 * Mark table changed. Inside a transaction the change is published after
+	 * commit.
+	 *
+	 * @param table
+	 */
+	public void invalidate(String table) {
+		DaoManager mgr = DaoManager.getInstance();
+		if (!mgr.isInTransaction()) {
+			bump(table);
+			return;
+		}
+		Set<String> changed = LOCAL_CHANGED_TABLES.get();
+		if (changed == null) {
+			final Set<String> tables = new HashSet<String>();
+			changed = tables;
+			LOCAL_CHANGED_TABLES.set(tables);
+			mgr.afterTransaction(new ITransListener() {
+				public void afterCompletion(boolean committed) {
+					LOCAL_CHANGED_TABLES.remove();
+					if (committed) {
+						for (String t : tables) {
+							bump(t);
+						}
+					}
+				}
+			});
+		}
+		changed.add(table);
+	}
+
+	private void bump(String table) {
+		AtomicLong v = tableVersions.get(table);
+		if (v == null) {
+			AtomicLong newV = new AtomicLong();
+			v = tableVersions.putIfAbsent(table, newV);
+			if (v == null) {
+				v = newV;
+			}
+		}
+		v.incrementAndGet();
+		log.debug("Table changed, cached queries invalidated - " + table);
+	}
+
+	private boolean isChangedInTransaction(String[] tables) {
+		Set<String> changed = LOCAL_CHANGED_TABLES.get();
+		if (changed != null) {
+			for (String t : tables) {
+				if (changed.contains(t)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	private static final class Key {
+		private final String sql;
+		private final Object[] params;
+		private final int hash;
+
+		Key(String sql, Collection<Object> params) {
+			this.sql = sql;
+			this.params = params.toArray();
+			this.hash = 31 * sql.hashCode() + Arrays.hashCode(this.params);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return sql.equals(other.sql) && Arrays.equals(params, other.params);
+		}
+	}
+
+	private static final class Entry {
+		final String[] tables;
+		final long[] versions;
+		final Object value;
+		final long expireAt;
+
+		Entry(String[] tables, long[] versions, Object value, long expireAt) {
+			this.tables = tables;
+			this.versions = versions;
+			this.value = value;
+			this.expireAt = expireAt;
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package com.topaz.dao;
+
+/**
+ * Point in time statistics of one SQL shape, see
+ * DaoManager.getQuerySnapshots.
+ */
+public final class QuerySnapshot {
+
+	private final String sql;
+	private final long errors;
+	private final long rows;
+	private final long maxRows;
+	private final LatencyHistogram.Snapshot latency;
+
+	QuerySnapshot(String sql, long errors, long rows, long maxRows,
+			LatencyHistogram.Snapshot latency) {
+		this.sql = sql;
+		this.errors = errors;
+		this.rows = rows;
+		this.maxRows = maxRows;
+		this.latency = latency;
+	}
+
+	/**
+	 * @return normalized sql, literals replaced by ?
+	 */
+	public String getSql() {
+		return sql;
+	}
+
+	public long getExecutions() {
+		return latency.getCount();
+	}
+
+	public long getErrors() {
+		return errors;
+	}
+
+	/**
+	 * @return total rows read or updated
+	 */
+	public long getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return most rows read or updated by one execution
+	 */
+	public long getMaxRows() {
+		return maxRows;
+	}
+
+	/**
+	 * @return execution time, not including reading the rows
+	 */
+	public LatencyHistogram.Snapshot getLatency() {
+		return latency;
+	}
+
+	public String toString() {
+		return sql + " [" + latency + ", errors=" + errors + ", rows=" + rows
+				+ ", maxRows=" + maxRows + "]";
+	}
+}
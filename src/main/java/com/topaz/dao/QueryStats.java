@@ -0,0 +1,620 @@
+package com.topaz.dao;
+
+import java.lang.management.ManagementFactory;
+import java.sql.CallableStatement;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.dbcp.DelegatingCallableStatement;
+import org.apache.commons.dbcp.DelegatingConnection;
+import org.apache.commons.dbcp.DelegatingPreparedStatement;
+import org.apache.commons.dbcp.DelegatingResultSet;
+import org.apache.commons.dbcp.DelegatingStatement;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Statistics of every statement executed on pooled connections, grouped by
+ * SQL shape: the SQL with literals replaced by ? and lists of ? collapsed, so
+ * "id IN (1, 2, 3)" and "id IN (?, ?)" count as the same query. Each shape
+ * keeps a latency histogram(time to execute, not to read the rows), errors
+ * and rows returned or updated.
+ *
+ * Statements slower than the slow query threshold are logged with their
+ * parameters(bound by setObject, setNull, setString, setInt or setLong) and
+ * the calling controller, found by walking the stack.
+ */
+final class QueryStats implements IQueryStatsMXBean {
+
+	private static Log log = LogFactory.getLog(QueryStats.class);
+
+	static final int MAX_SHAPES = 2048;
+	static final int MAX_RAW_SQL = 8192;
+	static final String OTHER_SHAPES = "(other)";
+
+	private static final Pattern PARAM_LIST = Pattern
+			.compile("\\(\\s*\\?(\\s*,\\s*\\?)+\\s*\\)");
+	private static final Pattern ROW_LIST = Pattern
+			.compile("\\(\\?\\+\\)(\\s*,\\s*\\(\\?\\+\\))+");
+
+	private final ConcurrentMap<String, Shape> shapes = new ConcurrentHashMap<String, Shape>();
+	// Cache of shapes by raw sql, builders repeat the same sql text. Read
+	// without lock on every prepare, cleared when full and sql still in use
+	// is added again.
+	private final ConcurrentMap<String, Shape> byRawSql = new ConcurrentHashMap<String, Shape>();
+	private final AtomicLong slowQueries = new AtomicLong();
+	private volatile long slowThreshold;
+
+	/**
+	 * @param slowThreshold
+	 *            milliseconds, 0 to disable the slow query log
+	 */
+	QueryStats(long slowThreshold) {
+		this.slowThreshold = slowThreshold;
+	}
+
+	/**
+	 * Statistics of one SQL shape.
+	 */
+	static final class Shape {
+		final String sql;
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LongAdder errors = new LongAdder();
+		final LongAdder rows = new LongAdder();
+		final AtomicLong maxRows = new AtomicLong();
+
+		Shape(String sql) {
+			this.sql = sql;
+		}
+
+		void addRows(long n) {
+			rows.add(n);
+			long m = maxRows.get();
+			while (n > m && !maxRows.compareAndSet(m, n)) {
+				m = maxRows.get();
+			}
+		}
+
+		QuerySnapshot snapshot() {
+			return new QuerySnapshot(sql, errors.sum(), rows.sum(),
+					maxRows.get(), latency.snapshot());
+		}
+	}
+
+	/**
+	 * Normalize sql to its shape: string and number literals become ?,
+	 * whitespace is collapsed, lists of ? become (?+) and multi row VALUES
+	 * lists become one (?+).
+	 */
+	static String normalize(String sql) {
+		StringBuilder sb = new StringBuilder(sql.length());
+		int n = sql.length();
+		int i = 0;
+		while (i < n) {
+			char ch = sql.charAt(i);
+			if (Character.isWhitespace(ch)) {
+				while (i < n && Character.isWhitespace(sql.charAt(i))) {
+					i++;
+				}
+				if (sb.length() > 0) {
+					sb.append(' ');
+				}
+			} else if (ch == '\'' || ch == '"') {
+				i++;
+				while (i < n) {
+					char c = sql.charAt(i++);
+					if (c == '\\') {
+						i++;
+					} else if (c == ch) {
+						if (i < n && sql.charAt(i) == ch) {
+							i++;
+						} else {
+							break;
+						}
+					}
+				}
+				sb.append('?');
+			} else if (ch == '`') {
+				int end = sql.indexOf('`', i + 1);
+				end = end < 0 ? n : end + 1;
+				sb.append(sql, i, end);
+				i = end;
+			} else if (Character.isDigit(ch) && !inIdentifier(sb)) {
+				while (i < n
+						&& (Character.isLetterOrDigit(sql.charAt(i)) || sql
+								.charAt(i) == '.')) {
+					i++;
+				}
+				sb.append('?');
+			} else {
+				sb.append(ch);
+				i++;
+			}
+		}
+		int len = sb.length();
+		if (len > 0 && sb.charAt(len - 1) == ' ') {
+			sb.setLength(len - 1);
+		}
+		String shape = PARAM_LIST.matcher(sb).replaceAll("(?+)");
+		return ROW_LIST.matcher(shape).replaceAll("(?+)");
+	}
+
+	private static boolean inIdentifier(StringBuilder sb) {
+		if (sb.length() == 0) {
+			return false;
+		}
+		char prev = sb.charAt(sb.length() - 1);
+		return Character.isLetterOrDigit(prev) || prev == '_' || prev == '$'
+				|| prev == '.';
+	}
+
+	Shape shapeOf(String sql) {
+		Shape shape = byRawSql.get(sql);
+		if (shape != null) {
+			return shape;
+		}
+		String normalized = normalize(sql);
+		shape = shapes.get(normalized);
+		if (shape == null) {
+			if (shapes.size() >= MAX_SHAPES) {
+				normalized = OTHER_SHAPES;
+			}
+			Shape created = new Shape(normalized);
+			shape = shapes.putIfAbsent(normalized, created);
+			if (shape == null) {
+				shape = created;
+			}
+		}
+		if (byRawSql.size() >= MAX_RAW_SQL) {
+			byRawSql.clear();
+		}
+		byRawSql.put(sql, shape);
+		return shape;
+	}
+
+	int rawSqlCount() {
+		return byRawSql.size();
+	}
+
+	/**
+	 * Record one execution.
+	 *
+	 * @param shape
+	 * @param sql
+	 *            sql as executed, for the slow query log
+	 * @param params
+	 *            bound parameters, may be null or longer than paramCount.
+	 *            Copied only if the query is logged as slow.
+	 * @param paramCount
+	 *            number of bound parameters
+	 * @param nanos
+	 * @param rows
+	 *            rows updated, or -1 if unknown or read later
+	 * @param error
+	 *            true if the statement failed
+	 */
+	void record(Shape shape, String sql, Object[] params, int paramCount,
+			long nanos, long rows, boolean error) {
+		shape.latency.record(nanos);
+		if (error) {
+			shape.errors.increment();
+		}
+		if (rows >= 0) {
+			shape.addRows(rows);
+		}
+		long threshold = slowThreshold;
+		if (threshold > 0 && nanos >= TimeUnit.MILLISECONDS.toNanos(threshold)) {
+			slowQueries.incrementAndGet();
+			log.warn("Slow query " + TimeUnit.NANOSECONDS.toMillis(nanos)
+					+ "ms" + (error ? "(failed)" : "") + ": " + sql
+					+ (params == null ? "" : ", params "
+							+ Arrays.toString(Arrays.copyOf(params, paramCount)))
+					+ ", from "
+					+ caller(new Throwable().getStackTrace()));
+		}
+	}
+
+	/**
+	 * First frame of a controller outside topaz, or the first frame outside
+	 * topaz dao if no controller is on the stack.
+	 */
+	static String caller(StackTraceElement[] stack) {
+		for (StackTraceElement e : stack) {
+			String cls = e.getClassName();
+			if (cls.endsWith("Controller") && !cls.startsWith("com.topaz.")) {
+				return e.toString();
+			}
+		}
+		return PoolMonitor.callSite(stack);
+	}
+
+	/**
+	 * Snapshots of all shapes, most total time first.
+	 */
+	List<QuerySnapshot> snapshot() {
+		List<QuerySnapshot> re = new ArrayList<QuerySnapshot>(shapes.size());
+		for (Shape shape : shapes.values()) {
+			re.add(shape.snapshot());
+		}
+		Collections.sort(re, new Comparator<QuerySnapshot>() {
+			public int compare(QuerySnapshot a, QuerySnapshot b) {
+				return Long.compare(b.getLatency().getTotalMicros(), a
+						.getLatency().getTotalMicros());
+			}
+		});
+		return re;
+	}
+
+	public void reset() {
+		byRawSql.clear();
+		shapes.clear();
+		slowQueries.set(0);
+	}
+
+	/**
+	 * Register to the platform MBean server as com.topaz:type=QueryStats.
+	 */
+	void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName on = new ObjectName("com.topaz:type=QueryStats");
+			if (server.isRegistered(on)) {
+				server.unregisterMBean(on);
+			}
+			server.registerMBean(this, on);
+		} catch (JMException e) {
+			log.warn("Register MBean of query stats failed: " + e.getMessage());
+		}
+	}
+
+	public int getShapeCount() {
+		return shapes.size();
+	}
+
+	public long getSlowQueries() {
+		return slowQueries.get();
+	}
+
+	public long getSlowQueryThreshold() {
+		return slowThreshold;
+	}
+
+	public void setSlowQueryThreshold(long millis) {
+		slowThreshold = millis;
+	}
+
+	public String[] getTopQueries() {
+		List<QuerySnapshot> all = snapshot();
+		int n = Math.min(all.size(), 20);
+		String[] re = new String[n];
+		for (int i = 0; i < n; i++) {
+			re[i] = all.get(i).toString();
+		}
+		return re;
+	}
+
+	/**
+	 * Wrap statement prepared on the connection.
+	 */
+	PreparedStatement prepared(DelegatingConnection conn,
+			PreparedStatement ps, String sql) {
+		return new ProfiledPreparedStatement(conn, ps, sql);
+	}
+
+	/**
+	 * Wrap stored procedure call prepared on the connection.
+	 */
+	CallableStatement called(DelegatingConnection conn, CallableStatement cs,
+			String sql) {
+		return new ProfiledCallableStatement(conn, cs, sql);
+	}
+
+	/**
+	 * Wrap statement created on the connection.
+	 */
+	Statement created(DelegatingConnection conn, Statement st) {
+		return new ProfiledStatement(conn, st);
+	}
+
+	private final class ProfiledPreparedStatement extends
+			DelegatingPreparedStatement {
+		private final Shape shape;
+		private final String sql;
+		private Object[] params;
+		private int paramCount;
+
+		ProfiledPreparedStatement(DelegatingConnection conn,
+				PreparedStatement ps, String sql) {
+			super(conn, ps);
+			this.shape = shapeOf(sql);
+			this.sql = sql;
+		}
+
+		private void bind(int idx, Object value) {
+			if (params == null) {
+				params = new Object[Math.max(8, idx)];
+			} else if (params.length < idx) {
+				params = Arrays.copyOf(params, Math.max(idx,
+						params.length * 2));
+			}
+			params[idx - 1] = value;
+			paramCount = Math.max(paramCount, idx);
+		}
+
+		@Override
+		public void setObject(int idx, Object x) throws SQLException {
+			super.setObject(idx, x);
+			bind(idx, x);
+		}
+
+		@Override
+		public void setObject(int idx, Object x, int sqlType)
+				throws SQLException {
+			super.setObject(idx, x, sqlType);
+			bind(idx, x);
+		}
+
+		@Override
+		public void setNull(int idx, int sqlType) throws SQLException {
+			super.setNull(idx, sqlType);
+			bind(idx, null);
+		}
+
+		@Override
+		public void setString(int idx, String x) throws SQLException {
+			super.setString(idx, x);
+			bind(idx, x);
+		}
+
+		@Override
+		public void setInt(int idx, int x) throws SQLException {
+			super.setInt(idx, x);
+			bind(idx, x);
+		}
+
+		@Override
+		public void setLong(int idx, long x) throws SQLException {
+			super.setLong(idx, x);
+			bind(idx, x);
+		}
+
+		@Override
+		public void clearParameters() throws SQLException {
+			super.clearParameters();
+			params = null;
+			paramCount = 0;
+		}
+
+		@Override
+		public ResultSet executeQuery() throws SQLException {
+			long start = System.nanoTime();
+			ResultSet rs;
+			try {
+				rs = super.executeQuery();
+			} catch (SQLException e) {
+				record(shape, sql, params, paramCount, System.nanoTime() - start,
+						-1, true);
+				throw e;
+			}
+			record(shape, sql, params, paramCount, System.nanoTime() - start,
+					-1, false);
+			return new ProfiledResultSet(this, rs, shape);
+		}
+
+		@Override
+		public int executeUpdate() throws SQLException {
+			long start = System.nanoTime();
+			int re;
+			try {
+				re = super.executeUpdate();
+			} catch (SQLException e) {
+				record(shape, sql, params, paramCount, System.nanoTime() - start,
+						-1, true);
+				throw e;
+			}
+			record(shape, sql, params, paramCount, System.nanoTime() - start,
+					re, false);
+			return re;
+		}
+
+		@Override
+		public boolean execute() throws SQLException {
+			long start = System.nanoTime();
+			boolean re;
+			try {
+				re = super.execute();
+			} catch (SQLException e) {
+				record(shape, sql, params, paramCount, System.nanoTime() - start,
+						-1, true);
+				throw e;
+			}
+			record(shape, sql, params, paramCount, System.nanoTime() - start,
+					-1, false);
+			return re;
+		}
+
+		@Override
+		public int[] executeBatch() throws SQLException {
+			long start = System.nanoTime();
+			int[] re;
+			try {
+				re = super.executeBatch();
+			} catch (SQLException e) {
+				record(shape, sql, params, paramCount, System.nanoTime() - start,
+						-1, true);
+				throw e;
+			}
+			long rows = 0;
+			for (int n : re) {
+				rows += Math.max(0, n);
+			}
+			record(shape, sql, params, paramCount, System.nanoTime() - start,
+					rows, false);
+			return re;
+		}
+	}
+
+	/**
+	 * Stored procedure call, bound parameters are not kept for the slow query
+	 * log.
+	 */
+	private final class ProfiledCallableStatement extends
+			DelegatingCallableStatement {
+		private final Shape shape;
+		private final String sql;
+
+		ProfiledCallableStatement(DelegatingConnection conn,
+				CallableStatement cs, String sql) {
+			super(conn, cs);
+			this.shape = shapeOf(sql);
+			this.sql = sql;
+		}
+
+		@Override
+		public ResultSet executeQuery() throws SQLException {
+			long start = System.nanoTime();
+			ResultSet rs;
+			try {
+				rs = super.executeQuery();
+			} catch (SQLException e) {
+				record(shape, sql, null, 0, System.nanoTime() - start, -1, true);
+				throw e;
+			}
+			record(shape, sql, null, 0, System.nanoTime() - start, -1, false);
+			return new ProfiledResultSet(this, rs, shape);
+		}
+
+		@Override
+		public int executeUpdate() throws SQLException {
+			long start = System.nanoTime();
+			int re;
+			try {
+				re = super.executeUpdate();
+			} catch (SQLException e) {
+				record(shape, sql, null, 0, System.nanoTime() - start, -1, true);
+				throw e;
+			}
+			record(shape, sql, null, 0, System.nanoTime() - start, re, false);
+			return re;
+		}
+
+		@Override
+		public boolean execute() throws SQLException {
+			long start = System.nanoTime();
+			boolean re;
+			try {
+				re = super.execute();
+			} catch (SQLException e) {
+				record(shape, sql, null, 0, System.nanoTime() - start, -1, true);
+				throw e;
+			}
+			record(shape, sql, null, 0, System.nanoTime() - start, -1, false);
+			return re;
+		}
+	}
+
+	/**
+	 * Plain statement, the shape is looked up for every executed sql.
+	 */
+	private final class ProfiledStatement extends DelegatingStatement {
+
+		ProfiledStatement(DelegatingConnection conn, Statement st) {
+			super(conn, st);
+		}
+
+		@Override
+		public ResultSet executeQuery(String sql) throws SQLException {
+			Shape shape = shapeOf(sql);
+			long start = System.nanoTime();
+			ResultSet rs;
+			try {
+				rs = super.executeQuery(sql);
+			} catch (SQLException e) {
+				record(shape, sql, null, 0, System.nanoTime() - start, -1, true);
+				throw e;
+			}
+			record(shape, sql, null, 0, System.nanoTime() - start, -1, false);
+			return new ProfiledResultSet(this, rs, shape);
+		}
+
+		@Override
+		public int executeUpdate(String sql) throws SQLException {
+			Shape shape = shapeOf(sql);
+			long start = System.nanoTime();
+			int re;
+			try {
+				re = super.executeUpdate(sql);
+			} catch (SQLException e) {
+				record(shape, sql, null, 0, System.nanoTime() - start, -1, true);
+				throw e;
+			}
+			record(shape, sql, null, 0, System.nanoTime() - start, re, false);
+			return re;
+		}
+
+		@Override
+		public boolean execute(String sql) throws SQLException {
+			Shape shape = shapeOf(sql);
+			long start = System.nanoTime();
+			boolean re;
+			try {
+				re = super.execute(sql);
+			} catch (SQLException e) {
+				record(shape, sql, null, 0, System.nanoTime() - start, -1, true);
+				throw e;
+			}
+			long rows = re ? -1 : getUpdateCount();
+			record(shape, sql, null, 0, System.nanoTime() - start, rows, false);
+			return re;
+		}
+	}
+
+	/**
+	 * Counts rows read, added to the shape when closed.
+	 */
+	private static final class ProfiledResultSet extends DelegatingResultSet {
+		private final Shape shape;
+		private long rows;
+		private boolean closed;
+
+		ProfiledResultSet(Statement st, ResultSet rs, Shape shape) {
+			super(st, rs);
+			this.shape = shape;
+		}
+
+		@Override
+		public boolean next() throws SQLException {
+			boolean re = super.next();
+			if (re) {
+				rows++;
+			}
+			return re;
+		}
+
+		@Override
+		public void close() throws SQLException {
+			if (!closed) {
+				closed = true;
+				shape.addRows(rows);
+			}
+			super.close();
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package com.topaz.dao;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Read replicas of the primary database. Connections are taken from healthy
+ * replicas by round robin or least active connections. A replica is marked
+ * down when a connection cannot be taken from it, and a background check
+ * marks it up again once it answers.
+ */
+final class ReplicaSet {
+
+	static enum Balance {
+		ROUND_ROBIN, LEAST_ACTIVE;
+
+		static Balance of(String name) {
+			if ("LeastActive".equalsIgnoreCase(name)) {
+				return LEAST_ACTIVE;
+			}
+			return ROUND_ROBIN;
+		}
+	}
+
+	private static Log log = LogFactory.getLog(ReplicaSet.class);
+
+	private final DataSourcePool[] replicas;
+	private final boolean[] healthy;
+	private final Balance balance;
+	private final AtomicInteger next = new AtomicInteger();
+	private final Timer healthChecker;
+
+	/**
+	 * @param replicas
+	 * @param balance
+	 * @param checkInterval
+	 *            milliseconds between health checks
+	 * @throws DaoException
+	 *             if checkInterval is not positive, replicas marked down
+	 *             would never be used again
+	 */
+	ReplicaSet(List<DataSourcePool> replicas, Balance balance,
+			long checkInterval) {
+		if (checkInterval <= 0) {
+			throw new DaoException(
+					"ds.ReplicaCheckInterval must be positive: " + checkInterval);
+		}
+		this.replicas = replicas.toArray(new DataSourcePool[replicas.size()]);
+		this.healthy = new boolean[this.replicas.length];
+		for (int i = 0; i < healthy.length; i++) {
+			healthy[i] = true;
+		}
+		this.balance = balance;
+		healthChecker = new Timer("topaz-replica-check", true);
+		healthChecker.schedule(new TimerTask() {
+			public void run() {
+				checkHealth();
+			}
+		}, checkInterval, checkInterval);
+	}
+
+	/**
+	 * Get connection of a healthy replica.
+	 * 
+	 * @return Connection, or null if no replica is available
+	 */
+	Connection getConnection() {
+		int n = replicas.length;
+		int start = balance == Balance.LEAST_ACTIVE ? leastActive()
+				: (next.getAndIncrement() & Integer.MAX_VALUE) % n;
+		for (int i = 0; i < n; i++) {
+			int idx = (start + i) % n;
+			if (!isHealthy(idx)) {
+				continue;
+			}
+			try {
+				return replicas[idx].getConnection();
+			} catch (SQLException e) {
+				markDown(idx, e);
+			}
+		}
+		return null;
+	}
+
+	private int leastActive() {
+		int min = -1;
+		int minActive = Integer.MAX_VALUE;
+		for (int i = 0; i < replicas.length; i++) {
+			int active = replicas[i].getNumActive();
+			if (isHealthy(i) && active < minActive) {
+				min = i;
+				minActive = active;
+			}
+		}
+		return min < 0 ? 0 : min;
+	}
+
+	private synchronized boolean isHealthy(int idx) {
+		return healthy[idx];
+	}
+
+	private synchronized void markDown(int idx, SQLException e) {
+		if (healthy[idx]) {
+			log.warn("Replica " + replicas[idx].getUrl()
+					+ " is down, reads fall back to other replicas or primary: "
+					+ e.getMessage());
+		}
+		healthy[idx] = false;
+	}
+
+	private synchronized void markUp(int idx) {
+		if (!healthy[idx]) {
+			log.info("Replica " + replicas[idx].getUrl() + " is up again.");
+		}
+		healthy[idx] = true;
+	}
+
+	/**
+	 * Take and validate one connection from each replica.
+	 */
+	void checkHealth() {
+		for (int i = 0; i < replicas.length; i++) {
+			Connection conn = null;
+			try {
+				conn = replicas[i].getConnection();
+				markUp(i);
+			} catch (SQLException e) {
+				markDown(i, e);
+			} finally {
+				DbUtils.closeQuietly(conn);
+			}
+		}
+	}
+
+	int size() {
+		return replicas.length;
+	}
+
+	void addSnapshots(List<PoolSnapshot> re) {
+		for (DataSourcePool replica : replicas) {
+			re.add(replica.snapshot());
+		}
+	}
+
+	/**
+	 * Append status of every replica to the buffer.
+	 */
+	void appendStatus(StringBuffer re) {
+		for (int i = 0; i < replicas.length; i++) {
+			re.append(", Replica[").append(i).append(isHealthy(i) ? " up" : " down")
+					.append("]: ");
+			replicas[i].appendStatus(re);
+		}
+	}
+}
@@ -0,0 +1,435 @@
+package com.topaz.dao;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.topaz.common.TopazUtil;
+
+/**
+ * Pre-computed mapping from result set columns to model properties. A plan is
+ * built once per (model class, SQL text) and reused for every row and every
+ * later execution of the same SQL, so row mapping does no name conversion or
+ * map lookup.
+ *
+ * Plans are immutable and shared between threads, the least recently used
+ * plans are dropped when more than MAX_CACHED_PLANS SQL texts are seen.
+ */
+final class RowPlan {
+
+	static final int MAX_CACHED_PLANS = 1024;
+	@SuppressWarnings("serial")
+	private static final Map<Key, RowPlan> PLANS = new LinkedHashMap<Key, RowPlan>(
+			16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, RowPlan> eldest) {
+			return size() > MAX_CACHED_PLANS;
+		}
+	};
+
+	/**
+	 * How to read one column and write it to the property, picked from the
+	 * property type when the plan is built.
+	 */
+	static enum Reader {
+		STRING {
+			void read(ResultSet rs, int i, Object bean, PropAccessor acc)
+					throws SQLException {
+				acc.set(bean, rs.getString(i));
+			}
+		},
+		INT {
+			void read(ResultSet rs, int i, Object bean, PropAccessor acc)
+					throws SQLException {
+				acc.setInt(bean, rs.getInt(i));
+			}
+		},
+		INTEGER {
+			void read(ResultSet rs, int i, Object bean, PropAccessor acc)
+					throws SQLException {
+				int v = rs.getInt(i);
+				acc.set(bean, rs.wasNull() ? null : Integer.valueOf(v));
+			}
+		},
+		LONG {
+			void read(ResultSet rs, int i, Object bean, PropAccessor acc)
+					throws SQLException {
+				acc.setLong(bean, rs.getLong(i));
+			}
+		},
+		LONG_OBJ {
+			void read(ResultSet rs, int i, Object bean, PropAccessor acc)
+					throws SQLException {
+				long v = rs.getLong(i);
+				acc.set(bean, rs.wasNull() ? null : Long.valueOf(v));
+			}
+		},
+		DOUBLE {
+			void read(ResultSet rs, int i, Object bean, PropAccessor acc)
+					throws SQLException {
+				acc.setDouble(bean, rs.getDouble(i));
+			}
+		},
+		DOUBLE_OBJ {
+			void read(ResultSet rs, int i, Object bean, PropAccessor acc)
+					throws SQLException {
+				double v = rs.getDouble(i);
+				acc.set(bean, rs.wasNull() ? null : Double.valueOf(v));
+			}
+		},
+		FLOAT {
+			void read(ResultSet rs, int i, Object bean, PropAccessor acc)
+					throws SQLException {
+				acc.setFloat(bean, rs.getFloat(i));
+			}
+		},
+		FLOAT_OBJ {
+			void read(ResultSet rs, int i, Object bean, PropAccessor acc)
+					throws SQLException {
+				float v = rs.getFloat(i);
+				acc.set(bean, rs.wasNull() ? null : Float.valueOf(v));
+			}
+		},
+		SHORT {
+			void read(ResultSet rs, int i, Object bean, PropAccessor acc)
+					throws SQLException {
+				acc.setShort(bean, rs.getShort(i));
+			}
+		},
+		SHORT_OBJ {
+			void read(ResultSet rs, int i, Object bean, PropAccessor acc)
+					throws SQLException {
+				short v = rs.getShort(i);
+				acc.set(bean, rs.wasNull() ? null : Short.valueOf(v));
+			}
+		},
+		BYTE {
+			void read(ResultSet rs, int i, Object bean, PropAccessor acc)
+					throws SQLException {
+				acc.setByte(bean, rs.getByte(i));
+			}
+		},
+		BYTE_OBJ {
+			void read(ResultSet rs, int i, Object bean, PropAccessor acc)
+					throws SQLException {
+				byte v = rs.getByte(i);
+				acc.set(bean, rs.wasNull() ? null : Byte.valueOf(v));
+			}
+		},
+		BOOLEAN {
+			void read(ResultSet rs, int i, Object bean, PropAccessor acc)
+					throws SQLException {
+				acc.setBoolean(bean, rs.getBoolean(i));
+			}
+		},
+		BOOLEAN_OBJ {
+			void read(ResultSet rs, int i, Object bean, PropAccessor acc)
+					throws SQLException {
+				boolean v = rs.getBoolean(i);
+				acc.set(bean, rs.wasNull() ? null : Boolean.valueOf(v));
+			}
+		},
+		BIG_DECIMAL {
+			void read(ResultSet rs, int i, Object bean, PropAccessor acc)
+					throws SQLException {
+				acc.set(bean, rs.getBigDecimal(i));
+			}
+		},
+		TIMESTAMP {
+			void read(ResultSet rs, int i, Object bean, PropAccessor acc)
+					throws SQLException {
+				acc.set(bean, rs.getTimestamp(i));
+			}
+		},
+		SQL_DATE {
+			void read(ResultSet rs, int i, Object bean, PropAccessor acc)
+					throws SQLException {
+				acc.set(bean, rs.getDate(i));
+			}
+		},
+		SQL_TIME {
+			void read(ResultSet rs, int i, Object bean, PropAccessor acc)
+					throws SQLException {
+				acc.set(bean, rs.getTime(i));
+			}
+		},
+		SQLXML {
+			void read(ResultSet rs, int i, Object bean, PropAccessor acc)
+					throws SQLException {
+				acc.set(bean, rs.getSQLXML(i));
+			}
+		},
+		/**
+		 * Fallback, value of getObject converted to the property type.
+		 */
+		OBJECT {
+			void read(ResultSet rs, int i, Object bean, PropAccessor acc)
+					throws SQLException {
+				acc.set(bean, convert(rs.getObject(i), acc.getType()));
+			}
+		};
+
+		abstract void read(ResultSet rs, int i, Object bean, PropAccessor acc)
+				throws SQLException;
+
+		/**
+		 * Convert value of getObject for a property of type, e.g.
+		 * java.util.Date to java.sql.Timestamp.
+		 * 
+		 * @throws DaoException
+		 *             if the value can not be passed to the property
+		 */
+		static Object convert(Object value, Class<?> type) {
+			if (value instanceof java.util.Date) {
+				long time = ((java.util.Date) value).getTime();
+				if (type == java.sql.Date.class) {
+					value = new java.sql.Date(time);
+				} else if (type == java.sql.Time.class) {
+					value = new java.sql.Time(time);
+				} else if (type == java.sql.Timestamp.class) {
+					value = new java.sql.Timestamp(time);
+				}
+			}
+			if (value != null && !isCompatibleType(value, type)) {
+				throw new DaoException("incompatible types, cannot convert "
+						+ value.getClass().getName() + " to " + type.getName());
+			}
+			return value;
+		}
+
+		/**
+		 * Whether value can be passed to a property of type, the accessor
+		 * unwraps boxed values for primitive types.
+		 */
+		private static boolean isCompatibleType(Object value, Class<?> type) {
+			if (type.isInstance(value)) {
+				return true;
+			} else if (type == Integer.TYPE) {
+				return value instanceof Integer;
+			} else if (type == Long.TYPE) {
+				return value instanceof Long;
+			} else if (type == Double.TYPE) {
+				return value instanceof Double;
+			} else if (type == Float.TYPE) {
+				return value instanceof Float;
+			} else if (type == Short.TYPE) {
+				return value instanceof Short;
+			} else if (type == Byte.TYPE) {
+				return value instanceof Byte;
+			} else if (type == Character.TYPE) {
+				return value instanceof Character;
+			} else if (type == Boolean.TYPE) {
+				return value instanceof Boolean;
+			}
+			return false;
+		}
+
+		static Reader of(Class<?> type) {
+			if (type == String.class) {
+				return STRING;
+			} else if (type == Integer.TYPE) {
+				return INT;
+			} else if (type == Integer.class) {
+				return INTEGER;
+			} else if (type == Long.TYPE) {
+				return LONG;
+			} else if (type == Long.class) {
+				return LONG_OBJ;
+			} else if (type == Double.TYPE) {
+				return DOUBLE;
+			} else if (type == Double.class) {
+				return DOUBLE_OBJ;
+			} else if (type == Float.TYPE) {
+				return FLOAT;
+			} else if (type == Float.class) {
+				return FLOAT_OBJ;
+			} else if (type == Short.TYPE) {
+				return SHORT;
+			} else if (type == Short.class) {
+				return SHORT_OBJ;
+			} else if (type == Byte.TYPE) {
+				return BYTE;
+			} else if (type == Byte.class) {
+				return BYTE_OBJ;
+			} else if (type == Boolean.TYPE) {
+				return BOOLEAN;
+			} else if (type == Boolean.class) {
+				return BOOLEAN_OBJ;
+			} else if (type == BigDecimal.class) {
+				return BIG_DECIMAL;
+			} else if (type == java.sql.Timestamp.class) {
+				return TIMESTAMP;
+			} else if (type == java.sql.Date.class) {
+				return SQL_DATE;
+			} else if (type == java.sql.Time.class) {
+				return SQL_TIME;
+			} else if (type == java.sql.SQLXML.class) {
+				return SQLXML;
+			}
+			return OBJECT;
+		}
+	}
+
+	/**
+	 * One mapped column. relationSlot is -1 for columns of the base model, or
+	 * the index into relations for columns of a joined("with") model.
+	 */
+	static final class Column {
+		final int index;
+		final int relationSlot;
+		final PropMapping prop;
+		final Reader reader;
+
+		Column(int index, int relationSlot, PropMapping prop) {
+			this.index = index;
+			this.relationSlot = relationSlot;
+			this.prop = prop;
+			this.reader = Reader.of(prop.getTargetType());
+		}
+	}
+
+	private final String[] labels;
+	private final Column[] columns;
+	private final PropMapping[] relations;
+
+	private RowPlan(String[] labels, Column[] columns, PropMapping[] relations) {
+		this.labels = labels;
+		this.columns = columns;
+		this.relations = relations;
+	}
+
+	Column[] getColumns() {
+		return columns;
+	}
+
+	PropMapping[] getRelations() {
+		return relations;
+	}
+
+	int getColumnCount() {
+		return labels.length;
+	}
+
+	/**
+	 * Get cached plan of the SQL, build and cache it if absent or if the
+	 * result set shape changed(e.g. table altered under "SELECT *").
+	 *
+	 * @param modelClass
+	 * @param sql
+	 *            SQL text, plan will not be cached if it is null
+	 * @param rsmd
+	 * @return RowPlan
+	 * @throws SQLException
+	 */
+	static RowPlan of(Class<?> modelClass, String sql, ResultSetMetaData rsmd)
+			throws SQLException {
+		String[] labels = columnLabels(rsmd);
+		if (sql == null) {
+			return build(modelClass, labels);
+		}
+		Key key = new Key(modelClass, sql);
+		RowPlan plan;
+		synchronized (PLANS) {
+			plan = PLANS.get(key);
+		}
+		if (plan == null || !plan.matches(labels)) {
+			plan = build(modelClass, labels);
+			synchronized (PLANS) {
+				PLANS.put(key, plan);
+			}
+		}
+		return plan;
+	}
+
+	private boolean matches(String[] otherLabels) {
+		if (labels.length != otherLabels.length) {
+			return false;
+		}
+		for (int i = 0; i < labels.length; i++) {
+			if (!labels[i].equals(otherLabels[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String[] columnLabels(ResultSetMetaData rsmd)
+			throws SQLException {
+		int c = rsmd.getColumnCount();
+		String[] cNames = new String[c];
+		for (int i = 0; i < c; i++) {
+			int cIndex = i + 1;
+			String cName = rsmd.getColumnLabel(cIndex);
+			if (StringUtils.isBlank(cName)) {
+				cName = rsmd.getColumnName(cIndex);
+			}
+			cNames[i] = cName;
+		}
+		return cNames;
+	}
+
+	private static RowPlan build(Class<?> modelClass, String[] labels) {
+		ModelMetadata meta = ModelMetadata.of(modelClass);
+		List<Column> cols = new ArrayList<Column>(labels.length);
+		List<PropMapping> rels = new ArrayList<PropMapping>(2);
+		for (int i = 0; i < labels.length; i++) {
+			String cName = labels[i];
+			ModelMetadata owner = meta;
+			int slot = -1;
+			int dot = cName.indexOf('.');
+			if (dot >= 0) {
+				// Its a model property
+				PropMapping tblPm = meta.getProp(TopazUtil.flat2camel(cName
+						.substring(0, dot)));
+				if (tblPm != null) {
+					slot = rels.indexOf(tblPm);
+					if (slot < 0) {
+						slot = rels.size();
+						rels.add(tblPm);
+					}
+					owner = ModelMetadata.of(tblPm.getTargetType());
+					cName = cName.substring(dot + 1);
+				}
+			}
+			PropMapping pm = owner.getProp(TopazUtil.flat2camel(cName));
+			if (pm != null && !pm.isTable()) {
+				cols.add(new Column(i + 1, slot, pm));
+			}
+		}
+		return new RowPlan(labels, cols.toArray(new Column[cols.size()]),
+				rels.toArray(new PropMapping[rels.size()]));
+	}
+
+	private static final class Key {
+		private final Class<?> modelClass;
+		private final String sql;
+		private final int hash;
+
+		Key(Class<?> modelClass, String sql) {
+			this.modelClass = modelClass;
+			this.sql = sql;
+			this.hash = 31 * modelClass.hashCode() + sql.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return modelClass == other.modelClass && sql.equals(other.sql);
+		}
+	}
+}
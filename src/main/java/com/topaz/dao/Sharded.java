@@ -0,0 +1,18 @@
+package com.topaz.dao;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Mark model whose table is split over the shard databases(ds.ShardUrls). Rows
+ * are placed by the value of the shard key property, relations loaded with
+ * the model must live on the same shard.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Sharded {
+	String key();											//Shard key property name
+	Class<? extends IShardFunction> function() default ModShardFunction.class;
+}
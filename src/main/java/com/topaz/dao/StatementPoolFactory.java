@@ -0,0 +1,157 @@
+package com.topaz.dao;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.pool.KeyedObjectPool;
+import org.apache.commons.pool.KeyedObjectPoolFactory;
+import org.apache.commons.pool.KeyedPoolableObjectFactory;
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+
+/**
+ * Creates the per-connection prepared statement pools for dbcp's
+ * PoolingConnection, statements are keyed by SQL text. Counts cache hits and
+ * misses over all connections: a miss is a statement really prepared on the
+ * connection, a hit is a statement served from the pool.
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+class StatementPoolFactory implements KeyedObjectPoolFactory {
+
+	private final GenericKeyedObjectPool.Config config = new GenericKeyedObjectPool.Config();
+	private final AtomicLong borrows = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxStatements
+	 *            max open statements per connection, least recently used
+	 *            idle statements are closed when it is exceeded
+	 */
+	StatementPoolFactory(int maxStatements) {
+		config.maxActive = -1;
+		config.whenExhaustedAction = GenericKeyedObjectPool.WHEN_EXHAUSTED_FAIL;
+		config.maxWait = 0;
+		config.maxIdle = 1;
+		config.maxTotal = maxStatements;
+	}
+
+	public KeyedObjectPool createPool() {
+		return new CountingPool();
+	}
+
+	/**
+	 * Create statement pool of a factory which exists before the pool.
+	 * 
+	 * @param factory
+	 * @return pool
+	 */
+	KeyedObjectPool<Object, Object> createPool(
+			KeyedPoolableObjectFactory<Object, Object> factory) {
+		return new CountingPool(factory);
+	}
+
+	public long getHits() {
+		return borrows.get() - misses.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Statement pool of one connection, created when the PoolingConnection is
+	 * set as factory right after createPool().
+	 */
+	private class CountingPool implements KeyedObjectPool {
+		private KeyedObjectPool pool;
+
+		CountingPool() {
+		}
+
+		CountingPool(KeyedPoolableObjectFactory factory) {
+			init(factory);
+		}
+
+		public Object borrowObject(Object key) throws Exception {
+			borrows.incrementAndGet();
+			return pool.borrowObject(key);
+		}
+
+		public void returnObject(Object key, Object obj) throws Exception {
+			pool.returnObject(key, obj);
+		}
+
+		public void invalidateObject(Object key, Object obj) throws Exception {
+			pool.invalidateObject(key, obj);
+		}
+
+		public void addObject(Object key) throws Exception {
+			pool.addObject(key);
+		}
+
+		public int getNumIdle(Object key) {
+			return pool.getNumIdle(key);
+		}
+
+		public int getNumActive(Object key) {
+			return pool.getNumActive(key);
+		}
+
+		public int getNumIdle() {
+			return pool.getNumIdle();
+		}
+
+		public int getNumActive() {
+			return pool.getNumActive();
+		}
+
+		public void clear() throws Exception {
+			pool.clear();
+		}
+
+		public void clear(Object key) throws Exception {
+			pool.clear(key);
+		}
+
+		public void close() throws Exception {
+			pool.close();
+		}
+
+		// Deprecated in commons-pool, but the only way dbcp 1.4 gives the
+		// factory to the pool
+		@SuppressWarnings("deprecation")
+		public void setFactory(KeyedPoolableObjectFactory factory) {
+			if (pool != null) {
+				throw new IllegalStateException("Factory is already set!");
+			}
+			init(factory);
+		}
+
+		private void init(final KeyedPoolableObjectFactory factory) {
+			pool = new GenericKeyedObjectPool(new KeyedPoolableObjectFactory() {
+
+				public Object makeObject(Object key) throws Exception {
+					misses.incrementAndGet();
+					return factory.makeObject(key);
+				}
+
+				public void destroyObject(Object key, Object obj)
+						throws Exception {
+					factory.destroyObject(key, obj);
+				}
+
+				public boolean validateObject(Object key, Object obj) {
+					return factory.validateObject(key, obj);
+				}
+
+				public void activateObject(Object key, Object obj)
+						throws Exception {
+					factory.activateObject(key, obj);
+				}
+
+				public void passivateObject(Object key, Object obj)
+						throws Exception {
+					factory.passivateObject(key, obj);
+				}
+			}, config);
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package com.topaz.common;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -35,6 +36,16 @@ public class ConfigTest {
 
 	}
 
+	@Test
+	public void testReplicaDefaults() {
+		Config.init(CFG_FILE);
+		Config c = Config.getInstance();
+		assertTrue(c.getDbReplicaUrls().isEmpty());
+		assertEquals("root", c.getDbReplicaUsername());
+		assertEquals("123456", c.getDbReplicaPassword());
+		assertEquals("RoundRobin", c.getDbReplicaBalance());
+		assertEquals(30000, c.getDbReplicaCheckInterval());
+	}
 
 	@Test
 	public void testHotConf() {
@@ -56,4 +67,13 @@ public class ConfigTest {
 		assertEquals("root", c.getDbUsername());
 		assertEquals("true", c.getConfig("hotconfig"));
 	}
+
+	@Test(expected = TopazException.class)
+	public void testBatchSize() throws Exception {
+		File f = File.createTempFile("config-batch", ".properties");
+		f.deleteOnExit();
+		FileUtils.writeStringToFile(f, "ds.BatchSize=0");
+		Config.init(f);
+		Config.getInstance().getDbBatchSize();
+	}
 }
@@ -0,0 +1,78 @@
+package com.topaz.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class IntHashSetTest {
+
+	@Test
+	public void testAddContainsRemove() {
+		IntHashSet set = new IntHashSet();
+		assertTrue(set.isEmpty());
+		assertTrue(set.add(0));
+		assertTrue(set.add(-5));
+		assertTrue(set.add(42));
+		assertFalse(set.add(42));
+		assertEquals(3, set.size());
+		assertTrue(set.contains(0));
+		assertTrue(set.contains(-5));
+		assertFalse(set.contains(7));
+		assertEquals("[-5, 0, 42]", set.toString());
+
+		assertTrue(set.remove(0));
+		assertFalse(set.remove(0));
+		assertFalse(set.remove(7));
+		assertTrue(set.remove(42));
+		assertEquals(1, set.size());
+		assertFalse(set.contains(42));
+
+		set.clear();
+		assertTrue(set.isEmpty());
+		assertFalse(set.contains(-5));
+	}
+
+	@Test
+	public void testSameAsHashSet() {
+		Random r = new Random(7);
+		IntHashSet set = new IntHashSet(4);
+		Set<Integer> expected = new HashSet<Integer>();
+		for (int i = 0; i < 200000; i++) {
+			// Small range so values collide, are removed and added again
+			int v = r.nextInt(5000) - 100;
+			if (r.nextInt(3) == 0) {
+				assertEquals(expected.remove(v), set.remove(v));
+			} else {
+				assertEquals(expected.add(v), set.add(v));
+			}
+		}
+		assertEquals(expected.size(), set.size());
+		for (int v = -100; v < 4900; v++) {
+			assertEquals(expected.contains(v), set.contains(v));
+		}
+		int[] values = set.toArray();
+		Arrays.sort(values);
+		int[] exp = new int[expected.size()];
+		int i = 0;
+		for (Integer v : expected) {
+			exp[i++] = v;
+		}
+		Arrays.sort(exp);
+		assertTrue(Arrays.equals(exp, values));
+	}
+
+	@Test
+	public void testAddAll() {
+		IntHashSet set = new IntHashSet(2);
+		set.addAll(new int[] { 3, 1, 3, 2, 1 });
+		assertEquals(3, set.size());
+		assertEquals("[1, 2, 3]", set.toString());
+	}
+}
@@ -0,0 +1,42 @@
+package com.topaz.controller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+
+import org.junit.Test;
+
+public class CursorTest {
+
+	@Test
+	public void testFirstPage() {
+		Cursor c = Cursor.parse(null, 20);
+		assertTrue(c.isFirst());
+		assertEquals(20, c.getPageSize());
+		assertNull(c.getToken());
+		assertTrue(Cursor.parse("", 20).isFirst());
+	}
+
+	@Test
+	public void testRoundTrip() {
+		Object[] values = new Object[] { 5, 5L, 1.5d, new BigDecimal("12.30"),
+				new Timestamp(1234567890L), "a:b,c" };
+		for (Object v : values) {
+			Cursor c = new Cursor(10).next(v, 42);
+			Cursor parsed = Cursor.parse(c.getToken(), 10);
+			assertEquals(v, parsed.getLastValue());
+			assertEquals(Integer.valueOf(42), parsed.getLastId());
+		}
+		Cursor noId = Cursor.parse(new Cursor(10, 7, null).getToken(), 10);
+		assertEquals(7, noId.getLastValue());
+		assertNull(noId.getLastId());
+	}
+
+	@Test(expected = ControllerException.class)
+	public void testInvalid() {
+		Cursor.parse("not a cursor!", 10);
+	}
+}
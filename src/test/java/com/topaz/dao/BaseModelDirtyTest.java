@@ -0,0 +1,66 @@
+package com.topaz.dao;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class BaseModelDirtyTest {
+
+	@Test
+	public void testNewModelIsDirty() {
+		Post p = new Post();
+		p.setId(1);
+		assertTrue(p.isDirty());
+	}
+
+	@Test
+	public void testChangedAfterLoaded() {
+		Post p = new Post();
+		p.setId(1);
+		p.setTitle("a");
+		p.setCreatedAt(new Timestamp(1000L));
+		p.markLoaded();
+		assertFalse(p.isDirty());
+
+		p.setTitle(new String("a"));
+		assertFalse(p.isDirty());
+		p.set("title", "b");
+		assertTrue(p.isDirty());
+
+		p.setTitle("a");
+		assertFalse(p.isDirty());
+		p.getCreatedAt().setTime(2000L);
+		assertTrue(p.isDirty());
+	}
+
+	@Test
+	public void testOmittedColumnsUnknown() {
+		Post p = new Post();
+		p.setId(1);
+		p.setTitle("a");
+		// Only id and title written, the others took their defaults
+		ModelMetadata meta = ModelMetadata.of(Post.class);
+		BitSet written = new BitSet();
+		written.set(meta.getColumns().indexOf(meta.getProp("id")));
+		written.set(meta.getColumns().indexOf(meta.getProp("title")));
+		p.markLoaded(written);
+		assertTrue(p.isDirty());
+
+		p.markLoaded();
+		assertFalse(p.isDirty());
+	}
+
+	@Test(expected = DaoException.class)
+	public void testUnknownProp() {
+		Map<String, Object> props = new HashMap<String, Object>();
+		props.put("title", "a");
+		props.put("subject", "b");
+		new Post(props);
+	}
+}
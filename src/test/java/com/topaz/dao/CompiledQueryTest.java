@@ -0,0 +1,28 @@
+package com.topaz.dao;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class CompiledQueryTest {
+
+	@Test
+	public void testCompileSelect() {
+		CompiledQuery q = BaseModel.find(Post.class).where("userId", null)
+				.orderBy("id", false).limit(0, 20).compile();
+		assertEquals(
+				"SELECT post.*  FROM post WHERE post.user_id = ?  ORDER BY post.id desc  LIMIT 0,20",
+				q.getSql());
+		assertEquals(1, q.getParamCount());
+	}
+
+	@Test(expected = DaoException.class)
+	public void testWrongParamCount() {
+		BaseModel.find(Post.class).where("userId", null).compile().fetch();
+	}
+
+	@Test(expected = DaoException.class)
+	public void testUpdateOfQuery() {
+		BaseModel.find(Post.class).where("userId", null).compile().update(1);
+	}
+}
@@ -0,0 +1,259 @@
+package com.topaz.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.dbcp.ConnectionFactory;
+import org.apache.commons.dbcp.DelegatingConnection;
+import org.junit.After;
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+
+	private final AtomicInteger created = new AtomicInteger();
+	private final AtomicInteger closed = new AtomicInteger();
+	private ConnectionPool pool;
+
+	/**
+	 * Fake physical connection, tracks autocommit and close.
+	 */
+	private Connection fakeConnection() {
+		created.incrementAndGet();
+		return (Connection) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class<?>[] { Connection.class },
+				new InvocationHandler() {
+					boolean autoCommit = true;
+					boolean isClosed = false;
+
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						String name = method.getName();
+						if (name.equals("getAutoCommit")) {
+							return autoCommit;
+						} else if (name.equals("setAutoCommit")) {
+							autoCommit = (Boolean) args[0];
+						} else if (name.equals("close")) {
+							if (!isClosed) {
+								closed.incrementAndGet();
+							}
+							isClosed = true;
+						} else if (name.equals("isClosed")) {
+							return isClosed;
+						} else if (name.equals("isValid")) {
+							return !isClosed;
+						} else if (name.equals("hashCode")) {
+							return System.identityHashCode(proxy);
+						} else if (name.equals("equals")) {
+							return proxy == args[0];
+						}
+						return null;
+					}
+				});
+	}
+
+	private ConnectionPool newPool(int maxActive, long maxWait,
+			long maxLifetime) {
+		return new ConnectionPool("jdbc:fake", new ConnectionFactory() {
+			public Connection createConnection() throws SQLException {
+				return fakeConnection();
+			}
+		}, null, maxActive, maxActive, 0, maxWait, 1000, maxLifetime, 60000);
+	}
+
+	private Connection physical(Connection conn) {
+		return ((DelegatingConnection) conn).getDelegate();
+	}
+
+	@After
+	public void tearDown() {
+		if (pool != null) {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testReuse() throws Exception {
+		pool = newPool(2, 100, 0);
+		Connection c1 = pool.getConnection();
+		Connection p1 = physical(c1);
+		assertEquals(1, pool.getNumActive());
+		c1.setAutoCommit(false);
+		c1.close();
+		assertTrue(c1.isClosed());
+		assertEquals(0, pool.getNumActive());
+		assertEquals(1, pool.getNumIdle());
+
+		Connection c2 = pool.getConnection();
+		assertNotSame(c1, c2);
+		assertSame(p1, physical(c2));
+		assertTrue(c2.getAutoCommit());
+		c2.close();
+		assertEquals(1, created.get());
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		pool = newPool(1, 50, 0);
+		Connection c1 = pool.getConnection();
+		try {
+			pool.getConnection();
+			fail("Pool exhausted");
+		} catch (SQLException e) {
+			assertTrue(e.getMessage().startsWith("Timeout"));
+		}
+		c1.close();
+		pool.getConnection().close();
+	}
+
+	@Test
+	public void testHandoff() throws Exception {
+		pool = newPool(1, 5000, 0);
+		final Connection c1 = pool.getConnection();
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+					c1.close();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		t.start();
+		Connection c2 = pool.getConnection();
+		assertFalse(c2.isClosed());
+		c2.close();
+		t.join();
+		assertEquals(1, created.get());
+	}
+
+	/**
+	 * A thread blocked on a slow connect is not waiting for a returned
+	 * connection, close() must not wait for it.
+	 */
+	@Test(timeout = 5000)
+	public void testReleaseDuringConnect() throws Exception {
+		final CountDownLatch connecting = new CountDownLatch(1);
+		final CountDownLatch connected = new CountDownLatch(1);
+		pool = new ConnectionPool("jdbc:fake", new ConnectionFactory() {
+			public Connection createConnection() throws SQLException {
+				if (created.get() > 0) {
+					connecting.countDown();
+					try {
+						connected.await();
+					} catch (InterruptedException e) {
+						throw new SQLException(e);
+					}
+				}
+				return fakeConnection();
+			}
+		}, null, 2, 2, 0, 5000, 1000, 0, 60000);
+		Connection c1 = pool.getConnection();
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					pool.getConnection().close();
+				} catch (SQLException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		t.start();
+		connecting.await();
+		c1.close();
+		assertEquals(0, pool.getNumWaiters());
+		assertEquals(1, pool.getNumIdle());
+		connected.countDown();
+		t.join();
+	}
+
+	@Test
+	public void testMaxLifetime() throws Exception {
+		pool = newPool(1, 100, 1);
+		Connection c1 = pool.getConnection();
+		Thread.sleep(5);
+		c1.close();
+		assertEquals(1, closed.get());
+		pool.getConnection().close();
+		assertEquals(2, created.get());
+	}
+
+	@Test(expected = SQLFeatureNotSupportedException.class)
+	public void testOtherCredentials() throws Exception {
+		pool = newPool(1, 100, 0);
+		pool.getConnection("u", "p");
+	}
+
+	@Test
+	public void testConcurrentBorrow() throws Exception {
+		for (int threads = 8; threads <= 64; threads *= 2) {
+			borrowAndReturn(threads, 2000);
+		}
+	}
+
+	/**
+	 * Threads borrow and return connections of a pool smaller than the
+	 * number of threads. A physical connection must never be held by two
+	 * threads at once.
+	 */
+	private void borrowAndReturn(int threads, final int rounds)
+			throws Exception {
+		final int maxActive = 4;
+		created.set(0);
+		pool = newPool(maxActive, 10000, 0);
+		final ConcurrentMap<Connection, Thread> holders = new ConcurrentHashMap<Connection, Thread>();
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			Thread t = new Thread() {
+				public void run() {
+					try {
+						start.await();
+						for (int r = 0; r < rounds; r++) {
+							Connection c = pool.getConnection();
+							Connection p = physical(c);
+							if (holders.putIfAbsent(p, this) != null) {
+								throw new AssertionError("Connection shared");
+							}
+							holders.remove(p);
+							c.close();
+						}
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			};
+			t.start();
+			workers.add(t);
+		}
+		start.countDown();
+		for (Thread t : workers) {
+			t.join();
+		}
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertEquals(0, pool.getNumActive());
+		assertTrue(created.get() <= maxActive);
+		pool.close();
+		pool = null;
+	}
+}
@@ -0,0 +1,142 @@
+package com.topaz.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.topaz.common.Config;
+
+public class DaoManagerAsyncTest {
+
+	@BeforeClass
+	public static void setUpClass() {
+		Config.init(new File("src/test/resources/config-test.properties"));
+	}
+
+	@Test
+	public void testResult() throws Exception {
+		CompletableFuture<String> f = DaoManager.getInstance().useAsync(
+				new Supplier<String>() {
+					public String get() {
+						return "done";
+					}
+				});
+		assertEquals("done", f.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testTaskExceptionWrapped() throws Exception {
+		final IllegalStateException cause = new IllegalStateException("boom");
+		CompletableFuture<String> f = DaoManager.getInstance().useAsync(
+				new Supplier<String>() {
+					public String get() {
+						throw cause;
+					}
+				});
+		try {
+			f.get(5, TimeUnit.SECONDS);
+			fail("Task failed");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof DaoException);
+			assertSame(cause, e.getCause().getCause());
+		}
+
+		final DaoException daoError = new DaoException("dao");
+		f = DaoManager.getInstance().useAsync(new Supplier<String>() {
+			public String get() {
+				throw daoError;
+			}
+		});
+		try {
+			f.get(5, TimeUnit.SECONDS);
+			fail("Task failed");
+		} catch (ExecutionException e) {
+			assertSame(daoError, e.getCause());
+		}
+	}
+
+	@Test
+	public void testQueueFull() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		Supplier<Object> blocking = new Supplier<Object>() {
+			public Object get() {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return null;
+			}
+		};
+		List<CompletableFuture<Object>> accepted = new ArrayList<CompletableFuture<Object>>();
+		CompletableFuture<Object> rejected = null;
+		try {
+			// Busy threads and the queue take the first tasks
+			for (int i = 0; i < 100000 && rejected == null; i++) {
+				CompletableFuture<Object> f = DaoManager.getInstance()
+						.useAsync(blocking);
+				if (f.isCompletedExceptionally()) {
+					rejected = f;
+				} else {
+					accepted.add(f);
+				}
+			}
+		} finally {
+			release.countDown();
+		}
+		assertNotNull(rejected);
+		try {
+			rejected.get();
+			fail("Queue is full");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof DaoException);
+		}
+		for (CompletableFuture<Object> f : accepted) {
+			f.get(5, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	public void testInTransaction() {
+		DaoManager mgr = DaoManager.getInstance();
+		mgr.beginTransaction((Connection) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class<?>[] { Connection.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						throw new UnsupportedOperationException();
+					}
+				}));
+		try {
+			mgr.useAsync(new Supplier<Object>() {
+				public Object get() {
+					return null;
+				}
+			});
+			fail("Async call in transaction");
+		} catch (DaoException e) {
+			assertEquals("Async DAO call is not allowed inside transaction!",
+					e.getMessage());
+		} finally {
+			mgr.endTransaction();
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.topaz.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.dbcp.DelegatingConnection;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.topaz.common.Config;
+
+public class DaoManagerRollbackTest {
+
+	// Calls made on the fake connections, e.g. "c1.rollback"
+	private final List<String> calls = new ArrayList<String>();
+
+	@BeforeClass
+	public static void setUpClass() {
+		Config.init(new File("src/test/resources/config-test.properties"));
+	}
+
+	private Connection fakeConnection(final String name,
+			final SQLException rollbackError) {
+		return (Connection) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class<?>[] { Connection.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws SQLException {
+						String m = method.getName();
+						if (m.equals("hashCode")) {
+							return System.identityHashCode(proxy);
+						} else if (m.equals("equals")) {
+							return proxy == args[0];
+						} else if (m.equals("isClosed")) {
+							return calls.contains(name + ".close");
+						}
+						calls.add(name + "." + m);
+						if (m.equals("rollback") && rollbackError != null) {
+							throw rollbackError;
+						}
+						return null;
+					}
+				});
+	}
+
+	@Test
+	public void testRollbackAll() {
+		SQLException e1 = new SQLException("primary");
+		Connection c1 = fakeConnection("c1", e1);
+		Connection c2 = fakeConnection("c2", null);
+		Connection c3 = fakeConnection("c3", new SQLException("shard"));
+		Set<Connection> broken = new HashSet<Connection>();
+		assertSame(e1, DaoManager.rollback(Arrays.asList(c1, c2, c3), broken));
+		assertEquals(Arrays.asList("c1.rollback", "c2.rollback", "c3.rollback"),
+				calls);
+		assertEquals(new HashSet<Connection>(Arrays.asList(c1, c3)), broken);
+	}
+
+	@Test
+	public void testDiscard() {
+		DaoManager.discard(new DelegatingConnection(fakeConnection("c1", null)));
+		// Physical connection is closed, never set back to auto commit
+		assertEquals("c1.close", calls.get(0));
+		assertFalse(calls.contains("c1.setAutoCommit"));
+
+		calls.clear();
+		DaoManager.discard(fakeConnection("c2", null));
+		assertEquals(Arrays.asList("c2.close"), calls);
+	}
+}
@@ -3,6 +3,7 @@ package com.topaz.dao;
 import java.io.File;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.function.Supplier;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -117,4 +118,26 @@ public class DaoManagerTransactionTest {
 			}
 		});
 	}
+
+	@Test
+	public void testAsyncInTransaction() {
+		final DaoManager mgr = DaoManager.getInstance();
+		try {
+			mgr.useTransaction(new ITransVisitor() {
+				public void visit() {
+					mgr.useAsync(new Supplier<Object>() {
+						public Object get() {
+							return null;
+						}
+					});
+				}
+			});
+			Assert.fail("Async call in transaction");
+		} catch (DaoException e) {
+			// Not the failure to get a connection
+			Assert.assertEquals(
+					"Async DAO call is not allowed inside transaction!",
+					e.getMessage());
+		}
+	}
 }
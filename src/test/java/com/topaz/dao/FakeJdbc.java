@@ -0,0 +1,116 @@
+package com.topaz.dao;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fake JDBC connections for tests without a database: queries return no
+ * rows, counts return 42.
+ */
+class FakeJdbc {
+
+	// SQL prepared on the connections
+	final List<String> executed = new ArrayList<String>();
+
+	/**
+	 * @param product
+	 *            database product name of the connection
+	 * @return connection recording prepared SQL
+	 */
+	Connection connection(final String product) {
+		return (Connection) fake(Connection.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getMetaData")) {
+					return fake(DatabaseMetaData.class, new InvocationHandler() {
+						public Object invoke(Object proxy, Method method,
+								Object[] args) {
+							return method.getName().equals(
+									"getDatabaseProductName") ? product
+									: defaultValue(method);
+						}
+					});
+				} else if (method.getName().equals("prepareStatement")) {
+					executed.add((String) args[0]);
+					return fakeStatement((String) args[0]);
+				}
+				return defaultValue(method);
+			}
+		});
+	}
+
+	private PreparedStatement fakeStatement(final String sql) {
+		final boolean count = sql.contains("COUNT(")
+				|| sql.contains("FOUND_ROWS()");
+		return (PreparedStatement) fake(PreparedStatement.class,
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("getParameterMetaData")) {
+							return fake(ParameterMetaData.class,
+									new InvocationHandler() {
+										public Object invoke(Object proxy,
+												Method method, Object[] args) {
+											return sql.replaceAll("[^?]", "")
+													.length();
+										}
+									});
+						} else if (method.getName().equals("executeQuery")) {
+							return fakeResultSet(count);
+						}
+						return defaultValue(method);
+					}
+				});
+	}
+
+	private ResultSet fakeResultSet(final boolean count) {
+		return (ResultSet) fake(ResultSet.class, new InvocationHandler() {
+			boolean read = !count;
+
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if (name.equals("next")) {
+					boolean re = !read;
+					read = true;
+					return re;
+				} else if (name.equals("getObject")) {
+					return 42L;
+				} else if (name.equals("getMetaData")) {
+					return fake(ResultSetMetaData.class, new InvocationHandler() {
+						public Object invoke(Object proxy, Method method,
+								Object[] args) {
+							return method.getName().equals("getColumnCount") ? (count ? 1
+									: 0) : defaultValue(method);
+						}
+					});
+				}
+				return defaultValue(method);
+			}
+		});
+	}
+
+	private static Object fake(Class<?> iface, InvocationHandler h) {
+		return Proxy.newProxyInstance(FakeJdbc.class
+				.getClassLoader(), new Class<?>[] { iface }, h);
+	}
+
+	private static Object defaultValue(Method method) {
+		Class<?> type = method.getReturnType();
+		if (type == Boolean.TYPE) {
+			return false;
+		} else if (type == Integer.TYPE) {
+			return 0;
+		} else if (type == Long.TYPE) {
+			return 0L;
+		}
+		return null;
+	}
+}
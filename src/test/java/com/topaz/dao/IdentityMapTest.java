@@ -0,0 +1,101 @@
+package com.topaz.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.topaz.common.Config;
+
+public class IdentityMapTest {
+
+	@BeforeClass
+	public static void setUpClass() {
+		Config.init(new File("src/test/resources/config-test.properties"));
+	}
+
+	private static Post post(Integer id) {
+		Post p = new Post();
+		p.setId(id);
+		return p;
+	}
+
+	@Test
+	public void testRegisterAndPut() {
+		IdentityMap map = new IdentityMap();
+		Post p1 = post(1);
+		map.register(p1);
+		map.register(post(1));
+		map.register(post(null));
+		assertSame(p1, map.get(Post.class, 1));
+		assertNull(map.get(ShardedPost.class, 1));
+
+		Post p2 = post(1);
+		map.put(p2);
+		assertSame(p2, map.get(Post.class, 1));
+
+		map.evict(Post.class);
+		assertNull(map.get(Post.class, 1));
+	}
+
+	@Test
+	public void testRegisterRelations() {
+		IdentityMap map = new IdentityMap();
+		Post child = post(2);
+		Post parent = post(1);
+		child.setParent(parent);
+		map.registerAll(Arrays.asList(child), Collections
+				.singletonList(ModelMetadata.of(Post.class).getProp("parent")));
+		assertSame(child, map.get(Post.class, 2));
+		assertSame(parent, map.get(Post.class, 1));
+	}
+
+	/**
+	 * Models of the shared query cache must not be returned by findById of a
+	 * transaction, which may change them.
+	 */
+	@Test
+	public void testCachedNotRegistered() {
+		DaoManager mgr = DaoManager.getInstance();
+		QueryCache cache = mgr.getQueryCache();
+		String[] tables = new String[] { "post" };
+		ModelSelectBuilder b = BaseModel.find(Post.class).where("userId", 7)
+				.limit(0, 1).cached(10000);
+		Post cached = post(1);
+		cache.put(b.toString(), new ArrayList<Object>(Arrays.<Object> asList(7)),
+				tables, cache.versions(tables), Arrays.asList(cached), 10000);
+		CompiledQuery q = BaseModel.find(Post.class).where("userId", 8)
+				.cached(10000).compile();
+		Post compiled = post(2);
+		cache.put(q.getSql(), Arrays.<Object> asList(8), tables,
+				cache.versions(tables), Arrays.asList(compiled), 10000);
+
+		FakeJdbc jdbc = new FakeJdbc();
+		mgr.beginTransaction(jdbc.connection("MySQL"));
+		try {
+			List<Post> fetched = b.fetch();
+			assertSame(cached, fetched.get(0));
+			List<Post> fetched2 = q.fetch(8);
+			assertSame(compiled, fetched2.get(0));
+			assertNull(mgr.getIdentityMap().get(Post.class, 1));
+			assertNull(mgr.getIdentityMap().get(Post.class, 2));
+
+			// Read from the database, not the cached instance
+			assertNull(BaseModel.findById(Post.class, 1));
+			assertEquals(1, jdbc.executed.size());
+			assertTrue(jdbc.executed.get(0).contains("post.id = ?"));
+		} finally {
+			mgr.endTransaction();
+			cache.invalidate("post");
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package com.topaz.dao;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBucketOf() {
+		assertEquals(0, LatencyHistogram.bucketOf(0));
+		assertEquals(1, LatencyHistogram.bucketOf(1));
+		assertEquals(2, LatencyHistogram.bucketOf(2));
+		assertEquals(2, LatencyHistogram.bucketOf(3));
+		assertEquals(10, LatencyHistogram.bucketOf(1000));
+		assertEquals(LatencyHistogram.BUCKETS - 1,
+				LatencyHistogram.bucketOf(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testPercentile() {
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(0, h.snapshot().percentile(0.99));
+		for (int i = 0; i < 99; i++) {
+			h.record(100000); // 100us
+		}
+		h.record(50000000); // 50ms
+		LatencyHistogram.Snapshot s = h.snapshot();
+		assertEquals(100, s.getCount());
+		assertEquals(50000, s.getMaxMicros());
+		assertEquals((99 * 100 + 50000) / 100.0, s.getMeanMicros(), 0.001);
+		assertEquals(127, s.percentile(0.5));
+		assertEquals(127, s.percentile(0.99));
+		assertEquals(50000, s.percentile(1));
+
+		// Snapshot does not change with later records
+		h.record(1000);
+		assertEquals(100, s.getCount());
+		assertEquals(101, h.snapshot().getCount());
+	}
+
+	@Test
+	public void testCallSite() {
+		StackTraceElement[] stack = {
+				new StackTraceElement("com.topaz.dao.PoolMonitor", "borrow",
+						"PoolMonitor.java", 100),
+				new StackTraceElement("com.topaz.dao.DaoManager",
+						"prepareConnection", "DaoManager.java", 200),
+				new StackTraceElement("java.lang.reflect.Method", "invoke",
+						"Method.java", 10),
+				new StackTraceElement("com.app.UserService", "list",
+						"UserService.java", 42),
+				new StackTraceElement("com.app.Main", "main", "Main.java", 7) };
+		assertEquals("com.app.UserService.list(UserService.java:42)",
+				PoolMonitor.callSite(stack));
+	}
+}
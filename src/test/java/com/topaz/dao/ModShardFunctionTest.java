@@ -0,0 +1,29 @@
+package com.topaz.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ModShardFunctionTest {
+
+	private ModShardFunction f = new ModShardFunction();
+
+	@Test
+	public void testNumbers() {
+		assertEquals(3, f.shard(7, 4));
+		assertEquals(3, f.shard(7L, 4));
+		assertEquals(0, f.shard(8, 4));
+		assertEquals(1, f.shard(-7, 4));
+		assertEquals(f.shard(Long.MAX_VALUE, 3), f.shard(Long.MAX_VALUE, 3));
+	}
+
+	@Test
+	public void testHash() {
+		for (String key : new String[] { "a", "abc", "topaz", "" }) {
+			int shard = f.shard(key, 5);
+			assertTrue(shard >= 0 && shard < 5);
+			assertEquals(shard, f.shard(new String(key), 5));
+		}
+	}
+}
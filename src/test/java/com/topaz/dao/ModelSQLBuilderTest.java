@@ -0,0 +1,71 @@
+package com.topaz.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Statement;
+
+import org.junit.Test;
+
+import com.topaz.dao.ModelSQLBuilder.OP;
+
+public class ModelSQLBuilderTest {
+
+	private ModelSelectBuilder find() {
+		return BaseModel.find(ShardedPost.class).withShardCount(4);
+	}
+
+	@Test
+	public void testRouteByShardKey() {
+		ModelSelectBuilder b = find().where("userId", 7).and("title", "a");
+		assertEquals(Integer.valueOf(3), b.getShard());
+		assertFalse(b.isScatter());
+	}
+
+	@Test
+	public void testScatter() {
+		ModelSelectBuilder b = find().where("title", "a");
+		assertNull(b.getShard());
+		assertTrue(b.isScatter());
+
+		b = find().where("userId", OP.GT, 7);
+		assertTrue(b.isScatter());
+	}
+
+	@Test
+	public void testOrMatchesAnyShard() {
+		ModelSelectBuilder b = find().where("userId", 7).or("userId", 8);
+		assertNull(b.getShard());
+		assertTrue(b.isScatter());
+
+		// Shard key after OR can not pick the shard either
+		b = find().where("title", "a").or("userId", 8);
+		assertTrue(b.isScatter());
+	}
+
+	@Test
+	public void testShardByIsFixed() {
+		ModelSelectBuilder b = find().shardBy(5).where("userId", 7)
+				.or("title", "a");
+		assertEquals(Integer.valueOf(1), b.getShard());
+	}
+
+	@Test
+	public void testNotSharded() {
+		ModelSelectBuilder b = BaseModel.find(Post.class).withShardCount(4)
+				.where("userId", 7);
+		assertNull(b.getShard());
+		assertFalse(b.isScatter());
+	}
+
+	@Test
+	public void testAffectedRows() {
+		assertEquals(3, ModelSQLBuilder.affectedRows(new int[] { 1, 0, 2 }, 3));
+		// Count of each statement unknown
+		assertEquals(3, ModelSQLBuilder.affectedRows(new int[] {
+				Statement.SUCCESS_NO_INFO, Statement.SUCCESS_NO_INFO,
+				Statement.SUCCESS_NO_INFO }, 3));
+	}
+}
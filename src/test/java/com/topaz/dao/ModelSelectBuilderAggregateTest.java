@@ -0,0 +1,66 @@
+package com.topaz.dao;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.topaz.dao.ModelSQLBuilder.OP;
+
+public class ModelSelectBuilderAggregateTest {
+
+	@Test
+	public void testAggregateSql() {
+		ModelSelectBuilder b = BaseModel.find(Post.class)
+				.where("amount", OP.GT, 0).groupBy("userId")
+				.orderBy("userId", true).limit(0, 10);
+		List<ModelSelectBuilder.AggExpr> es = b.parseAggregates("userId",
+				"sum(amount)", "AVG( amount )", "count(*)");
+		assertEquals("SELECT post.user_id,SUM(post.amount),"
+				+ "AVG(post.amount),COUNT(*) FROM post"
+				+ " WHERE post.amount > ?  GROUP BY post.user_id"
+				+ " ORDER BY post.user_id asc  LIMIT 0,10",
+				b.aggregateSql(es, true, false));
+		assertEquals("SELECT post.user_id,SUM(post.amount),"
+				+ "SUM(post.amount),COUNT(post.amount),COUNT(*)"
+				+ " FROM post WHERE post.amount > ? ",
+				b.aggregateSql(es, false, true));
+	}
+
+	@Test(expected = DaoException.class)
+	public void testNotGrouped() {
+		BaseModel.find(Post.class).groupBy("userId")
+				.parseAggregates("amount");
+	}
+
+	@Test(expected = DaoException.class)
+	public void testStarOnlyForCount() {
+		BaseModel.find(Post.class).parseAggregates("sum(*)");
+	}
+
+	@Test
+	public void testMergeShards() {
+		ModelSelectBuilder b = BaseModel.find(Post.class).groupBy("userId");
+		List<ModelSelectBuilder.AggExpr> es = b.parseAggregates("userId",
+				"sum(amount)", "avg(amount)", "max(amount)", "count(*)");
+		// AVG is read as SUM and COUNT from every shard
+		List<Object> parts = new ArrayList<Object>();
+		parts.add(Arrays.asList(
+				new Object[] { 1, new BigDecimal(10), new BigDecimal(10), 2L,
+						8, 2L },
+				new Object[] { 2, new BigDecimal(5), new BigDecimal(5), 1L, 5,
+						1L }));
+		parts.add(Arrays.<Object[]> asList(new Object[] { 1,
+				new BigDecimal(20), new BigDecimal(20), 2L, 15, 2L }));
+		List<Object[]> rows = ModelSelectBuilder.mergeShards(es, parts);
+		assertEquals(2, rows.size());
+		assertEquals(Arrays.asList(1, new BigDecimal(30),
+				new BigDecimal("7.5"), 15, 4L), Arrays.asList(rows.get(0)));
+		assertEquals(Arrays.asList(2, new BigDecimal(5), new BigDecimal(5),
+				5, 1L), Arrays.asList(rows.get(1)));
+	}
+}
@@ -0,0 +1,189 @@
+package com.topaz.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ModelSelectBuilderTest {
+
+	private final FakeJdbc jdbc = new FakeJdbc();
+
+	@Test
+	public void testProjection() {
+		ModelSelectBuilder b = BaseModel.find(Post.class, "parent")
+				.select("title", "parent.title").where("userId", 1)
+				.orderBy("id", false).limit(0, 10);
+		assertEquals("SELECT post.id,post.title ,parent.id AS 'parent.id'"
+				+ ",parent.title AS 'parent.title' FROM post"
+				+ " JOIN post parent ON post.parent_id=parent.id"
+				+ " WHERE post.user_id = ?  ORDER BY post.id desc  LIMIT 0,10",
+				b.toString());
+		assertEquals("SELECT post.* ,parent.id AS 'parent.id'"
+				+ ",parent.title AS 'parent.title',parent.user_id AS"
+				+ " 'parent.user_id',parent.done AS 'parent.done'"
+				+ ",parent.created_at AS 'parent.created_at' FROM post"
+				+ " JOIN post parent ON post.parent_id=parent.id",
+				BaseModel.find(Post.class, "parent").exclude("parent.amount")
+						.toString());
+	}
+
+	@Test
+	public void testSeek() {
+		assertEquals("SELECT post.*  FROM post WHERE post.user_id = ?"
+				+ "  AND post.created_at <= ? AND (post.created_at < ?"
+				+ " OR post.id < ?)  ORDER BY post.created_at desc, post.id desc"
+				+ "  LIMIT 0,10",
+				BaseModel.find(Post.class).where("userId", 1)
+						.before("createdAt", new Timestamp(0), 5)
+						.limit(0, 10).toString());
+		assertEquals("SELECT post.*  FROM post ORDER BY post.id asc ",
+				BaseModel.find(Post.class).after("id", null).toString());
+	}
+
+	@Test(expected = DaoException.class)
+	public void testSeekOfSql() {
+		BaseModel.findBySql(Post.class, "SELECT * FROM post WHERE user_id = ?",
+				1).after("id", 5);
+	}
+
+	@Test
+	public void testSeekAfterOr() {
+		ModelSelectBuilder b = BaseModel.find(Post.class).where("userId", 1)
+				.or("userId", 2).after("id", 100);
+		assertEquals("SELECT post.*  FROM post WHERE (post.user_id = ?  OR "
+				+ " post.user_id = ? ) AND post.id > ?  ORDER BY post.id asc ",
+				b.toString());
+		assertEquals(Arrays.<Object> asList(1, 2, 100), b.sqlParams);
+
+		// Projection moves the conditions
+		b = BaseModel.find(Post.class).where("userId", 1).or("userId", 2)
+				.select("title").after("id", 100);
+		assertTrue(b.toString().endsWith(" FROM post WHERE (post.user_id = ? "
+				+ " OR  post.user_id = ? ) AND post.id > ?  ORDER BY post.id asc "));
+	}
+
+	@Test(expected = DaoException.class)
+	public void testCachedOfSql() {
+		BaseModel.findBySql(Post.class, "SELECT post.* FROM post"
+				+ " JOIN user ON post.user_id=user.id", new Object[0])
+				.cached(1000);
+	}
+
+	@Test(expected = DaoException.class)
+	public void testCountCachedOfSql() {
+		BaseModel.findBySql(Post.class, "SELECT * FROM post", new Object[0])
+				.countCached(1000);
+	}
+
+	@Test
+	public void testOrderKeys() {
+		assertEquals("SELECT post.*  FROM post ORDER BY post.amount desc,"
+				+ " post.title asc  LIMIT 0,10", BaseModel.find(Post.class)
+				.orderBy("amount", false).orderBy("title", true).limit(0, 10)
+				.toString());
+	}
+
+	@Test(expected = DaoException.class)
+	public void testOrderAfterLimit() {
+		BaseModel.find(Post.class).limit(0, 10).orderBy("id", true);
+	}
+
+	@Test
+	public void testShardSql() {
+		ModelSelectBuilder b = BaseModel.find(Post.class)
+				.where("userId", 1).orderBy("id", false).limit(20, 10);
+		assertEquals("SELECT post.*  FROM post WHERE post.user_id = ?"
+				+ "  ORDER BY post.id desc  LIMIT 0,30", b.shardSql());
+		b = BaseModel.find(Post.class).where("userId", 1);
+		assertEquals(b.toString(), b.shardSql());
+	}
+
+	@Test
+	public void testMergeOrder() {
+		ModelSelectBuilder b = BaseModel.find(ShardedPost.class)
+				.withShardCount(2).before("amount", null, null);
+		List<BaseModel> rows = new ArrayList<BaseModel>();
+		// Rows of two shards with equal amounts, ordered by id on ties
+		rows.add(post(1, 5));
+		rows.add(post(4, 7));
+		rows.add(post(2, 5));
+		rows.add(post(3, null));
+		rows.add(post(6, 7));
+		Collections.sort(rows, b.orderComparator());
+		assertEquals(Arrays.asList(6, 4, 2, 1, 3), ids(rows));
+
+		b = BaseModel.find(ShardedPost.class).withShardCount(2)
+				.orderBy("amount", true).orderBy("id", false);
+		Collections.sort(rows, b.orderComparator());
+		assertEquals(Arrays.asList(3, 2, 1, 6, 4), ids(rows));
+	}
+
+	private static Post post(int id, Integer amount) {
+		Post p = new ShardedPost();
+		p.setId(id);
+		p.setAmount(amount);
+		return p;
+	}
+
+	private static List<Integer> ids(List<BaseModel> rows) {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (BaseModel m : rows) {
+			ids.add(m.getId());
+		}
+		return ids;
+	}
+
+	@Test
+	public void testCountSql() {
+		ModelSelectBuilder b = BaseModel.find(Post.class, "parent")
+				.select("title").where("userId", 1)
+				.after("createdAt", new Timestamp(0), 5).limit(0, 10);
+		assertEquals("SELECT COUNT(1) FROM post"
+				+ " JOIN post parent ON post.parent_id=parent.id"
+				+ " WHERE post.user_id = ?  AND post.created_at >= ?"
+				+ " AND (post.created_at > ? OR post.id > ?) ", b.countSql());
+		assertEquals("SELECT COUNT(1) FROM post WHERE post.user_id = ? ",
+				BaseModel.find(Post.class).where("userId", 1)
+						.orderBy("id", false).countSql());
+		assertEquals("SELECT COUNT(1) FROM post", BaseModel.find(Post.class)
+				.limit(10, 10).countSql());
+		assertEquals("SELECT  COUNT(1) FROM post WHERE user_id = ?",
+				BaseModel.findBySql(Post.class,
+						"SELECT * FROM post WHERE user_id = ?", 1).countSql());
+	}
+
+	@Test
+	public void testLoadPage() throws Exception {
+		ModelSelectBuilder b = BaseModel.find(Post.class).where("userId", 1)
+				.limit(20, 10);
+		Object[] re = b.loadPage(jdbc.connection("MySQL"), b.toString(),
+				b.countSql());
+		assertTrue(((List<?>) re[0]).isEmpty());
+		assertEquals(42L, re[1]);
+		assertEquals(Arrays.asList(b.toString(), b.countSql()), jdbc.executed);
+	}
+
+	@Test
+	public void testLoadPageFoundRows() throws Exception {
+		ModelSelectBuilder b = BaseModel.find(Post.class).where("userId", 1)
+				.limit(20, 10).foundRows();
+		Object[] re = b.loadPage(jdbc.connection("MySQL"), b.toString(),
+				b.countSql());
+		assertEquals(42L, re[1]);
+		assertEquals(Arrays.asList("SELECT SQL_CALC_FOUND_ROWS post.*  FROM post"
+				+ " WHERE post.user_id = ?  LIMIT 20,10", "SELECT FOUND_ROWS()"),
+				jdbc.executed);
+
+		// Only MySQL has FOUND_ROWS()
+		jdbc.executed.clear();
+		b.loadPage(jdbc.connection("H2"), b.toString(), b.countSql());
+		assertEquals(Arrays.asList(b.toString(), b.countSql()), jdbc.executed);
+	}
+}
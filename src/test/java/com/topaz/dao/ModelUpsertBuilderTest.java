@@ -0,0 +1,42 @@
+package com.topaz.dao;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ModelUpsertBuilderTest {
+
+	private final ModelMetadata meta = ModelMetadata.of(Post.class);
+
+	@Test
+	public void testMySQL() {
+		ModelUpsertBuilder b = new ModelUpsertBuilder(Post.class,
+				meta.getColumns(), Arrays.asList(meta.getProp("amount")));
+		assertEquals("INSERT INTO post (id,title,user_id,amount,done,created_at)"
+				+ " VALUES (?,?,?,?,?,?),(?,?,?,?,?,?)"
+				+ " ON DUPLICATE KEY UPDATE amount=VALUES(amount)",
+				b.sql(Dialect.MYSQL, 2));
+	}
+
+	@Test
+	public void testH2() {
+		ModelUpsertBuilder b = new ModelUpsertBuilder(Post.class,
+				meta.getColumns(), new ArrayList<PropMapping>());
+		assertEquals("MERGE INTO post USING (VALUES (?,?,?,?,?,?))"
+				+ " src(id,title,user_id,amount,done,created_at)"
+				+ " ON post.id=src.id WHEN NOT MATCHED THEN"
+				+ " INSERT (id,title,user_id,amount,done,created_at)"
+				+ " VALUES (src.id,src.title,src.user_id,src.amount,src.done,"
+				+ "src.created_at)",
+				b.sql(Dialect.H2, 1));
+	}
+
+	@Test(expected = DaoException.class)
+	public void testUnsupported() {
+		new ModelUpsertBuilder(Post.class, meta.getColumns(),
+				new ArrayList<PropMapping>()).sql(Dialect.GENERIC, 1);
+	}
+}
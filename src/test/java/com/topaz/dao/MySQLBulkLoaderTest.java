@@ -0,0 +1,32 @@
+package com.topaz.dao;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Timestamp;
+
+import org.junit.Test;
+
+public class MySQLBulkLoaderTest {
+
+	@Test
+	public void testSQL() {
+		assertEquals("LOAD DATA LOCAL INFILE 'topaz-bulk-load' INTO TABLE post"
+				+ " CHARACTER SET utf8mb4 FIELDS TERMINATED BY '\\t'"
+				+ " ESCAPED BY '\\\\' LINES TERMINATED BY '\\n'"
+				+ " (id,title,user_id,amount,done,created_at)",
+				new MySQLBulkLoader(Post.class).toString());
+	}
+
+	@Test
+	public void testEncode() throws Exception {
+		Post p = new Post();
+		p.setTitle("a\tb\\c\n\u4e2d");
+		p.setDone(true);
+		Timestamp ts = Timestamp.valueOf("2014-01-02 03:04:05.6");
+		p.setCreatedAt(ts);
+		String line = new String(new MySQLBulkLoader(Post.class).encode(p),
+				"UTF-8");
+		assertEquals("\\N\ta\\tb\\\\c\\n\u4e2d\t\\N\t\\N\t1\t2014-01-02 03:04:05.6\n",
+				line);
+	}
+}
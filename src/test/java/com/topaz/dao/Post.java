@@ -0,0 +1,73 @@
+package com.topaz.dao;
+
+import java.sql.Timestamp;
+import java.util.Map;
+
+/**
+ * Model shared by the dao tests, mapped to table post.
+ */
+public class Post extends BaseModel {
+	private static final long serialVersionUID = 1L;
+	@Prop private String title;
+	@Prop private Integer userId;
+	@Prop private Integer amount;
+	@Prop private Boolean done;
+	@Prop private Timestamp createdAt;
+	@Prop(type = Prop.Type.Table, relation = Prop.Relation.BelongsTo, byKey = "parent_id")
+	private Post parent;
+
+	public Post() {
+	}
+
+	public Post(Map<String, Object> props) {
+		super(props);
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public void setTitle(String title) {
+		this.title = title;
+	}
+
+	public Integer getUserId() {
+		return userId;
+	}
+
+	public void setUserId(Integer userId) {
+		this.userId = userId;
+	}
+
+	public Integer getAmount() {
+		return amount;
+	}
+
+	public void setAmount(Integer amount) {
+		this.amount = amount;
+	}
+
+	public Boolean isDone() {
+		return done;
+	}
+
+	public void setDone(Boolean done) {
+		this.done = done;
+	}
+
+	public Timestamp getCreatedAt() {
+		return createdAt;
+	}
+
+	public void setCreatedAt(Timestamp createdAt) {
+		this.createdAt = createdAt;
+	}
+
+	public Post getParent() {
+		return parent;
+	}
+
+	public void setParent(Post parent) {
+		this.parent = parent;
+	}
+}
@@ -0,0 +1,75 @@
+package com.topaz.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.topaz.common.Config;
+
+public class QueryCacheTest {
+
+	private static final String SQL = "SELECT user.* FROM user WHERE user.id = ?";
+	private static final String[] TABLES = new String[] { "user" };
+
+	private QueryCache cache;
+
+	@Before
+	public void setUp() throws Exception {
+		File cfgFile = new File("src/test/resources/config-test.properties");
+		Config.init(cfgFile);
+		cache = new QueryCache(2);
+	}
+
+	private List<Object> params(Object... ps) {
+		return new ArrayList<Object>(Arrays.asList(ps));
+	}
+
+	@Test
+	public void testGetPut() {
+		assertNull(cache.get(SQL, params(1)));
+		cache.put(SQL, params(1), TABLES, cache.versions(TABLES), "u1", 10000);
+		assertEquals("u1", cache.get(SQL, params(1)));
+		assertNull(cache.get(SQL, params(2)));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void testExpire() throws Exception {
+		cache.put(SQL, params(1), TABLES, cache.versions(TABLES), "u1", -1);
+		assertNull(cache.get(SQL, params(1)));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testLRU() {
+		cache.put(SQL, params(1), TABLES, cache.versions(TABLES), "u1", 10000);
+		cache.put(SQL, params(2), TABLES, cache.versions(TABLES), "u2", 10000);
+		cache.get(SQL, params(1));
+		cache.put(SQL, params(3), TABLES, cache.versions(TABLES), "u3", 10000);
+		assertEquals(2, cache.size());
+		assertEquals("u1", cache.get(SQL, params(1)));
+		assertNull(cache.get(SQL, params(2)));
+	}
+
+	@Test
+	public void testInvalidate() {
+		long[] versions = cache.versions(TABLES);
+		cache.put(SQL, params(1), TABLES, versions, "u1", 10000);
+		cache.invalidate("order");
+		assertEquals("u1", cache.get(SQL, params(1)));
+		cache.invalidate("user");
+		assertNull(cache.get(SQL, params(1)));
+
+		// Result read before the change must not be cached as fresh
+		cache.put(SQL, params(1), TABLES, versions, "u1", 10000);
+		assertNull(cache.get(SQL, params(1)));
+	}
+}
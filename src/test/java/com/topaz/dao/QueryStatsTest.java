@@ -0,0 +1,108 @@
+package com.topaz.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+
+import org.apache.commons.dbcp.DelegatingConnection;
+import org.junit.Test;
+
+public class QueryStatsTest {
+
+	@Test
+	public void testNormalize() {
+		assertEquals("SELECT * FROM user WHERE id = ?",
+				QueryStats.normalize("SELECT *  FROM user\n WHERE id = 12 "));
+		assertEquals("SELECT * FROM user WHERE name = ? AND nick = ?",
+				QueryStats.normalize("SELECT * FROM user WHERE name = 'O''Neil'"
+						+ " AND nick = 'a\\'b'"));
+		assertEquals("SELECT * FROM t1 WHERE t1.c2 > ? LIMIT ?,?",
+				QueryStats.normalize("SELECT * FROM t1 WHERE t1.c2 > 1.5 LIMIT 0,20"));
+		assertEquals("SELECT `col 1` FROM t",
+				QueryStats.normalize("SELECT `col 1` FROM t"));
+	}
+
+	@Test
+	public void testNormalizeLists() {
+		assertEquals("SELECT * FROM user WHERE id IN (?+)",
+				QueryStats.normalize("SELECT * FROM user WHERE id IN (1, 2, 3)"));
+		assertEquals("SELECT * FROM user WHERE id IN (?+)",
+				QueryStats.normalize("SELECT * FROM user WHERE id IN (?,?)"));
+		assertEquals("INSERT INTO note (a,b) VALUES (?+)",
+				QueryStats.normalize("INSERT INTO note (a,b) VALUES (?,?), (?,?),(?,?)"));
+		assertEquals("SELECT * FROM user WHERE id = (?)",
+				QueryStats.normalize("SELECT * FROM user WHERE id = (?)"));
+	}
+
+	@Test
+	public void testShapeOf() {
+		QueryStats stats = new QueryStats(0);
+		QueryStats.Shape s1 = stats.shapeOf("SELECT * FROM user WHERE id IN (1,2)");
+		QueryStats.Shape s2 = stats.shapeOf("SELECT * FROM user WHERE id IN (7, 8, 9)");
+		assertSame(s1, s2);
+		assertSame(s1, stats.shapeOf("SELECT * FROM user WHERE id IN (1,2)"));
+		stats.record(s1, "", null, 0, 2000000, -1, false);
+		stats.record(s1, "", null, 0, 1000000, 3, true);
+		s1.addRows(10);
+		QuerySnapshot snap = stats.snapshot().get(0);
+		assertEquals("SELECT * FROM user WHERE id IN (?+)", snap.getSql());
+		assertEquals(2, snap.getExecutions());
+		assertEquals(1, snap.getErrors());
+		assertEquals(13, snap.getRows());
+		assertEquals(10, snap.getMaxRows());
+		assertEquals(2000, snap.getLatency().getMaxMicros());
+	}
+
+	@Test
+	public void testRawSqlBounded() {
+		QueryStats stats = new QueryStats(0);
+		QueryStats.Shape s1 = stats.shapeOf("SELECT * FROM user WHERE id = 0");
+		for (int i = 1; i <= QueryStats.MAX_RAW_SQL; i++) {
+			assertSame(s1, stats.shapeOf("SELECT * FROM user WHERE id = " + i));
+		}
+		assertTrue(stats.rawSqlCount() <= QueryStats.MAX_RAW_SQL);
+		assertEquals(1, stats.getShapeCount());
+	}
+
+	@Test
+	public void testCaller() {
+		StackTraceElement[] stack = {
+				new StackTraceElement("com.topaz.dao.QueryStats", "record",
+						"QueryStats.java", 1),
+				new StackTraceElement("com.app.UserService", "list",
+						"UserService.java", 42),
+				new StackTraceElement("com.app.UserController", "index",
+						"UserController.java", 12),
+				new StackTraceElement("com.topaz.controller.Controller",
+						"execute", "Controller.java", 5) };
+		assertEquals("com.app.UserController.index(UserController.java:12)",
+				QueryStats.caller(stack));
+	}
+
+	@Test
+	public void testCalled() throws Exception {
+		QueryStats stats = new QueryStats(0);
+		InvocationHandler h = new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return method.getName().equals("executeUpdate") ? 3 : null;
+			}
+		};
+		ClassLoader cl = getClass().getClassLoader();
+		Connection conn = (Connection) Proxy.newProxyInstance(cl,
+				new Class<?>[] { Connection.class }, h);
+		CallableStatement cs = (CallableStatement) Proxy.newProxyInstance(cl,
+				new Class<?>[] { CallableStatement.class }, h);
+		assertEquals(3, stats.called(new DelegatingConnection(conn), cs,
+				"CALL archive(7)").executeUpdate());
+		QuerySnapshot snap = stats.snapshot().get(0);
+		assertEquals("CALL archive(?)", snap.getSql());
+		assertEquals(1, snap.getExecutions());
+		assertEquals(3, snap.getRows());
+	}
+}
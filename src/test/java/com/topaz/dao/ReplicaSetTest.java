@@ -0,0 +1,14 @@
+package com.topaz.dao;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class ReplicaSetTest {
+
+	@Test(expected = DaoException.class)
+	public void testCheckInterval() {
+		new ReplicaSet(Collections.<DataSourcePool> emptyList(),
+				ReplicaSet.Balance.ROUND_ROBIN, 0);
+	}
+}
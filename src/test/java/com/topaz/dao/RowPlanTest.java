@@ -0,0 +1,26 @@
+package com.topaz.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.sql.Timestamp;
+import java.util.Date;
+
+import org.junit.Test;
+
+public class RowPlanTest {
+
+	@Test
+	public void testConvert() {
+		Object v = RowPlan.Reader.convert(new Date(1000L), Timestamp.class);
+		assertEquals(new Timestamp(1000L), v);
+		assertEquals(Timestamp.class, v.getClass());
+		assertEquals(5, RowPlan.Reader.convert(5, Integer.TYPE));
+		assertNull(RowPlan.Reader.convert(null, Integer.class));
+	}
+
+	@Test(expected = DaoException.class)
+	public void testIncompatible() {
+		RowPlan.Reader.convert("a", Integer.class);
+	}
+}
@@ -0,0 +1,9 @@
+package com.topaz.dao;
+
+/**
+ * Post model split over shards by userId, mapped to table sharded_post.
+ */
+@Sharded(key = "userId")
+public class ShardedPost extends Post {
+	private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,41 @@
+package com.topaz.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.NoSuchElementException;
+
+import org.apache.commons.pool.BaseKeyedPoolableObjectFactory;
+import org.apache.commons.pool.KeyedObjectPool;
+import org.junit.Test;
+
+public class StatementPoolFactoryTest {
+
+	@Test
+	public void testHitsAndMisses() throws Exception {
+		StatementPoolFactory f = new StatementPoolFactory(2);
+		KeyedObjectPool<Object, Object> pool = f
+				.createPool(new BaseKeyedPoolableObjectFactory<Object, Object>() {
+
+					public Object makeObject(Object key) throws Exception {
+						return new Object();
+					}
+				});
+		Object s1 = pool.borrowObject("SELECT 1");
+		pool.returnObject("SELECT 1", s1);
+		assertEquals(s1, pool.borrowObject("SELECT 1"));
+		Object s2 = pool.borrowObject("SELECT 2");
+		assertEquals(1, f.getHits());
+		assertEquals(2, f.getMisses());
+
+		// Over maxStatements
+		try {
+			pool.borrowObject("SELECT 3");
+			fail();
+		} catch (NoSuchElementException e) {
+			assertEquals(2, pool.getNumActive());
+		}
+		pool.returnObject("SELECT 2", s2);
+		assertEquals(1, pool.getNumIdle());
+	}
+}